@@ -0,0 +1,127 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.BlockingCasClient;
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasClientBuilder;
+import fi.vm.sade.javautils.nio.cas.CasClientHelper;
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.LatencyHistogram;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.asynchttpclient.Dsl.config;
+
+/**
+ * Many threads each calling the client synchronously in a loop, the way request handling on virtual threads does:
+ * through the {@code executeBlocking} default of {@link CasClient}, through {@link BlockingCasClient} and through
+ * {@link CasClientHelper#doGetSync}.
+ *
+ * The callers run on virtual threads when the JVM has them (Java 21 and later), and on platform threads with small
+ * stacks otherwise. The connections to the service are kept to a few hundred with the adaptive concurrency limit,
+ * which queues the rest of the callers.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar fi.vm.sade.javautils.nio.cas.benchmarks.BlockingCallersLoadTest
+ * [callers] [durationSeconds]}
+ */
+public class BlockingCallersLoadTest {
+
+    private static final int SERVICE_THREADS = 64;
+    private static final long SERVICE_TIME_MS = 5;
+
+    private interface Call {
+        Object call(Request request, String url) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int callers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long durationMs = TimeUnit.SECONDS.toMillis(args.length > 1 ? Long.parseLong(args[1]) : 10);
+        ExecutorService probe = newCallerExecutor();
+        System.out.println(String.format("%d callers on %s threads for %d ms", callers,
+                probe.getClass().getName().contains("ThreadPerTask") ? "virtual" : "platform", durationMs));
+        probe.shutdown();
+
+        run("executeBlocking", callers, durationMs, client -> (request, url) -> client.executeBlocking(request));
+        run("BlockingCasClient", callers, durationMs, client -> {
+            BlockingCasClient blockingClient = new BlockingCasClient(client);
+            return (request, url) -> blockingClient.execute(request);
+        });
+        run("doGetSync", callers, durationMs, client -> {
+            CasClientHelper helper = new CasClientHelper(client);
+            return (request, url) -> helper.doGetSync(url, Map.class);
+        });
+    }
+
+    private interface CallFactory {
+        Call create(CasClient client);
+    }
+
+    private static void run(String name, int callers, long durationMs, CallFactory callFactory) throws Exception {
+        try (StubCasServer server = new StubCasServer(SERVICE_THREADS, SERVICE_TIME_MS);
+             AsyncHttpClient asyncHttpClient = asyncHttpClient(config().setCookieStore(null))) {
+            CasConfig config = server.configBuilder()
+                    .requestTimeout(TimeUnit.SECONDS, 60)
+                    .adaptiveConcurrencyLimit(200, callers, TimeUnit.SECONDS, 10)
+                    .build();
+            CasClient client = CasClientBuilder.buildFromConfigAndHttpClient(config, asyncHttpClient);
+            String url = server.serviceUrl() + "/api";
+            Request request = new RequestBuilder().setUrl(url).build();
+            Call call = callFactory.create(client);
+            // log in before the clock starts
+            call.call(request, url);
+
+            LatencyHistogram latencies = new LatencyHistogram();
+            Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+            ExecutorService executor = newCallerExecutor();
+            for (int i = 0; i < callers; i++) {
+                executor.execute(() -> {
+                    while (System.nanoTime() - deadline < 0) {
+                        long start = System.nanoTime();
+                        try {
+                            call.call(request, url);
+                            latencies.record(System.nanoTime() - start);
+                        } catch (Exception e) {
+                            errors.computeIfAbsent(e.getClass().getSimpleName(), c -> new LongAdder()).increment();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(durationMs + 120_000, TimeUnit.MILLISECONDS);
+
+            Map<String, Long> errorCounts = new TreeMap<>();
+            errors.forEach((type, count) -> errorCounts.put(type, count.sum()));
+            System.out.println(String.format("%-18s ok %d (%.0f/s), p50 %.1f ms, p99 %.1f ms, max %.1f ms, peak threads %d, errors %s",
+                    name, latencies.getCount(), latencies.getCount() * 1000.0 / durationMs,
+                    latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6, latencies.getMax() / 1e6,
+                    ManagementFactory.getThreadMXBean().getPeakThreadCount(), errorCounts));
+        }
+    }
+
+    /**
+     * A thread per caller: virtual where available, looked up reflectively so that this compiles for Java 11.
+     */
+    private static ExecutorService newCallerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(null, r, "caller", 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
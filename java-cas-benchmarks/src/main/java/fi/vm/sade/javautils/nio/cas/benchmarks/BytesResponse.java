@@ -0,0 +1,132 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.uri.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A 200 response with a fixed body, for benchmarking response handling without a network round trip.
+ */
+public class BytesResponse implements Response {
+
+    private final byte[] body;
+    private final HttpHeaders headers;
+
+    public BytesResponse(byte[] body, String contentType) {
+        this.body = body;
+        this.headers = new DefaultHttpHeaders().add("Content-Type", contentType);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 200;
+    }
+
+    @Override
+    public String getStatusText() {
+        return "OK";
+    }
+
+    @Override
+    public byte[] getResponseBodyAsBytes() {
+        return body;
+    }
+
+    @Override
+    public ByteBuffer getResponseBodyAsByteBuffer() {
+        return ByteBuffer.wrap(body);
+    }
+
+    @Override
+    public ByteBuf getResponseBodyAsByteBuf() {
+        return Unpooled.wrappedBuffer(body);
+    }
+
+    @Override
+    public InputStream getResponseBodyAsStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public String getResponseBody(Charset charset) {
+        return new String(body, charset);
+    }
+
+    @Override
+    public String getResponseBody() {
+        return getResponseBody(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Uri getUri() {
+        return Uri.create("http://localhost/benchmark");
+    }
+
+    @Override
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    @Override
+    public String getHeader(CharSequence name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public List<String> getHeaders(CharSequence name) {
+        return headers.getAll(name);
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public boolean isRedirected() {
+        return false;
+    }
+
+    @Override
+    public List<Cookie> getCookies() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean hasResponseStatus() {
+        return true;
+    }
+
+    @Override
+    public boolean hasResponseHeaders() {
+        return true;
+    }
+
+    @Override
+    public boolean hasResponseBody() {
+        return body.length > 0;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+}
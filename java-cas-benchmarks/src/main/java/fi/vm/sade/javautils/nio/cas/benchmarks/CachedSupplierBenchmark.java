@@ -0,0 +1,62 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.impl.CachedSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a cached session token from many threads at once. Run {@link #main} to get the lock-free and the
+ * synchronized implementation side by side at 1, 2, 4, 8, 16, 32 and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachedSupplierBenchmark {
+
+  private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+  private CachedSupplier<String> lockFree;
+  private SynchronizedCachedSupplier<String> synchronizedSupplier;
+
+  @Setup
+  public void setup() {
+    lockFree = new CachedSupplier<>(TimeUnit.HOURS.toMillis(1), () -> CompletableFuture.completedFuture("session"));
+    synchronizedSupplier = new SynchronizedCachedSupplier<>(TimeUnit.HOURS.toMillis(1), () -> CompletableFuture.completedFuture("session"));
+  }
+
+  @Benchmark
+  public CompletableFuture<String> lockFree() {
+    return lockFree.get();
+  }
+
+  @Benchmark
+  public CompletableFuture<String> synchronizedBaseline() {
+    return synchronizedSupplier.get();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREAD_COUNTS) {
+      new Runner(new OptionsBuilder()
+          .include(CachedSupplierBenchmark.class.getSimpleName())
+          .threads(threads)
+          .build()).run();
+    }
+  }
+}
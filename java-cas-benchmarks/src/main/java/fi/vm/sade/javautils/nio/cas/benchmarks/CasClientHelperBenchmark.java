@@ -0,0 +1,109 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasClientHelper;
+import fi.vm.sade.javautils.nio.cas.UserDetails;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps a JSON response body to objects with {@link CasClientHelper}, with a client that answers immediately, so that
+ * only the helper's own work is measured: into an array on the common pool, into a generic list on the calling
+ * thread, and element by element on the calling thread. Run with {@code -prof gc} to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CasClientHelperBenchmark {
+
+  @Param({"10", "1000"})
+  public int items;
+
+  private static final TypeToken<List<Item>> ITEM_LIST = new TypeToken<List<Item>>() {};
+
+  private CasClientHelper helper;
+
+  public static class Item {
+    public String oid;
+    public String name;
+    public List<String> roles;
+    public long modified;
+  }
+
+  @Setup
+  public void setup() {
+    List<Item> payload = new ArrayList<>();
+    for (int i = 0; i < items; i++) {
+      Item item = new Item();
+      item.oid = "1.2.246.562.24." + (10000000000L + i);
+      item.name = "Äyrämö Tero Testi " + i;
+      item.roles = List.of("APP_KOODISTO", "APP_KOODISTO_CRUD", "APP_KOODISTO_CRUD_1.2.246.562.10." + i);
+      item.modified = 1614705480000L + i;
+      payload.add(item);
+    }
+    Response response = new BytesResponse(new Gson().toJson(payload).getBytes(StandardCharsets.UTF_8), "application/json; charset=UTF-8");
+    helper = new CasClientHelper(new CasClient() {
+      @Override
+      public CompletableFuture<Response> execute(Request request) {
+        return CompletableFuture.completedFuture(response);
+      }
+
+      @Override
+      public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
+        return execute(request);
+      }
+
+      @Override
+      public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+
+  @Benchmark
+  public Item[] doGet() {
+    return helper.doGet("http://localhost/benchmark", Item[].class).join();
+  }
+
+  @Benchmark
+  public List<Item> doGetList() {
+    return helper.doGet("http://localhost/benchmark", ITEM_LIST, Runnable::run).join();
+  }
+
+  @Benchmark
+  public long doGetForEach() {
+    LongAdder modified = new LongAdder();
+    helper.doGetForEachSync("http://localhost/benchmark", Item.class, item -> modified.add(item.modified));
+    return modified.sum();
+  }
+}
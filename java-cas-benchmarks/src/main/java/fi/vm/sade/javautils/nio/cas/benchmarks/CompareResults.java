@@ -0,0 +1,84 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH result files written with {@code -rf json}, e.g. from two commits.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar fi.vm.sade.javautils.nio.cas.benchmarks.CompareResults base.json new.json}
+ *
+ * A change is marked with {@code *} when the scores differ by more than their combined 99.9 % error margins, i.e.
+ * when it is unlikely to be noise.
+ */
+public class CompareResults {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults base.json new.json");
+            System.exit(2);
+        }
+        Map<String, JsonObject> base = read(args[0]);
+        Map<String, JsonObject> current = read(args[1]);
+
+        System.out.println(String.format("%-70s %14s %14s %9s  %s", "Benchmark", "Base", "New", "Change", "Unit"));
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject newMetric = entry.getValue();
+            JsonObject baseMetric = base.get(entry.getKey());
+            double newScore = newMetric.get("score").getAsDouble();
+            String unit = newMetric.get("scoreUnit").getAsString();
+            if (baseMetric == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %9s  %s", entry.getKey(), "-", newScore, "new", unit));
+                continue;
+            }
+            double baseScore = baseMetric.get("score").getAsDouble();
+            double change = (newScore - baseScore) / baseScore * 100;
+            boolean significant = Math.abs(newScore - baseScore) > error(baseMetric) + error(newMetric);
+            System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%%%s %s",
+                    entry.getKey(), baseScore, newScore, change, significant ? "*" : " ", unit));
+        }
+        for (String removed : base.keySet()) {
+            if (!current.containsKey(removed)) {
+                System.out.println(String.format("%-70s %14.3f %14s %9s", removed, base.get(removed).get("score").getAsDouble(), "-", "removed"));
+            }
+        }
+    }
+
+    private static double error(JsonObject metric) {
+        JsonElement error = metric.get("scoreError");
+        return error == null || !error.isJsonPrimitive() || !error.getAsJsonPrimitive().isNumber() ? 0 : error.getAsDouble();
+    }
+
+    /**
+     * @return primary metrics by benchmark name with its parameters and thread count
+     */
+    private static Map<String, JsonObject> read(String file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(run.get("benchmark").getAsString()
+                        .replace("fi.vm.sade.javautils.nio.cas.benchmarks.", ""));
+                if (run.has("params")) {
+                    Map<String, String> params = new TreeMap<>();
+                    run.getAsJsonObject("params").entrySet().forEach(p -> params.put(p.getKey(), p.getValue().getAsString()));
+                    params.forEach((name, value) -> key.append(' ').append(name).append('=').append(value));
+                }
+                key.append(" t=").append(run.get("threads").getAsInt());
+                results.put(key.toString(), run.getAsJsonObject("primaryMetric"));
+            }
+        }
+        return results;
+    }
+}
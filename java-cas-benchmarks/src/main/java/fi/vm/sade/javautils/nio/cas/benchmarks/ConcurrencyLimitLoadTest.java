@@ -0,0 +1,66 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasClientBuilder;
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.exceptions.ConcurrencyLimitExceededException;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.RequestBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.asynchttpclient.Dsl.config;
+
+/**
+ * Drives a saturated downstream service at twice its capacity with and without the adaptive concurrency limit.
+ *
+ * Without the limit every request is sent and waits in the service's queue, so latency grows for as long as the
+ * overload lasts and requests start to time out. With the limit the excess is rejected immediately and the
+ * accepted requests keep a latency close to the service time.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar fi.vm.sade.javautils.nio.cas.benchmarks.ConcurrencyLimitLoadTest
+ * [requestsPerSecond] [durationSeconds]}
+ */
+public class ConcurrencyLimitLoadTest {
+
+    private static final int SERVICE_THREADS = 4;
+    private static final long SERVICE_TIME_MS = 20;
+
+    public static void main(String[] args) throws Exception {
+        // the service handles SERVICE_THREADS * 1000 / SERVICE_TIME_MS = 200 requests per second
+        int requestsPerSecond = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        long durationMs = TimeUnit.SECONDS.toMillis(args.length > 1 ? Long.parseLong(args[1]) : 10);
+
+        System.out.println(String.format("%d requests per second for %d ms against a service handling %d per second",
+                requestsPerSecond, durationMs, SERVICE_THREADS * 1000 / SERVICE_TIME_MS));
+        run("unlimited", requestsPerSecond, durationMs, builder -> builder);
+        run("adaptive limit", requestsPerSecond, durationMs,
+                builder -> builder.adaptiveConcurrencyLimit(50, 10, TimeUnit.MILLISECONDS, 100));
+    }
+
+    private interface Configurer {
+        CasConfig.CasConfigBuilder configure(CasConfig.CasConfigBuilder builder);
+    }
+
+    private static void run(String name, int requestsPerSecond, long durationMs, Configurer configurer) throws Exception {
+        try (StubCasServer server = new StubCasServer(SERVICE_THREADS, SERVICE_TIME_MS);
+             AsyncHttpClient asyncHttpClient = asyncHttpClient(config().setCookieStore(null))) {
+            CasConfig config = configurer.configure(server.configBuilder()
+                    .requestTimeout(TimeUnit.SECONDS, 5)
+                    .setNumberOfRetries(0)).build();
+            CasClient client = CasClientBuilder.buildFromConfigAndHttpClient(config, asyncHttpClient);
+            String url = server.serviceUrl() + "/api";
+            // log in before the clock starts
+            client.execute(new RequestBuilder().setUrl(url).build()).get();
+
+            LoadDriver.Result result = new LoadDriver().run(
+                    () -> client.execute(new RequestBuilder().setUrl(url).build()), requestsPerSecond, durationMs);
+            System.out.println(String.format("%-15s %s, rejected %d, timed out %d",
+                    name, result,
+                    result.errorCount(ConcurrencyLimitExceededException.class),
+                    result.errorCount(TimeoutException.class)));
+        }
+    }
+}
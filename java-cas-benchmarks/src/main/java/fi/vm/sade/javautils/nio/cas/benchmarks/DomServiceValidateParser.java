@@ -0,0 +1,40 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.UserDetails;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The DOM based serviceValidate parsing that java-cas used before 2.2.0, kept as a baseline for
+ * {@link ServiceValidateBenchmark}.
+ */
+public class DomServiceValidateParser {
+
+    public static UserDetails getUserDetails(String responseBody) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document document = builder.parse(new InputSource(new StringReader(responseBody)));
+
+        String username = document.getElementsByTagName("cas:user").item(0).getTextContent();
+        String henkiloOid = document.getElementsByTagName("cas:oidHenkilo").item(0).getTextContent();
+        String kayttajaTyyppi = Optional.ofNullable(document.getElementsByTagName("cas:kayttajaTyyppi").item(0)).map(Node::getTextContent).orElse(null);
+        String idpEntityId = Optional.ofNullable(document.getElementsByTagName("cas:idpEntityId").item(0)).map(Node::getTextContent).orElse(null);
+
+        NodeList roleNodes = document.getElementsByTagName("cas:roles");
+        Set<String> roles = IntStream.range(0, roleNodes.getLength())
+                .mapToObj(i -> roleNodes.item(i).getTextContent())
+                .collect(Collectors.toSet());
+
+        return new UserDetails(username, henkiloOid, kayttajaTyyppi, idpEntityId, roles);
+    }
+}
@@ -0,0 +1,73 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasClientBuilder;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.cookie.ThreadSafeCookieStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.asynchttpclient.Dsl.config;
+
+/**
+ * End-to-end {@link CasClient#execute} against {@link StubCasServer} on the loopback interface, with the session
+ * already cached: the pipeline of session lookup, request building, the HTTP round trip and the response.
+ *
+ * {@code cookieStore} compares the client built by CasClientBuilder, which has no cookie store, with a client that
+ * has a shared cookie store, which java-cas must clear before every request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class ExecuteBenchmark {
+
+  @Param({"none", "shared"})
+  public String cookieStore;
+
+  private StubCasServer server;
+  private AsyncHttpClient asyncHttpClient;
+  private CasClient client;
+  private Request request;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new StubCasServer(16, 0);
+    asyncHttpClient = asyncHttpClient(config()
+        .setCookieStore("none".equals(cookieStore) ? null : new ThreadSafeCookieStore()));
+    client = CasClientBuilder.buildFromConfigAndHttpClient(server.configBuilder().build(), asyncHttpClient);
+    request = new RequestBuilder().setUrl(server.serviceUrl() + "/api").build();
+    client.execute(request).get();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    asyncHttpClient.close();
+    server.close();
+  }
+
+  @Benchmark
+  public Response execute() throws Exception {
+    return client.execute(request).get();
+  }
+}
@@ -0,0 +1,97 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasClientBuilder;
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+
+/**
+ * Many concurrent callers against a service over TLS, with the client using pooled HTTP/1.1 connections and with it
+ * multiplexing the requests as HTTP/2 streams.
+ *
+ * Each mode runs against a fresh {@link TlsServiceStub} and client that has logged in before the clock starts, and
+ * prints the throughput, latency percentiles, errors and the TLS connections the service accepted. With
+ * {@code maxConnectionsPerHost} the HTTP/1.1 pool is bounded, like a client sharing its pool with other work, and
+ * requests that find it exhausted fail.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar fi.vm.sade.javautils.nio.cas.benchmarks.Http2LoadTest [name=value ...]},
+ * where the names and defaults are in {@link #DEFAULTS}, e.g. {@code callers=1000 maxConnectionsPerHost=50}.
+ */
+public class Http2LoadTest {
+
+    private static final Map<String, String> DEFAULTS = new TreeMap<>(Map.ofEntries(
+            Map.entry("mode", "all"),
+            Map.entry("callers", "500"),
+            Map.entry("durationSeconds", "10"),
+            Map.entry("serviceTimeMs", "5"),
+            Map.entry("maxConcurrentStreams", "90"),
+            Map.entry("serverMaxConcurrentStreams", "100"),
+            Map.entry("maxConnectionsPerHost", "-1")));
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            String[] nameAndValue = arg.split("=", 2);
+            if (nameAndValue.length != 2 || !DEFAULTS.containsKey(nameAndValue[0])) {
+                System.err.println("Unknown option " + arg + ", the options and their defaults are " + DEFAULTS);
+                System.exit(2);
+            }
+            options.put(nameAndValue[0], nameAndValue[1]);
+        }
+        System.out.println("Options " + new TreeMap<>(options));
+
+        String mode = options.get("mode");
+        if ("all".equals(mode) || "http1".equals(mode)) {
+            run("http1", options);
+        }
+        if ("all".equals(mode) || "http2".equals(mode)) {
+            run("http2", options);
+        }
+    }
+
+    private static void run(String mode, Map<String, String> options) throws Exception {
+        System.out.println(mode);
+        try (StubCasServer cas = new StubCasServer(1, 0);
+             TlsServiceStub service = new TlsServiceStub(
+                     Long.parseLong(options.get("serviceTimeMs")), Long.parseLong(options.get("serverMaxConcurrentStreams")))) {
+            CasConfig.CasConfigBuilder builder = new CasConfig.CasConfigBuilder("user", "pass", cas.casUrl(),
+                    service.serviceUrl(), "CSRF", "load-test", "/j_spring_cas_security_check")
+                    .setJsessionName(StubCasServer.SESSION_COOKIE);
+            if ("http2".equals(mode)) {
+                builder.http2(Integer.parseInt(options.get("maxConcurrentStreams")));
+            }
+            CasConfig config = builder.build();
+            try (AsyncHttpClient asyncHttpClient = asyncHttpClient(CasClientBuilder.httpClientConfig(config)
+                    .setUseInsecureTrustManager(true)
+                    .setMaxConnectionsPerHost(Integer.parseInt(options.get("maxConnectionsPerHost"))))) {
+                CasClient client = CasClientBuilder.buildFromConfigAndHttpClient(config, asyncHttpClient);
+                Request request = new RequestBuilder().setUrl(service.serviceUrl() + "/api").build();
+                client.execute(request).get();
+                int connectionsBefore = service.http1Connections.get() + service.http2Connections.get();
+
+                LoadDriver.Result result = new LoadDriver().runClosedLoop(() -> client.execute(request),
+                        Integer.parseInt(options.get("callers")),
+                        TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("durationSeconds"))));
+
+                Map<String, Long> errors = new TreeMap<>();
+                result.errors.forEach(e -> errors.merge(e.getClass().getSimpleName(), 1L, Long::sum));
+                System.out.println("  " + result);
+                System.out.println("  errors " + errors);
+                System.out.println(String.format("  TLS connections accepted during the run %d (HTTP/1.1 %d, HTTP/2 %d in all), sessions %d",
+                        service.http1Connections.get() + service.http2Connections.get() - connectionsBefore,
+                        service.http1Connections.get(),
+                        service.http2Connections.get(),
+                        service.sessions.get()));
+            }
+        }
+    }
+}
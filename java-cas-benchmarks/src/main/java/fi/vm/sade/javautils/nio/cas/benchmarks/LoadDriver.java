@@ -0,0 +1,150 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import org.asynchttpclient.Response;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Drives load through a client and collects the outcomes.
+ *
+ * {@link #run} is open-loop: it starts requests at a fixed rate whether or not earlier ones have completed, so an
+ * overloaded client shows up as growing latency instead of a lower request rate. {@link #runClosedLoop} keeps a
+ * fixed number of callers busy instead, each sending its next request when the previous one completes, like the
+ * request threads of a busy service.
+ */
+public class LoadDriver {
+
+    private final ConcurrentLinkedQueue<Long> latenciesNanos = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger ok = new AtomicInteger();
+    private final AtomicInteger notOk = new AtomicInteger();
+
+    /**
+     * Runs {@code request} {@code requestsPerSecond} times a second for {@code durationMs} and waits for the
+     * started requests to complete.
+     */
+    public Result run(Supplier<CompletableFuture<Response>> request, int requestsPerSecond, long durationMs) throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<CompletableFuture<?>> all = Collections.synchronizedList(new ArrayList<>());
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        scheduler.scheduleAtFixedRate(() -> all.add(startOne(request)), 0, periodNanos, TimeUnit.NANOSECONDS);
+        TimeUnit.MILLISECONDS.sleep(durationMs);
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        List<CompletableFuture<?>> snapshot;
+        synchronized (all) {
+            snapshot = new ArrayList<>(all);
+        }
+        CompletableFuture.allOf(snapshot.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null).join();
+        return result(durationMs);
+    }
+
+    /**
+     * Runs {@code callers} concurrent callers for {@code durationMs}, each sending {@code request} again as soon as
+     * its previous request completes, and waits for the last requests to complete.
+     */
+    public Result runClosedLoop(Supplier<CompletableFuture<Response>> request, int callers, long durationMs) {
+        // continuations hop to this pool, so that requests failing synchronously do not recurse on the stack
+        ExecutorService continuations = Executors.newFixedThreadPool(4);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            CompletableFuture<Void> callerDone = new CompletableFuture<>();
+            done.add(callerDone);
+            loop(request, deadline, continuations, callerDone);
+        }
+        CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).join();
+        continuations.shutdown();
+        return result(durationMs);
+    }
+
+    private void loop(Supplier<CompletableFuture<Response>> request, long deadline, ExecutorService continuations, CompletableFuture<Void> callerDone) {
+        if (System.nanoTime() - deadline >= 0) {
+            callerDone.complete(null);
+            return;
+        }
+        startOne(request).whenCompleteAsync((r, t) -> loop(request, deadline, continuations, callerDone), continuations);
+    }
+
+    private Result result(long durationMs) {
+        return new Result(durationMs, started.get(), ok.get(), notOk.get(), new ArrayList<>(errors), new ArrayList<>(latenciesNanos));
+    }
+
+    private CompletableFuture<?> startOne(Supplier<CompletableFuture<Response>> request) {
+        started.incrementAndGet();
+        long start = System.nanoTime();
+        CompletableFuture<Response> response;
+        try {
+            response = request.get();
+        } catch (Throwable t) {
+            errors.add(t);
+            return CompletableFuture.completedFuture(null);
+        }
+        return response.whenComplete((r, t) -> {
+            if (t != null) {
+                errors.add(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            } else {
+                latenciesNanos.add(System.nanoTime() - start);
+                if (r.getStatusCode() == 200) {
+                    ok.incrementAndGet();
+                } else {
+                    notOk.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    public static final class Result {
+        public final long durationMs;
+        public final int started;
+        public final int ok;
+        public final int notOk;
+        public final List<Throwable> errors;
+        private final long[] sortedLatenciesNanos;
+
+        private Result(long durationMs, int started, int ok, int notOk, List<Throwable> errors, List<Long> latenciesNanos) {
+            this.durationMs = durationMs;
+            this.started = started;
+            this.ok = ok;
+            this.notOk = notOk;
+            this.errors = errors;
+            this.sortedLatenciesNanos = latenciesNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+
+        /** Successful requests per second. */
+        public double throughput() {
+            return ok * 1000.0 / durationMs;
+        }
+
+        public long errorCount(Class<? extends Throwable> type) {
+            return errors.stream().filter(type::isInstance).count();
+        }
+
+        /** Latency of the completed requests at {@code percentile} (0-100), in milliseconds. */
+        public double percentileMs(double percentile) {
+            if (sortedLatenciesNanos.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatenciesNanos.length) - 1;
+            return sortedLatenciesNanos[Math.max(0, index)] / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("started %d, ok %d (%.0f/s), not ok %d, errors %d, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    started, ok, throughput(), notOk, errors.size(), percentileMs(50), percentileMs(99), percentileMs(100));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.UserDetails;
+import fi.vm.sade.javautils.nio.cas.impl.ServiceValidateResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a virkailija serviceValidate response with the given number of {@code cas:roles}, from the raw
+ * response bytes like CasClientImpl receives them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceValidateBenchmark {
+
+  @Param({"10", "100", "500"})
+  public int roles;
+
+  private byte[] body;
+
+  @Setup
+  public void setup() {
+    StringBuilder xml = new StringBuilder()
+        .append("<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n")
+        .append("    <cas:authenticationSuccess>\n")
+        .append("        <cas:user>it-ankka</cas:user>\n")
+        .append("        <cas:attributes>\n")
+        .append("            <cas:oidHenkilo>1.2.246.562.98.1234567890</cas:oidHenkilo>\n")
+        .append("            <cas:kayttajaTyyppi>VIRKAILIJA</cas:kayttajaTyyppi>\n")
+        .append("            <cas:idpEntityId>https://idp.csc.fi/idp/shibboleth</cas:idpEntityId>\n");
+    for (int i = 0; i < roles; i++) {
+      xml.append("            <cas:roles>APP_KOODISTO_CRUD_1.2.246.562.10.").append(i).append("</cas:roles>\n");
+    }
+    xml.append("        </cas:attributes>\n")
+        .append("    </cas:authenticationSuccess>\n")
+        .append("</cas:serviceResponse>\n");
+    body = xml.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public UserDetails stax() throws Exception {
+    ServiceValidateResponse document = ServiceValidateResponse.parse(new ByteArrayInputStream(body), "UTF-8");
+    return new UserDetails(
+        document.getRequired("cas:user"),
+        document.getRequired("cas:oidHenkilo"),
+        document.get("cas:kayttajaTyyppi"),
+        document.get("cas:idpEntityId"),
+        document.getRoles());
+  }
+
+  @Benchmark
+  public UserDetails domBaseline() throws Exception {
+    return DomServiceValidateParser.getUserDetails(new String(body, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,172 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.InMemoryCasMetrics;
+import fi.vm.sade.javautils.nio.cas.impl.CasClientImpl;
+import fi.vm.sade.javautils.nio.cas.impl.CasSessionFetcher;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.asynchttpclient.Dsl.config;
+
+/**
+ * Many concurrent callers sharing one CasClient while CAS or the service misbehaves, to see how the session and
+ * TGT caches, the circuit breakers and the retries play together.
+ *
+ * Scenarios, each against a fresh {@link StubCasServer} and client that has logged in before the clock starts:
+ * <ul>
+ *   <li>{@code expiry}: the service forgets all sessions halfway through.</li>
+ *   <li>{@code outage}: the sessions are forgotten and CAS fails every call from 30 % to 60 % of the run.</li>
+ *   <li>{@code slowCas}: CAS answers after 2 seconds and the sessions are forgotten halfway through.</li>
+ * </ul>
+ * For each scenario the throughput, latency percentiles, errors by type, the CAS calls it caused and the circuit
+ * breakers that changed state are printed.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar fi.vm.sade.javautils.nio.cas.benchmarks.SessionStormLoadTest
+ * [name=value ...]}, where the names and defaults are in {@link #DEFAULTS}, e.g. {@code scenario=outage callers=1000
+ * retries=2 breakerWaitMs=5000}.
+ */
+public class SessionStormLoadTest {
+
+    private static final Map<String, String> DEFAULTS = new TreeMap<>(Map.ofEntries(
+            Map.entry("scenario", "all"),
+            Map.entry("callers", "500"),
+            Map.entry("durationSeconds", "10"),
+            Map.entry("serviceThreads", "32"),
+            Map.entry("serviceTimeMs", "5"),
+            Map.entry("retries", "1"),
+            Map.entry("requestTimeoutSeconds", "10"),
+            Map.entry("sessionTtlSeconds", "900"),
+            Map.entry("tgtTtlSeconds", "25200"),
+            Map.entry("breakerFailureRate", "50"),
+            Map.entry("breakerMinCalls", "6"),
+            Map.entry("breakerWaitMs", "30000")));
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            String[] nameAndValue = arg.split("=", 2);
+            if (nameAndValue.length != 2 || !DEFAULTS.containsKey(nameAndValue[0])) {
+                System.err.println("Unknown option " + arg + ", the options and their defaults are " + DEFAULTS);
+                System.exit(2);
+            }
+            options.put(nameAndValue[0], nameAndValue[1]);
+        }
+        System.out.println("Options " + new TreeMap<>(options));
+
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("durationSeconds")));
+        String scenario = options.get("scenario");
+        if ("all".equals(scenario) || "expiry".equals(scenario)) {
+            run("expiry", options, durationMs, timeline -> timeline
+                    .at(durationMs / 2, StubCasServer::invalidateSessions));
+        }
+        if ("all".equals(scenario) || "outage".equals(scenario)) {
+            run("outage", options, durationMs, timeline -> timeline
+                    .at(durationMs * 3 / 10, server -> server.invalidateSessions().casFailureRate(1))
+                    .at(durationMs * 6 / 10, server -> server.casFailureRate(0)));
+        }
+        if ("all".equals(scenario) || "slowCas".equals(scenario)) {
+            run("slowCas", options, durationMs, timeline -> timeline
+                    .at(0, server -> server.casLatency(2000))
+                    .at(durationMs / 2, StubCasServer::invalidateSessions));
+        }
+    }
+
+    /**
+     * Changes to the server at given times after the load has started.
+     */
+    private static final class Timeline {
+        private final StubCasServer server;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        private Timeline(StubCasServer server) {
+            this.server = server;
+        }
+
+        Timeline at(long ms, Consumer<StubCasServer> change) {
+            scheduler.schedule(() -> {
+                System.out.println(String.format("  %6d ms: CAS calls so far %d", ms, server.casCalls()));
+                change.accept(server);
+            }, ms, TimeUnit.MILLISECONDS);
+            return this;
+        }
+
+        void stop() {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static void run(String name, Map<String, String> options, long durationMs, Consumer<Timeline> script) throws Exception {
+        System.out.println(name);
+        try (StubCasServer server = new StubCasServer(
+                Integer.parseInt(options.get("serviceThreads")), Long.parseLong(options.get("serviceTimeMs")));
+             AsyncHttpClient asyncHttpClient = asyncHttpClient(config().setCookieStore(null))) {
+            InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+            CasClient client = buildClient(server, asyncHttpClient, metrics, options);
+            Request request = new RequestBuilder().setUrl(server.serviceUrl() + "/api").build();
+            client.execute(request).get();
+            int casCallsBefore = server.casCalls();
+            int tgtsBefore = server.ticketGrantingTickets.get();
+            int serviceTicketsBefore = server.serviceTickets.get();
+            int sessionsBefore = server.sessions.get();
+            int failedBefore = server.failedCasCalls.get();
+
+            Timeline timeline = new Timeline(server);
+            script.accept(timeline);
+            LoadDriver.Result result = new LoadDriver().runClosedLoop(
+                    () -> client.execute(request), Integer.parseInt(options.get("callers")), durationMs);
+            timeline.stop();
+
+            Map<String, Long> errors = new TreeMap<>();
+            result.errors.forEach(e -> errors.merge(e.getClass().getSimpleName(), 1L, Long::sum));
+            System.out.println("  " + result);
+            System.out.println("  errors " + errors);
+            System.out.println(String.format("  CAS calls %d: TGTs %d, service tickets %d, sessions %d, failed %d; 401 from service %d",
+                    server.casCalls() - casCallsBefore,
+                    server.ticketGrantingTickets.get() - tgtsBefore,
+                    server.serviceTickets.get() - serviceTicketsBefore,
+                    server.sessions.get() - sessionsBefore,
+                    server.failedCasCalls.get() - failedBefore,
+                    server.rejectedSessions.get()));
+            System.out.println("  circuit breakers " + new TreeMap<>(metrics.getCircuitBreakerStates()));
+        }
+    }
+
+    private static CasClient buildClient(StubCasServer server, AsyncHttpClient asyncHttpClient,
+                                         InMemoryCasMetrics metrics, Map<String, String> options) {
+        CasConfig config = server.configBuilder()
+                .setNumberOfRetries(Integer.parseInt(options.get("retries")))
+                .requestTimeout(TimeUnit.SECONDS, Long.parseLong(options.get("requestTimeoutSeconds")))
+                .sessionTicketValid(TimeUnit.SECONDS, Long.parseLong(options.get("sessionTtlSeconds")))
+                .ticketGrantingTicketValidMs(TimeUnit.SECONDS, Long.parseLong(options.get("tgtTtlSeconds")))
+                .metricsListener(metrics)
+                .build();
+        // the defaults of CasSessionFetcher, with the thresholds from the options
+        CircuitBreakerConfig breakerConfig = CircuitBreakerConfig.custom()
+                .failureRateThreshold(Float.parseFloat(options.get("breakerFailureRate")))
+                .slowCallRateThreshold(50)
+                .waitDurationInOpenState(Duration.ofMillis(Long.parseLong(options.get("breakerWaitMs"))))
+                .slowCallDurationThreshold(Duration.ofSeconds(10))
+                .permittedNumberOfCallsInHalfOpenState(4)
+                .minimumNumberOfCalls(Integer.parseInt(options.get("breakerMinCalls")))
+                .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.TIME_BASED)
+                .slidingWindowSize(10)
+                .build();
+        CasSessionFetcher fetcher = new CasSessionFetcher(config, asyncHttpClient,
+                config.getSessionTicketValidMs(), config.getTicketGrantingTicketValidMs(), breakerConfig);
+        return new CasClientImpl(config, asyncHttpClient, fetcher);
+    }
+}
@@ -0,0 +1,215 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process CAS and downstream service for load tests.
+ *
+ * CAS ({@code /cas}) grants tickets on its own thread pool. The downstream service ({@code /service}) answers on
+ * {@code serviceThreads} threads after {@code serviceTimeMs}, so it saturates at
+ * {@code serviceThreads * 1000 / serviceTimeMs} requests per second and queues the rest, like an overloaded backend.
+ * It only accepts the sessions it has handed out and answers 401 to others, like a service behind CAS.
+ *
+ * The behaviour can be changed while a test runs: CAS latency and failure rate, the service failure rate, and
+ * invalidating all sessions at once, e.g. to reproduce a session expiry storm or a CAS outage.
+ */
+public class StubCasServer implements AutoCloseable {
+
+    public static final String SESSION_COOKIE = "JSESSIONID";
+    private static final int CAS_THREADS = 16;
+
+    static {
+        // without this the JDK server's separate header and body writes wait for delayed ACKs, ~40 ms per response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer casServer;
+    private final HttpServer serviceServer;
+    private final ExecutorService casExecutor;
+    private final ExecutorService serviceExecutor;
+    private final long serviceTimeMs;
+
+    public final AtomicInteger ticketGrantingTickets = new AtomicInteger();
+    public final AtomicInteger serviceTickets = new AtomicInteger();
+    public final AtomicInteger sessions = new AtomicInteger();
+    public final AtomicInteger failedCasCalls = new AtomicInteger();
+    public final AtomicInteger serviceRequests = new AtomicInteger();
+    public final AtomicInteger rejectedSessions = new AtomicInteger();
+
+    private final Set<String> validSessions = ConcurrentHashMap.newKeySet();
+    private volatile long casLatencyMs = 0;
+    private volatile double casFailureRate = 0;
+    private volatile double serviceFailureRate = 0;
+
+    public StubCasServer(int serviceThreads, long serviceTimeMs) throws IOException {
+        this.serviceTimeMs = serviceTimeMs;
+        this.casExecutor = Executors.newFixedThreadPool(CAS_THREADS);
+        this.serviceExecutor = Executors.newFixedThreadPool(serviceThreads);
+
+        this.casServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        this.casServer.createContext("/cas/v1/tickets", this::handleTickets);
+        this.casServer.setExecutor(casExecutor);
+
+        this.serviceServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        this.serviceServer.createContext("/service/j_spring_cas_security_check", this::handleSession);
+        this.serviceServer.createContext("/service", this::handleService);
+        this.serviceServer.setExecutor(serviceExecutor);
+
+        this.casServer.start();
+        this.serviceServer.start();
+    }
+
+    public String casUrl() {
+        return String.format("http://127.0.0.1:%s/cas", casServer.getAddress().getPort());
+    }
+
+    public String serviceUrl() {
+        return String.format("http://127.0.0.1:%s/service", serviceServer.getAddress().getPort());
+    }
+
+    public CasConfig.CasConfigBuilder configBuilder() {
+        return new CasConfig.CasConfigBuilder("user", "pass", casUrl(), serviceUrl(), "CSRF", "load-test", "/j_spring_cas_security_check")
+                .setJsessionName(SESSION_COOKIE);
+    }
+
+    /** Delays every CAS response, e.g. to simulate a slow CAS. */
+    public StubCasServer casLatency(long ms) {
+        this.casLatencyMs = ms;
+        return this;
+    }
+
+    /** Fails this fraction of CAS calls with 500, 1.0 for an outage. */
+    public StubCasServer casFailureRate(double rate) {
+        this.casFailureRate = rate;
+        return this;
+    }
+
+    /** Fails this fraction of service calls with 500. */
+    public StubCasServer serviceFailureRate(double rate) {
+        this.serviceFailureRate = rate;
+        return this;
+    }
+
+    /** Forgets all sessions, so that every client has to log in again, like after a service restart. */
+    public StubCasServer invalidateSessions() {
+        validSessions.clear();
+        return this;
+    }
+
+    /** @return all CAS calls: TGTs, service tickets, session exchanges and failed calls */
+    public int casCalls() {
+        return ticketGrantingTickets.get() + serviceTickets.get() + sessions.get() + failedCasCalls.get();
+    }
+
+    private boolean casFails(HttpExchange exchange) throws IOException {
+        sleep(casLatencyMs);
+        if (ThreadLocalRandom.current().nextDouble() < casFailureRate) {
+            failedCasCalls.incrementAndGet();
+            respond(exchange, 500, "CAS unavailable");
+            return true;
+        }
+        return false;
+    }
+
+    private void handleTickets(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        if (casFails(exchange)) {
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path.endsWith("/tickets")) {
+            String tgt = "TGT-" + ticketGrantingTickets.incrementAndGet();
+            exchange.getResponseHeaders().add("Location", casUrl() + "/v1/tickets/" + tgt);
+            respond(exchange, 201, "");
+        } else {
+            respond(exchange, 200, "ST-" + serviceTickets.incrementAndGet());
+        }
+    }
+
+    private void handleSession(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        String session = "session-" + sessions.incrementAndGet();
+        validSessions.add(session);
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; Path=/");
+        respond(exchange, 200, "");
+    }
+
+    private void handleService(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        serviceRequests.incrementAndGet();
+        String session = sessionOf(exchange);
+        if (session == null || !validSessions.contains(session)) {
+            rejectedSessions.incrementAndGet();
+            respond(exchange, 401, "");
+            return;
+        }
+        sleep(serviceTimeMs);
+        if (ThreadLocalRandom.current().nextDouble() < serviceFailureRate) {
+            respond(exchange, 500, "");
+            return;
+        }
+        respond(exchange, 200, "{\"ok\":true}");
+    }
+
+    private static String sessionOf(HttpExchange exchange) {
+        List<String> cookieHeaders = exchange.getRequestHeaders().get("Cookie");
+        if (cookieHeaders == null) {
+            return null;
+        }
+        for (String header : cookieHeaders) {
+            for (String cookie : header.split(";")) {
+                String[] nameAndValue = cookie.trim().split("=", 2);
+                if (nameAndValue.length == 2 && SESSION_COOKIE.equals(nameAndValue[0])) {
+                    return nameAndValue[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            body.readAllBytes();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        casServer.stop(0);
+        serviceServer.stop(0);
+        casExecutor.shutdownNow();
+        serviceExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,212 @@
+package fi.vm.sade.javautils.nio.cas.benchmarks;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process downstream service over TLS that speaks HTTP/2 and HTTP/1.1, negotiated with ALPN, for comparing the two.
+ *
+ * It hands out sessions at {@code /service/j_spring_cas_security_check} like {@link StubCasServer} and answers other
+ * requests with a session after {@code serviceTimeMs}, without occupying a thread meanwhile, so that the number of
+ * connections and the client are what limit the throughput rather than the server. CAS itself is left to
+ * {@link StubCasServer}. The certificate is self-signed, so the client has to trust any certificate.
+ */
+public class TlsServiceStub implements AutoCloseable {
+
+    private static final String PASSWORD = "benchmark";
+
+    private final EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+    private final Channel serverChannel;
+    private final long serviceTimeMs;
+    private final long maxConcurrentStreams;
+    private final Set<String> validSessions = ConcurrentHashMap.newKeySet();
+
+    public final AtomicInteger http1Connections = new AtomicInteger();
+    public final AtomicInteger http2Connections = new AtomicInteger();
+    public final AtomicInteger serviceRequests = new AtomicInteger();
+    public final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * @param maxConcurrentStreams the limit of concurrent streams per HTTP/2 connection the service announces
+     */
+    public TlsServiceStub(long serviceTimeMs, long maxConcurrentStreams) throws Exception {
+        this.serviceTimeMs = serviceTimeMs;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        SslContext sslContext = SslContextBuilder.forServer(selfSignedKeyManager())
+                .sslProvider(SslProvider.JDK)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2,
+                        ApplicationProtocolNames.HTTP_1_1))
+                .build();
+        this.serverChannel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(sslContext.newHandler(channel.alloc()), new Negotiation());
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+
+    public String serviceUrl() {
+        return String.format("https://127.0.0.1:%s/service", ((InetSocketAddress) serverChannel.localAddress()).getPort());
+    }
+
+    /**
+     * A PKCS12 key store with a self-signed certificate for 127.0.0.1, generated with the JDK's keytool.
+     */
+    private static KeyManagerFactory selfSignedKeyManager() throws Exception {
+        Path keyStore = Files.createTempFile("tls-service-stub", ".p12");
+        Files.delete(keyStore);
+        try {
+            Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+            Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "stub", "-keyalg", "EC",
+                    "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1", "-validity", "1",
+                    "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD)
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("keytool failed: " + output);
+            }
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(keyStore)) {
+                store.load(in, PASSWORD.toCharArray());
+            }
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(store, PASSWORD.toCharArray());
+            return factory;
+        } finally {
+            Files.deleteIfExists(keyStore);
+        }
+    }
+
+    private final class Negotiation extends ApplicationProtocolNegotiationHandler {
+        Negotiation() {
+            super(ApplicationProtocolNames.HTTP_1_1);
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                http2Connections.incrementAndGet();
+                pipeline.addLast(Http2FrameCodecBuilder.forServer()
+                                .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(maxConcurrentStreams))
+                                .build(),
+                        new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                            @Override
+                            protected void initChannel(Http2StreamChannel stream) {
+                                stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true),
+                                        new HttpObjectAggregator(1 << 20),
+                                        new Handler());
+                            }
+                        }));
+            } else {
+                http1Connections.incrementAndGet();
+                pipeline.addLast(new HttpServerCodec(), new HttpObjectAggregator(1 << 20), new Handler());
+            }
+        }
+    }
+
+    private final class Handler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            if (request.uri().startsWith("/service/j_spring_cas_security_check")) {
+                String session = "session-" + sessions.incrementAndGet();
+                validSessions.add(session);
+                FullHttpResponse response = response(HttpResponseStatus.OK, "");
+                response.headers().add(HttpHeaderNames.SET_COOKIE, StubCasServer.SESSION_COOKIE + "=" + session + "; Path=/");
+                ctx.writeAndFlush(response);
+                return;
+            }
+            serviceRequests.incrementAndGet();
+            if (!validSessions.contains(sessionOf(request))) {
+                ctx.writeAndFlush(response(HttpResponseStatus.UNAUTHORIZED, ""));
+                return;
+            }
+            ctx.executor().schedule(() -> ctx.writeAndFlush(response(HttpResponseStatus.OK, "{\"ok\":true}")),
+                    serviceTimeMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private static String sessionOf(FullHttpRequest request) {
+        for (String header : request.headers().getAll(HttpHeaderNames.COOKIE)) {
+            for (Cookie cookie : ServerCookieDecoder.LAX.decode(header)) {
+                if (StubCasServer.SESSION_COOKIE.equals(cookie.name())) {
+                    return cookie.value();
+                }
+            }
+        }
+        return "";
+    }
+
+    private static FullHttpResponse response(HttpResponseStatus status, String body) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    @Override
+    public void close() {
+        serverChannel.close().syncUninterruptibly();
+        bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+}
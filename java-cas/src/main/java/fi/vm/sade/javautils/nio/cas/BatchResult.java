@@ -0,0 +1,66 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.asynchttpclient.Request;
+
+/**
+ * The outcome of one request of a batch, see {@link CasClientHelper#executeAll}: either a value or the failure of
+ * that request alone.
+ */
+public final class BatchResult<T> {
+
+    private final int index;
+    private final Request request;
+    private final T value;
+    private final Throwable failure;
+
+    private BatchResult(int index, Request request, T value, Throwable failure) {
+        this.index = index;
+        this.request = request;
+        this.value = value;
+        this.failure = failure;
+    }
+
+    public static <T> BatchResult<T> success(int index, Request request, T value) {
+        return new BatchResult<>(index, request, value, null);
+    }
+
+    public static <T> BatchResult<T> failure(int index, Request request, Throwable failure) {
+        return new BatchResult<>(index, request, null, failure);
+    }
+
+    /**
+     * @return position of the request in the batch
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    /**
+     * @return the value, or null if the request failed
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return why the request failed, or null if it succeeded
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess()
+                ? String.format("BatchResult(index = %s, url = %s, value = %s)", index, request.getUrl(), value)
+                : String.format("BatchResult(index = %s, url = %s, failure = %s)", index, request.getUrl(), failure);
+    }
+}
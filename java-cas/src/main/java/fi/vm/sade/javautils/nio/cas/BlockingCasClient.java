@@ -0,0 +1,120 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Synchronous calls through a {@link CasClient}, for code that runs each request on its own thread, e.g. a virtual
+ * thread per request.
+ *
+ * The calling thread waits on the future of the asynchronous client directly: there is no executor in between, and
+ * waiting parks the thread without holding a monitor, so a virtual thread is unmounted from its carrier while the
+ * request is in flight. Failures are thrown as they are, like {@link java.net.http.HttpClient#send}: unchecked
+ * exceptions and {@link IOException}s unwrapped from {@link ExecutionException} and {@link CompletionException}, the
+ * request timeout as {@link HttpTimeoutException} and other checked exceptions wrapped in an {@link IOException}.
+ * An interrupted call cancels the request and throws {@link InterruptedException}.
+ */
+public class BlockingCasClient implements AutoCloseable {
+
+    private final CasClient client;
+
+    public BlockingCasClient(CasClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @return the asynchronous client the calls go through
+     */
+    public CasClient getAsyncClient() {
+        return client;
+    }
+
+    public Response execute(Request request) throws IOException, InterruptedException {
+        return await(client.execute(request));
+    }
+
+    public Response executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) throws IOException, InterruptedException {
+        return await(client.executeAndRetryWithCleanSessionOnStatusCodes(request, statusCodesToRetry));
+    }
+
+    public <T> T executeStreaming(Request request, AsyncHandler<T> handler) throws IOException, InterruptedException {
+        return await(client.executeStreaming(request, handler));
+    }
+
+    public Response executeToChannel(Request request, WritableByteChannel channel) throws IOException, InterruptedException {
+        return await(client.executeToChannel(request, channel));
+    }
+
+    public Response executeToFile(Request request, Path file) throws IOException, InterruptedException {
+        return await(client.executeToFile(request, file));
+    }
+
+    public UserDetails validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) throws IOException, InterruptedException {
+        return await(client.validateServiceTicketWithVirkailijaUserDetails(service, ticket));
+    }
+
+    public HashMap<String, String> validateServiceTicketWithOppijaAttributes(String service, String ticket) throws IOException, InterruptedException {
+        return await(client.validateServiceTicketWithOppijaAttributes(service, ticket));
+    }
+
+    /**
+     * Waits for {@link CasClient#warmUp}.
+     */
+    public void warmUp() throws IOException, InterruptedException {
+        await(client.warmUp());
+    }
+
+    /**
+     * Closes the asynchronous client, see {@link CasClient#close}.
+     */
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof TimeoutException) {
+            HttpTimeoutException timeout = new HttpTimeoutException("Request timed out");
+            timeout.initCause(cause);
+            return timeout;
+        }
+        return new IOException(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,172 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.impl.CasUtils;
+import fi.vm.sade.javautils.nio.cas.impl.ResponseCache;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the responses of GET requests as the {@code Cache-Control} and {@code Expires} headers of the service allow.
+ * A fresh response is returned without a request. A stale one with an {@code ETag} or {@code Last-Modified} is
+ * revalidated with {@code If-None-Match} or {@code If-Modified-Since}, and returned again if the service answers
+ * {@code 304 Not Modified}. The cache holds at most {@code maxBytes} of responses and evicts the least recently used.
+ *
+ * The key is the URL together with the cookies and the {@code Authorization} header set by the caller, so callers
+ * identifying themselves differently do not share responses. The CAS session is not part of the key, as the session
+ * cookie is added by the wrapped client after this cache has been consulted: the cache belongs to the one CAS
+ * identity, i.e. the service and credentials, of the client it wraps, and its responses outlive a renewed session of
+ * that identity. Responses that set cookies, responses marked {@code no-store} and requests with a body are not
+ * cached, and requests marked {@code no-store} or {@code no-cache} bypass the cache.
+ * {@link #executeAndRetryWithCleanSessionOnStatusCodes} and streamed requests are passed through.
+ *
+ * Every caller gets the same {@link Response}; its body accessors build a new copy of the body on every call.
+ * Accesses are reported to the metrics listener as hits and misses of the {@value #CACHE_NAME} cache.
+ */
+public class CachingCasClient implements CasClient {
+
+    public static final String CACHE_NAME = "responseCache";
+
+    private final CasClient delegate;
+    private final CasMetricsListener metrics;
+    private final ResponseCache cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    public CachingCasClient(CasClient delegate, long maxBytes) {
+        this(delegate, maxBytes, CasMetricsListener.NOOP);
+    }
+
+    public CachingCasClient(CasClient delegate, long maxBytes, CasMetricsListener metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.cache = new ResponseCache(maxBytes);
+    }
+
+    /** GET requests answered from the cache without contacting the service. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** GET requests sent to the service without a cached response to revalidate. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Stale responses the service confirmed unchanged with {@code 304 Not Modified}. */
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    public long getSizeBytes() {
+        return cache.getSizeBytes();
+    }
+
+    @Override
+    public CompletableFuture<Response> execute(Request request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod()) || CasUtils.hasBody(request) || bypassesCache(request)) {
+            return delegate.execute(request);
+        }
+        String key = key(request);
+        ResponseCache.Entry entry = cache.get(key, request);
+        if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+            hits.increment();
+            metrics.cacheAccessed(CACHE_NAME, true);
+            return CompletableFuture.completedFuture(entry.response);
+        }
+        metrics.cacheAccessed(CACHE_NAME, false);
+        if (entry == null || !entry.canRevalidate()) {
+            misses.increment();
+            CompletableFuture<Response> response = delegate.execute(request);
+            return CasUtils.cancelsSource(response.thenApply(r -> {
+                cache.put(key, request, r);
+                return r;
+            }), response);
+        }
+        CompletableFuture<Response> revalidation = delegate.execute(conditional(request, entry));
+        return CasUtils.cancelsSource(revalidation.thenApply(response -> {
+            if (response.getStatusCode() == 304) {
+                revalidations.increment();
+                cache.revalidated(key, entry, response);
+                return entry.response;
+            }
+            cache.put(key, request, response);
+            return response;
+        }), revalidation);
+    }
+
+    @Override
+    public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
+        return delegate.executeAndRetryWithCleanSessionOnStatusCodes(request, statusCodesToRetry);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeStreaming(Request request, AsyncHandler<T> handler) {
+        return delegate.executeStreaming(request, handler);
+    }
+
+    @Override
+    public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
+        return delegate.validateServiceTicketWithVirkailijaUserDetails(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
+        return delegate.validateServiceTicketWithOppijaAttributes(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        return delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private static boolean bypassesCache(Request request) {
+        String cacheControl = request.getHeaders().get("Cache-Control");
+        if (cacheControl == null) {
+            return false;
+        }
+        String directives = cacheControl.toLowerCase(Locale.ROOT);
+        return directives.contains("no-store") || directives.contains("no-cache");
+    }
+
+    private static String key(Request request) {
+        StringBuilder key = new StringBuilder(request.getUrl());
+        for (Cookie cookie : request.getCookies()) {
+            key.append('\n').append(cookie.name()).append('=').append(cookie.value());
+        }
+        String authorization = request.getHeaders().get("Authorization");
+        if (authorization != null) {
+            key.append("\nAuthorization: ").append(authorization);
+        }
+        return key.toString();
+    }
+
+    private static Request conditional(Request request, ResponseCache.Entry entry) {
+        RequestBuilder builder = request.toBuilder();
+        if (entry.etag != null) {
+            builder.setHeader("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            builder.setHeader("If-Modified-Since", entry.lastModified);
+        }
+        return builder.build();
+    }
+}
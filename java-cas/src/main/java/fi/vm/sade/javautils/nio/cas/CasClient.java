@@ -1,14 +1,19 @@
 package fi.vm.sade.javautils.nio.cas;
 
+import fi.vm.sade.javautils.nio.cas.impl.ChannelBodyHandler;
+import fi.vm.sade.javautils.nio.cas.impl.ReplayedResponse;
+import org.asynchttpclient.AsyncHandler;
 import org.asynchttpclient.Request;
 import org.asynchttpclient.Response;
 
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
-public interface CasClient {
+public interface CasClient extends AutoCloseable {
 
     CompletableFuture<Response> execute(Request request);
 
@@ -18,6 +23,56 @@ public interface CasClient {
 
     CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket);
 
+    /**
+     * Like {@link #execute}, but hands the response to {@code handler} as it arrives instead of buffering it, for large
+     * responses. The parts are handed over on the I/O thread one at a time, and the next one is not read before the
+     * handler has returned, so a slow handler slows down the response instead of piling it up in memory. The request
+     * is retried like by {@link #execute} until the first part of a response has reached the handler, and not after.
+     *
+     * The default buffers the response with {@link #execute} and then hands it to the handler, the body as one part,
+     * for clients that cannot stream.
+     */
+    default <T> CompletableFuture<T> executeStreaming(Request request, AsyncHandler<T> handler) {
+        return ReplayedResponse.replay(execute(request), handler);
+    }
+
+    /**
+     * Streams the body of a 2xx response to the blocking {@code channel}, which is left open. The returned response
+     * has the status and headers only, and completes once the body has been written. The body of any other response
+     * is not written but kept in the response. The channel is written on a thread of its own, not on the I/O thread,
+     * and the connection is not read while the writes fall behind; over HTTP/2 this holds up the other streams of the
+     * connection too.
+     */
+    default CompletableFuture<Response> executeToChannel(Request request, WritableByteChannel channel) {
+        return ChannelBodyHandler.toChannel(channel).execute(this, request);
+    }
+
+    /**
+     * Streams the body of a 2xx response to {@code file} like {@link #executeToChannel}. The body is written to a
+     * temporary file next to {@code file}, which is moved over {@code file} once the whole body is there and removed
+     * if the response fails, so {@code file} is never left partly written.
+     */
+    default CompletableFuture<Response> executeToFile(Request request, Path file) {
+        return ChannelBodyHandler.toFile(file).execute(this, request);
+    }
+
+    /**
+     * Prepares the client for its first requests, e.g. right after startup, so that they do not wait for the CAS
+     * login. The future completes when the client is ready and fails if it could not log in, so a readiness probe
+     * can wait for it. A client that needs no preparation is ready at once.
+     */
+    default CompletableFuture<Void> warmUp() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Stops the background work of the client, such as proactive refreshes, and closes the HTTP client if the client
+     * created it. Requests still in flight complete.
+     */
+    @Override
+    default void close() {
+    }
+
     default HashMap<String, String> validateServiceTicketWithOppijaAttributesBlocking(String service, String ticket) throws ExecutionException, InterruptedException {
         return validateServiceTicketWithOppijaAttributes(service, ticket).get();
     }
@@ -2,6 +2,7 @@ package fi.vm.sade.javautils.nio.cas;
 
 import fi.vm.sade.javautils.nio.cas.impl.CasClientImpl;
 import fi.vm.sade.javautils.nio.cas.impl.CasSessionFetcher;
+import fi.vm.sade.javautils.nio.cas.impl.ConcurrencyLimiters;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.asynchttpclient.AsyncHttpClient;
 import org.asynchttpclient.DefaultAsyncHttpClientConfig;
@@ -12,27 +13,84 @@ import static org.asynchttpclient.Dsl.asyncHttpClient;
 
 public class CasClientBuilder {
 
+    /**
+     * The client should be built without a cookie store ({@code setCookieStore(null)}). If it has one, the store is
+     * cleared before every request to keep its cookies out of the CAS and service calls, which races with other
+     * requests using the same client. {@link CasClient#close} leaves {@code asyncHttpClient} open.
+     */
     public static CasClient buildFromConfigAndHttpClient(CasConfig config, AsyncHttpClient asyncHttpClient) {
+        return build(config, asyncHttpClient, false);
+    }
+
+    private static CasClient build(CasConfig config, AsyncHttpClient asyncHttpClient, boolean closesHttpClient) {
         CasSessionFetcher casSessionFetcher =
         new CasSessionFetcher(
                 config,
                 asyncHttpClient,
                 config.getSessionTicketValidMs(),
                 config.getTicketGrantingTicketValidMs());
-        return new CasClientImpl(config, asyncHttpClient, casSessionFetcher);
+        ConcurrencyLimiters concurrencyLimiters = config.getMaxConcurrency() == null
+                ? null
+                : new ConcurrencyLimiters(config.getMaxConcurrency(),
+                        config.getMaxQueuedRequests(),
+                        config.getConcurrencyLatencyThresholdMs());
+        CasClient casClient = new CasClientImpl(config, asyncHttpClient, casSessionFetcher, closesHttpClient, concurrencyLimiters);
+        if (concurrencyLimiters != null) {
+            // the slot is held for the whole request, but the limit is adjusted with each attempt sent
+            casClient = new ConcurrencyLimitedCasClient(casClient, concurrencyLimiters);
+        }
+        if (config.getHedgeLatencyPercentile() != null) {
+            // outside the concurrency limit, so that hedges wait for a slot like any other request
+            casClient = new HedgingCasClient(casClient,
+                    config.getHedgeLatencyPercentile(),
+                    config.getMaxHedgeRatio());
+        }
+        if (config.isGetRequestsCoalesced()) {
+            // outside hedging, so that a coalesced request is hedged and limited once
+            casClient = new CoalescingCasClient(casClient, config.getMetricsListener());
+        }
+        if (config.getResponseCacheMaxBytes() != null) {
+            // outside coalescing, so that only the misses and revalidations are coalesced
+            casClient = new CachingCasClient(casClient, config.getResponseCacheMaxBytes(), config.getMetricsListener());
+        }
+        return casClient;
     }
 
+    /**
+     * Builds a client with an HTTP client of its own, which {@link CasClient#close} closes.
+     */
     public static CasClient build(CasConfig config) {
+        return build(config, asyncHttpClient(httpClientConfig(config)), true);
+    }
+
+    /**
+     * The configuration {@link #build(CasConfig)} creates its HTTP client with: daemon threads, no cookie store and
+     * the HTTP/2 settings of {@code config}. Use it to adjust e.g. TLS or timeouts, and pass the client to
+     * {@link #buildFromConfigAndHttpClient}.
+     */
+    public static DefaultAsyncHttpClientConfig.Builder httpClientConfig(CasConfig config) {
         ThreadFactory factory = new BasicThreadFactory.Builder()
                 .namingPattern("async-cas-client-thread-%d")
                 .daemon(true)
                 .priority(Thread.NORM_PRIORITY)
                 .build();
 
-        return buildFromConfigAndHttpClient(config, asyncHttpClient(new DefaultAsyncHttpClientConfig.Builder()
+        DefaultAsyncHttpClientConfig.Builder builder = new DefaultAsyncHttpClientConfig.Builder()
                 .setThreadFactory(factory)
-                .setHttp2Enabled(false)
-                .build()));
+                .setHttp2Enabled(config.isHttp2Enabled())
+                .setHttp2CleartextEnabled(config.isHttp2Cleartext())
+                .setCookieStore(null);
+        if (config.getHttp2MaxConcurrentStreams() != null) {
+            builder.setHttp2MaxConcurrentStreams(config.getHttp2MaxConcurrentStreams());
+        }
+        return builder;
+    }
+
+    /**
+     * Builds a client like {@link #build(CasConfig)}, for synchronous calls.
+     */
+    public static BlockingCasClient buildBlocking(CasConfig config) {
+        return new BlockingCasClient(build(config));
     }
 
 }
@@ -1,12 +1,43 @@
 package fi.vm.sade.javautils.nio.cas;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import fi.vm.sade.javautils.nio.cas.impl.BatchRunner;
+import fi.vm.sade.javautils.nio.cas.impl.CasUtils;
+import io.netty.handler.codec.http.HttpUtil;
 import org.asynchttpclient.Request;
 import org.asynchttpclient.RequestBuilder;
 import org.asynchttpclient.Response;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * JSON requests through a {@link CasClient}. Response bodies are parsed straight from the response bytes, on the
+ * given executor (the common pool by default), or on the calling thread for the {@code ...Sync} methods. Generic
+ * types are given as a {@link TypeToken}, e.g. {@code new TypeToken<List<Item>>() {}}. The {@code doGetForEach}
+ * methods hand the elements of a JSON array to a consumer one by one, without building a list of them.
+ *
+ * The {@code ...All} methods run a batch of requests with at most {@code maxConcurrency} of them in flight, all with
+ * the session of the client. Each request gets its own {@link BatchResult}, and the returned future lists them in the
+ * order of the requests. {@code onCompletion} is called with each of them as soon as it is ready. Cancelling the
+ * returned future, or timing it out with {@link CompletableFuture#orTimeout}, stops the batch and cancels the requests
+ * in flight.
+ */
 public class CasClientHelper {
 
     private static final String HTTP_METHOD_DELETE = "DELETE";
@@ -15,15 +46,16 @@ public class CasClientHelper {
     private static final String HTTP_METHOD_PUT = "PUT";
 
     private final CasClient client;
+    private final BlockingCasClient blockingClient;
     private final Gson gson;
 
     public CasClientHelper(CasClient client) {
-        this.client = client;
-        this.gson = new Gson();
+        this(client, new Gson());
     }
 
     public CasClientHelper(CasClient client, Gson gson) {
         this.client = client;
+        this.blockingClient = new BlockingCasClient(client);
         this.gson = gson;
     }
 
@@ -44,26 +76,71 @@ public class CasClientHelper {
         return requestBuilder.build();
     }
 
-    private <T> T parseJson(Response response, Class<T> responseTypeClass) {
-        return gson.fromJson(response.getResponseBody(), responseTypeClass);
+    private static Reader bodyReader(Response response) {
+        // decoded as Gson reads it, without first building a String of the whole body
+        return new InputStreamReader(response.getResponseBodyAsStream(),
+                HttpUtil.getCharset(response.getContentType(), StandardCharsets.UTF_8));
+    }
+
+    private <T> T parseJson(Response response, TypeToken<T> responseType) {
+        try (Reader body = bodyReader(response)) {
+            return gson.fromJson(body, responseType.getType());
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
     }
 
-    private <T> T executeSyncWithType(Request request, Class<T> responseTypeClass) {
+    private <T> long parseJsonArray(Response response, TypeToken<T> elementType, Consumer<? super T> consumer) {
+        TypeAdapter<T> adapter = gson.getAdapter(elementType);
+        try (JsonReader reader = gson.newJsonReader(bodyReader(response))) {
+            long elements = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                consumer.accept(adapter.read(reader));
+                elements++;
+            }
+            reader.endArray();
+            return elements;
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    private <T> T parseSync(Request request, Response response, Function<Response, T> parser) {
         try {
-            return executeWithType(request, responseTypeClass).get();
+            return parser.apply(response);
         } catch (Exception e) {
             throw new RuntimeException(
                     String.format("Pyyntö epäonnistui | Request: %s", request), e);
         }
     }
 
-    private <T> CompletableFuture<T> executeWithType(Request request, Class<T> responseTypeClass) {
-        return execute(request).thenApplyAsync(response -> parseJson(response, responseTypeClass));
+    private <T> T executeSyncWithType(Request request, TypeToken<T> responseType) {
+        // parsed on the calling thread, not handed over to another executor
+        return parseSync(request, executeSync(request), response -> parseJson(response, responseType));
+    }
+
+    private <T> CompletableFuture<T> executeWithType(Request request, TypeToken<T> responseType, Executor executor) {
+        CompletableFuture<Response> response = execute(request);
+        return CasUtils.cancelsSource(response.thenApplyAsync(r -> parseJson(r, responseType), executor), response);
+    }
+
+    @FunctionalInterface
+    private interface BlockingCall {
+        Response call() throws Exception;
     }
 
     private Response executeSync(Request request) {
+        return executeSync(request, () -> blockingClient.execute(request));
+    }
+
+    private Response executeSync(Request request, BlockingCall call) {
         try {
-            return execute(request).get();
+            return call.call();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    String.format("Pyyntö keskeytettiin | Request: %s", request), e);
         } catch (Exception e) {
             throw new RuntimeException(
                     String.format("Pyyntö epäonnistui | Request: %s", request), e);
@@ -75,13 +152,58 @@ public class CasClientHelper {
     }
 
     public <T> T doGetSync(String url, Class<T> responseTypeClass) {
+        return doGetSync(url, TypeToken.get(responseTypeClass));
+    }
+
+    public <T> T doGetSync(String url, TypeToken<T> responseType) {
         Request request = createRequest(HTTP_METHOD_GET, url);
-        return executeSyncWithType(request, responseTypeClass);
+        return executeSyncWithType(request, responseType);
     }
 
     public <T> CompletableFuture<T> doGet(String url, Class<T> responseTypeClass) {
+        return doGet(url, TypeToken.get(responseTypeClass), ForkJoinPool.commonPool());
+    }
+
+    public <T> CompletableFuture<T> doGet(String url, Class<T> responseTypeClass, Executor executor) {
+        return doGet(url, TypeToken.get(responseTypeClass), executor);
+    }
+
+    public <T> CompletableFuture<T> doGet(String url, TypeToken<T> responseType) {
+        return doGet(url, responseType, ForkJoinPool.commonPool());
+    }
+
+    public <T> CompletableFuture<T> doGet(String url, TypeToken<T> responseType, Executor executor) {
+        Request request = createRequest(HTTP_METHOD_GET, url);
+        return executeWithType(request, responseType, executor);
+    }
+
+    /**
+     * Parses the response as a JSON array and hands its elements to {@code consumer} one by one, on {@code executor}.
+     *
+     * @return the number of elements
+     */
+    public <T> CompletableFuture<Long> doGetForEach(String url, Class<T> elementTypeClass, Consumer<? super T> consumer, Executor executor) {
+        return doGetForEach(url, TypeToken.get(elementTypeClass), consumer, executor);
+    }
+
+    public <T> CompletableFuture<Long> doGetForEach(String url, TypeToken<T> elementType, Consumer<? super T> consumer, Executor executor) {
+        Request request = createRequest(HTTP_METHOD_GET, url);
+        CompletableFuture<Response> response = execute(request);
+        return CasUtils.cancelsSource(response.thenApplyAsync(r -> parseJsonArray(r, elementType, consumer), executor), response);
+    }
+
+    /**
+     * Parses the response as a JSON array and hands its elements to {@code consumer} one by one, on the calling thread.
+     *
+     * @return the number of elements
+     */
+    public <T> long doGetForEachSync(String url, Class<T> elementTypeClass, Consumer<? super T> consumer) {
+        return doGetForEachSync(url, TypeToken.get(elementTypeClass), consumer);
+    }
+
+    public <T> long doGetForEachSync(String url, TypeToken<T> elementType, Consumer<? super T> consumer) {
         Request request = createRequest(HTTP_METHOD_GET, url);
-        return executeWithType(request, responseTypeClass);
+        return parseSync(request, executeSync(request), response -> parseJsonArray(response, elementType, consumer));
     }
 
     public Response doGetSync(String url) {
@@ -94,14 +216,45 @@ public class CasClientHelper {
         return execute(request);
     }
 
+    /**
+     * Streams the body of a 2xx response to {@code file} without holding it in memory, see {@link CasClient#executeToFile}.
+     *
+     * @return the response, with the body of a non-2xx response only
+     */
+    public Response doGetToFileSync(String url, Path file) {
+        Request request = createRequest(HTTP_METHOD_GET, url);
+        return executeSync(request, () -> blockingClient.executeToFile(request, file));
+    }
+
+    public CompletableFuture<Response> doGetToFile(String url, Path file) {
+        Request request = createRequest(HTTP_METHOD_GET, url);
+        return client.executeToFile(request, file);
+    }
+
     public <R, T> T doPostSync(String url, R requestEntity, Class<T> responseTypeClass) {
+        return doPostSync(url, requestEntity, TypeToken.get(responseTypeClass));
+    }
+
+    public <R, T> T doPostSync(String url, R requestEntity, TypeToken<T> responseType) {
         Request request = createRequest(HTTP_METHOD_POST, url, requestEntity);
-        return executeSyncWithType(request, responseTypeClass);
+        return executeSyncWithType(request, responseType);
     }
 
     public <R, T> CompletableFuture<T> doPost(String url, R requestEntity, Class<T> responseTypeClass) {
+        return doPost(url, requestEntity, TypeToken.get(responseTypeClass), ForkJoinPool.commonPool());
+    }
+
+    public <R, T> CompletableFuture<T> doPost(String url, R requestEntity, Class<T> responseTypeClass, Executor executor) {
+        return doPost(url, requestEntity, TypeToken.get(responseTypeClass), executor);
+    }
+
+    public <R, T> CompletableFuture<T> doPost(String url, R requestEntity, TypeToken<T> responseType) {
+        return doPost(url, requestEntity, responseType, ForkJoinPool.commonPool());
+    }
+
+    public <R, T> CompletableFuture<T> doPost(String url, R requestEntity, TypeToken<T> responseType, Executor executor) {
         Request request = createRequest(HTTP_METHOD_POST, url, requestEntity);
-        return executeWithType(request, responseTypeClass);
+        return executeWithType(request, responseType, executor);
     }
 
     public <R> Response doPostSync(String url, R requestEntity) {
@@ -115,13 +268,29 @@ public class CasClientHelper {
     }
 
     public <R, T> T doPutSync(String url, R requestEntity, Class<T> responseTypeClass) {
+        return doPutSync(url, requestEntity, TypeToken.get(responseTypeClass));
+    }
+
+    public <R, T> T doPutSync(String url, R requestEntity, TypeToken<T> responseType) {
         Request request = createRequest(HTTP_METHOD_PUT, url, requestEntity);
-        return executeSyncWithType(request, responseTypeClass);
+        return executeSyncWithType(request, responseType);
     }
 
     public <R, T> CompletableFuture<T> doPut(String url, R requestEntity, Class<T> responseTypeClass) {
+        return doPut(url, requestEntity, TypeToken.get(responseTypeClass), ForkJoinPool.commonPool());
+    }
+
+    public <R, T> CompletableFuture<T> doPut(String url, R requestEntity, Class<T> responseTypeClass, Executor executor) {
+        return doPut(url, requestEntity, TypeToken.get(responseTypeClass), executor);
+    }
+
+    public <R, T> CompletableFuture<T> doPut(String url, R requestEntity, TypeToken<T> responseType) {
+        return doPut(url, requestEntity, responseType, ForkJoinPool.commonPool());
+    }
+
+    public <R, T> CompletableFuture<T> doPut(String url, R requestEntity, TypeToken<T> responseType, Executor executor) {
         Request request = createRequest(HTTP_METHOD_PUT, url, requestEntity);
-        return executeWithType(request, responseTypeClass);
+        return executeWithType(request, responseType, executor);
     }
 
     public <R> Response doPutSync(String url, R requestEntity) {
@@ -153,4 +322,30 @@ public class CasClientHelper {
         Request request = createRequest(HTTP_METHOD_DELETE, url);
         return execute(request);
     }
+
+    public <T> CompletableFuture<List<BatchResult<T>>> doGetAll(Collection<String> urls, Class<T> responseTypeClass, int maxConcurrency) {
+        return doGetAll(urls, TypeToken.get(responseTypeClass), maxConcurrency, result -> { });
+    }
+
+    public <T> CompletableFuture<List<BatchResult<T>>> doGetAll(Collection<String> urls, TypeToken<T> responseType, int maxConcurrency) {
+        return doGetAll(urls, responseType, maxConcurrency, result -> { });
+    }
+
+    public <T> CompletableFuture<List<BatchResult<T>>> doGetAll(Collection<String> urls, TypeToken<T> responseType, int maxConcurrency,
+                                                                Consumer<? super BatchResult<T>> onCompletion) {
+        List<Request> requests = urls.stream()
+                .map(url -> createRequest(HTTP_METHOD_GET, url))
+                .collect(Collectors.toList());
+        return new BatchRunner<T>(requests, maxConcurrency,
+                request -> executeWithType(request, responseType, ForkJoinPool.commonPool()), onCompletion).run();
+    }
+
+    public CompletableFuture<List<BatchResult<Response>>> executeAll(Collection<Request> requests, int maxConcurrency) {
+        return executeAll(requests, maxConcurrency, result -> { });
+    }
+
+    public CompletableFuture<List<BatchResult<Response>>> executeAll(Collection<Request> requests, int maxConcurrency,
+                                                                     Consumer<? super BatchResult<Response>> onCompletion) {
+        return new BatchRunner<>(List.copyOf(requests), maxConcurrency, this::execute, onCompletion).run();
+    }
 }
@@ -1,5 +1,11 @@
 package fi.vm.sade.javautils.nio.cas;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
@@ -15,9 +21,39 @@ public class CasConfig {
   private String sessionUrl;
   private String serviceTicketHeaderName;
   private long sessionTicketValidMs;
+  private Long adaptiveSessionTtlMinMs;
+  private Long adaptiveSessionTtlMaxMs;
   private long ticketGrantingTicketValidMs;
   private int numberOfRetries;
   private Long requestTimeoutMs;
+  private Double proactiveRefreshFraction;
+  private boolean ticketGrantingTicketShared;
+  private boolean serviceTicketPerRequest;
+  private int serviceTicketPoolSize;
+  private long pooledServiceTicketMaxAgeMs;
+  private Integer maxConcurrency;
+  private int maxQueuedRequests;
+  private long concurrencyLatencyThresholdMs;
+  private long retryBackoffBaseMs;
+  private long retryBackoffMaxMs;
+  private Double retryBudgetRatio;
+  private int retryBudgetMaxBurst;
+  private Map<Integer, RetryPolicy> retryPolicies;
+  private Double hedgeLatencyPercentile;
+  private double maxHedgeRatio;
+  private boolean getRequestsCoalesced;
+  private Float serviceCircuitBreakerFailureRateThreshold;
+  private float serviceCircuitBreakerSlowCallRateThreshold;
+  private long serviceCircuitBreakerSlowCallDurationMs;
+  private long serviceCircuitBreakerWaitInOpenStateMs;
+  private List<String> serviceCircuitBreakerRoutes;
+  private Long responseCacheMaxBytes;
+  private boolean http2Enabled;
+  private Integer http2MaxConcurrentStreams;
+  private boolean http2Cleartext;
+  private int warmUpConnections;
+  private SessionStore sessionStore;
+  private CasMetricsListener metricsListener;
 
   private CasConfig() {
   }
@@ -34,9 +70,39 @@ public class CasConfig {
     private String sessionUrl;
     private String serviceTicketHeaderName;
     private Optional<Long> sessionTicketValidMs = Optional.empty();
+    private Optional<Long> adaptiveSessionTtlMinMs = Optional.empty();
+    private Optional<Long> adaptiveSessionTtlMaxMs = Optional.empty();
     private Optional<Long> ticketGrantingTicketValidMs = Optional.empty();
     private Optional<Integer> numberOfRetries = Optional.empty();
     private Optional<Long> requestTimeoutMs = Optional.empty();
+    private Optional<Double> proactiveRefreshFraction = Optional.empty();
+    private boolean ticketGrantingTicketShared = false;
+    private boolean serviceTicketPerRequest = false;
+    private int serviceTicketPoolSize = 0;
+    private Optional<Long> pooledServiceTicketMaxAgeMs = Optional.empty();
+    private Optional<Integer> maxConcurrency = Optional.empty();
+    private int maxQueuedRequests = 0;
+    private long concurrencyLatencyThresholdMs = 0;
+    private long retryBackoffBaseMs = 0;
+    private long retryBackoffMaxMs = 0;
+    private Optional<Double> retryBudgetRatio = Optional.empty();
+    private int retryBudgetMaxBurst = 0;
+    private final Map<Integer, RetryPolicy> retryPolicies = new HashMap<>();
+    private Optional<Double> hedgeLatencyPercentile = Optional.empty();
+    private double maxHedgeRatio = 0;
+    private boolean getRequestsCoalesced = false;
+    private Optional<Float> serviceCircuitBreakerFailureRateThreshold = Optional.empty();
+    private float serviceCircuitBreakerSlowCallRateThreshold;
+    private long serviceCircuitBreakerSlowCallDurationMs;
+    private long serviceCircuitBreakerWaitInOpenStateMs;
+    private final List<String> serviceCircuitBreakerRoutes = new ArrayList<>();
+    private Optional<Long> responseCacheMaxBytes = Optional.empty();
+    private boolean http2Enabled = false;
+    private Optional<Integer> http2MaxConcurrentStreams = Optional.empty();
+    private boolean http2Cleartext = false;
+    private int warmUpConnections = 0;
+    private Optional<SessionStore> sessionStore = Optional.empty();
+    private Optional<CasMetricsListener> metricsListener = Optional.empty();
 
     public CasConfigBuilder(String username, String password, String casUrl, String serviceUrl, String csrf, String callerId, String serviceUrlSuffix) {
       this.username = username;
@@ -64,6 +130,21 @@ public class CasConfig {
       this.sessionTicketValidMs = Optional.of(unit.toMillis(duration));
       return this;
     }
+    /**
+     * Learns how long the service keeps sessions instead of trusting {@link #sessionTicketValid}, which becomes the
+     * initial value. When the service rejects a session with 401, the sessions are replaced a little before the age
+     * it had from then on; sessions that reach their validity time unrejected extend it. The learned value stays
+     * between {@code min} and {@code max} and is reported to {@link CasMetricsListener#sessionTtlChanged}. The
+     * period of {@link #proactiveRefresh} stays based on the initial value.
+     */
+    public CasConfigBuilder adaptiveSessionTtl(TimeUnit unit, long min, long max) {
+      if (min <= 0 || min > max) {
+        throw new IllegalArgumentException(String.format("min must be positive and at most max (%s), was %s", max, min));
+      }
+      this.adaptiveSessionTtlMinMs = Optional.of(unit.toMillis(min));
+      this.adaptiveSessionTtlMaxMs = Optional.of(unit.toMillis(max));
+      return this;
+    }
     public CasConfigBuilder ticketGrantingTicketValidMs(TimeUnit unit, long duration) {
       this.ticketGrantingTicketValidMs = Optional.of(unit.toMillis(duration));
       return this;
@@ -72,6 +153,228 @@ public class CasConfig {
       this.requestTimeoutMs = Optional.of(unit.toMillis(duration));
       return this;
     }
+    /**
+     * Renews the TGT and the session in the background every {@code fractionOfValidity} of their validity
+     * times, so that requests do not wait for a CAS login when the cached ones expire.
+     */
+    public CasConfigBuilder proactiveRefresh(double fractionOfValidity) {
+      if (!(fractionOfValidity > 0 && fractionOfValidity < 1)) {
+        throw new IllegalArgumentException("fractionOfValidity must be between 0 and 1, was " + fractionOfValidity);
+      }
+      this.proactiveRefreshFraction = Optional.of(fractionOfValidity);
+      return this;
+    }
+    /**
+     * Shares one TGT with every other client in this JVM that uses the same CAS URL and credentials.
+     */
+    public CasConfigBuilder shareTicketGrantingTicket() {
+      this.ticketGrantingTicketShared = true;
+      return this;
+    }
+    /**
+     * Sends a new service ticket with every request instead of a session cookie. Up to {@code maxPooledTickets}
+     * tickets are fetched ahead of time so that requests do not wait for CAS; 0 fetches a ticket for each request.
+     * The ticket is sent in the {@link #setServiceTicketHeaderName(String) service ticket header}, or as the
+     * {@code ticket} query parameter if no header is set.
+     */
+    public CasConfigBuilder serviceTicketPerRequest(int maxPooledTickets) {
+      if (maxPooledTickets < 0) {
+        throw new IllegalArgumentException("maxPooledTickets must not be negative, was " + maxPooledTickets);
+      }
+      this.serviceTicketPerRequest = true;
+      this.serviceTicketPoolSize = maxPooledTickets;
+      return this;
+    }
+    /**
+     * How long a pre-fetched service ticket may be used. Must be shorter than the service ticket lifetime of the
+     * CAS server; defaults to 3 seconds.
+     */
+    public CasConfigBuilder pooledServiceTicketMaxAge(TimeUnit unit, long duration) {
+      this.pooledServiceTicketMaxAgeMs = Optional.of(unit.toMillis(duration));
+      return this;
+    }
+    /**
+     * Limits the requests in flight to each target host with an adaptive limit of at most {@code maxConcurrency}.
+     * The limit grows while requests complete within {@code latencyThreshold} and shrinks when they are slower or
+     * fail. Up to {@code maxQueuedRequests} requests over the limit wait for a slot, the rest are rejected.
+     *
+     * @see ConcurrencyLimitedCasClient
+     */
+    public CasConfigBuilder adaptiveConcurrencyLimit(int maxConcurrency, int maxQueuedRequests, TimeUnit unit, long latencyThreshold) {
+      if (maxConcurrency < 1 || maxQueuedRequests < 0) {
+        throw new IllegalArgumentException(String.format("maxConcurrency must be positive and maxQueuedRequests not negative, were %s and %s", maxConcurrency, maxQueuedRequests));
+      }
+      this.maxConcurrency = Optional.of(maxConcurrency);
+      this.maxQueuedRequests = maxQueuedRequests;
+      this.concurrencyLatencyThresholdMs = unit.toMillis(latencyThreshold);
+      return this;
+    }
+    /**
+     * Waits before each retry for a random time between zero and {@code baseDelay * 2^(retry - 1)}, capped at
+     * {@code maxDelay}. Without this retries are sent immediately.
+     */
+    public CasConfigBuilder retryBackoff(TimeUnit unit, long baseDelay, long maxDelay) {
+      if (baseDelay < 0 || maxDelay < baseDelay) {
+        throw new IllegalArgumentException(String.format("baseDelay must not be negative or greater than maxDelay, were %s and %s", baseDelay, maxDelay));
+      }
+      this.retryBackoffBaseMs = unit.toMillis(baseDelay);
+      this.retryBackoffMaxMs = unit.toMillis(maxDelay);
+      return this;
+    }
+    /**
+     * Limits the retries of this client to {@code retryRatio} of its requests, with bursts of at most
+     * {@code maxRetryBurst} retries. Requests that would go over the budget fail with their last response or
+     * exception. Without this every request may be retried.
+     */
+    public CasConfigBuilder retryBudget(double retryRatio, int maxRetryBurst) {
+      if (retryRatio < 0 || maxRetryBurst < 1) {
+        throw new IllegalArgumentException(String.format("retryRatio must not be negative and maxRetryBurst must be positive, were %s and %s", retryRatio, maxRetryBurst));
+      }
+      this.retryBudgetRatio = Optional.of(retryRatio);
+      this.retryBudgetMaxBurst = maxRetryBurst;
+      return this;
+    }
+    /**
+     * Retries requests that got {@code statusCode} with the given policy. Status codes passed to
+     * {@link CasClient#executeAndRetryWithCleanSessionOnStatusCodes} and 401 for {@link CasClient#execute} are
+     * retried with a clean session up to {@link #setNumberOfRetries} times as before, whatever is configured here.
+     */
+    public CasConfigBuilder retryOnStatusCode(int statusCode, RetryPolicy policy) {
+      this.retryPolicies.put(statusCode, policy);
+      return this;
+    }
+    /**
+     * Sends a second, identical GET request when the first has not been answered within {@code latencyPercentile}
+     * (0-100) of the recent GET latencies, and uses whichever response comes first. At most {@code maxHedgeRatio}
+     * of the GET requests are hedged. Only for services whose GET requests are safe to send twice.
+     *
+     * @see HedgingCasClient
+     */
+    public CasConfigBuilder hedgeGetRequests(double latencyPercentile, double maxHedgeRatio) {
+      if (latencyPercentile <= 0 || latencyPercentile >= 100 || maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+        throw new IllegalArgumentException(String.format("latencyPercentile must be between 0 and 100 and maxHedgeRatio between 0 and 1, were %s and %s", latencyPercentile, maxHedgeRatio));
+      }
+      this.hedgeLatencyPercentile = Optional.of(latencyPercentile);
+      this.maxHedgeRatio = maxHedgeRatio;
+      return this;
+    }
+    /**
+     * Sends only one of concurrent GET requests for the same URL, and gives its response to all of them. Only for
+     * services whose GET responses do not depend on the request headers.
+     *
+     * @see CoalescingCasClient
+     */
+    public CasConfigBuilder coalesceGetRequests() {
+      this.getRequestsCoalesced = true;
+      return this;
+    }
+    /**
+     * Guards the service requests to each host with a circuit breaker. It opens when {@code failureRateThreshold}
+     * percent of the requests within 10 seconds fail or get a 5xx response, or {@code slowCallRateThreshold} percent
+     * take longer than {@code slowCallDuration}. For {@code waitInOpenState} after that requests fail at once with
+     * {@link fi.vm.sade.javautils.nio.cas.exceptions.CircuitBreakerOpenException} and are not retried, and then a few
+     * are let through to see if the service has recovered. State changes are reported to the metrics listener.
+     */
+    public CasConfigBuilder serviceCircuitBreaker(float failureRateThreshold, float slowCallRateThreshold, TimeUnit unit, long slowCallDuration, long waitInOpenState) {
+      if (!(failureRateThreshold > 0 && failureRateThreshold <= 100 && slowCallRateThreshold > 0 && slowCallRateThreshold <= 100)) {
+        throw new IllegalArgumentException(String.format("failureRateThreshold and slowCallRateThreshold must be between 0 and 100, were %s and %s", failureRateThreshold, slowCallRateThreshold));
+      }
+      if (slowCallDuration <= 0 || waitInOpenState <= 0) {
+        throw new IllegalArgumentException(String.format("slowCallDuration and waitInOpenState must be positive, were %s and %s", slowCallDuration, waitInOpenState));
+      }
+      this.serviceCircuitBreakerFailureRateThreshold = Optional.of(failureRateThreshold);
+      this.serviceCircuitBreakerSlowCallRateThreshold = slowCallRateThreshold;
+      this.serviceCircuitBreakerSlowCallDurationMs = unit.toMillis(slowCallDuration);
+      this.serviceCircuitBreakerWaitInOpenStateMs = unit.toMillis(waitInOpenState);
+      return this;
+    }
+    /**
+     * Gives the requests whose URL starts with each of {@code urlPrefixes} a {@link #serviceCircuitBreaker} of their
+     * own instead of the one of their host, for services behind the same host, e.g. {@code https://virkailija.example.com/service-a/}.
+     */
+    public CasConfigBuilder serviceCircuitBreakerRoutes(String... urlPrefixes) {
+      this.serviceCircuitBreakerRoutes.addAll(Arrays.asList(urlPrefixes));
+      return this;
+    }
+    /**
+     * Caches the responses of GET requests as their {@code Cache-Control} and {@code Expires} headers allow, and
+     * revalidates stale ones with their {@code ETag} or {@code Last-Modified}. At most {@code maxBytes} of responses
+     * are kept.
+     *
+     * @see CachingCasClient
+     */
+    public CasConfigBuilder responseCache(long maxBytes) {
+      if (maxBytes <= 0) {
+        throw new IllegalArgumentException(String.format("maxBytes must be positive, was %s", maxBytes));
+      }
+      this.responseCacheMaxBytes = Optional.of(maxBytes);
+      return this;
+    }
+    /**
+     * Negotiates HTTP/2 with hosts over TLS, and sends the concurrent requests to a host as streams of one connection
+     * instead of a connection each. Hosts that do not offer HTTP/2 keep using pooled HTTP/1.1 connections. Applies to
+     * clients built with {@link CasClientBuilder#build} or {@link CasClientBuilder#httpClientConfig}. Use
+     * {@link #http2(int)} unless the concurrent requests to a host stay below the stream limit of the server.
+     */
+    public CasConfigBuilder http2() {
+      this.http2Enabled = true;
+      return this;
+    }
+    /**
+     * Like {@link #http2()}, with at most {@code maxConcurrentStreams} service requests in flight to a host. Requests
+     * over the limit wait for one to complete. Set this below the limit the server announces
+     * ({@code SETTINGS_MAX_CONCURRENT_STREAMS}, often 100 or 128), leaving room for the session requests: the HTTP
+     * client loses track of requests it has to queue for a stream itself, and they wait until they time out.
+     */
+    public CasConfigBuilder http2(int maxConcurrentStreams) {
+      if (maxConcurrentStreams < 1) {
+        throw new IllegalArgumentException(String.format("maxConcurrentStreams must be positive, was %s", maxConcurrentStreams));
+      }
+      this.http2Enabled = true;
+      this.http2MaxConcurrentStreams = Optional.of(maxConcurrentStreams);
+      return this;
+    }
+    /**
+     * Also uses HTTP/2 for plain {@code http://} URLs, without negotiation. Every such host, CAS included, has to
+     * speak HTTP/2 over cleartext (h2c), e.g. services reached through a sidecar proxy.
+     */
+    public CasConfigBuilder http2Cleartext() {
+      this.http2Enabled = true;
+      this.http2Cleartext = true;
+      return this;
+    }
+    /**
+     * Opens {@code connections} pooled connections to the service and to CAS in {@link CasClient#warmUp}, besides the
+     * ones the login opens. They stay in the pool until they have been idle for the pooled connection idle timeout of
+     * the HTTP client. With HTTP/2 one connection per host is enough.
+     */
+    public CasConfigBuilder warmUpConnections(int connections) {
+      if (connections < 0) {
+        throw new IllegalArgumentException(String.format("connections must not be negative, was %s", connections));
+      }
+      this.warmUpConnections = connections;
+      return this;
+    }
+    /**
+     * Keeps the TGT and the session in {@code store} besides the memory of the client, so that a restarted client and
+     * other clients using the store, e.g. the replicas of a service, use them instead of logging in again. When they
+     * expire, one of the clients logs in and the others wait for it.
+     *
+     * @see FileSessionStore
+     * @see JdbcSessionStore
+     */
+    public CasConfigBuilder sessionStore(SessionStore store) {
+      this.sessionStore = Optional.of(store);
+      return this;
+    }
+    /**
+     * Reports the timings of the CAS and service requests, cache hits and circuit breaker state changes to
+     * {@code listener}, e.g. an {@link InMemoryCasMetrics}.
+     */
+    public CasConfigBuilder metricsListener(CasMetricsListener listener) {
+      this.metricsListener = Optional.of(listener);
+      return this;
+    }
     public CasConfigBuilder setJsessionName(String jSessionName) {
       this.jSessionName = jSessionName;
       return this;
@@ -92,8 +395,38 @@ public class CasConfig {
       casConfig.serviceTicketHeaderName = this.serviceTicketHeaderName;
       casConfig.ticketGrantingTicketValidMs = this.ticketGrantingTicketValidMs.orElseGet(() -> TimeUnit.HOURS.toMillis(7));
       casConfig.sessionTicketValidMs = this.sessionTicketValidMs.orElseGet(() -> TimeUnit.MINUTES.toMillis(15));
+      casConfig.adaptiveSessionTtlMinMs = this.adaptiveSessionTtlMinMs.orElse(null);
+      casConfig.adaptiveSessionTtlMaxMs = this.adaptiveSessionTtlMaxMs.orElse(null);
       casConfig.numberOfRetries = this.numberOfRetries.orElse(1);
       casConfig.requestTimeoutMs = this.requestTimeoutMs.orElse(null);
+      casConfig.proactiveRefreshFraction = this.proactiveRefreshFraction.orElse(null);
+      casConfig.ticketGrantingTicketShared = this.ticketGrantingTicketShared;
+      casConfig.serviceTicketPerRequest = this.serviceTicketPerRequest;
+      casConfig.serviceTicketPoolSize = this.serviceTicketPoolSize;
+      casConfig.pooledServiceTicketMaxAgeMs = this.pooledServiceTicketMaxAgeMs.orElseGet(() -> TimeUnit.SECONDS.toMillis(3));
+      casConfig.maxConcurrency = this.maxConcurrency.orElse(null);
+      casConfig.maxQueuedRequests = this.maxQueuedRequests;
+      casConfig.concurrencyLatencyThresholdMs = this.concurrencyLatencyThresholdMs;
+      casConfig.retryBackoffBaseMs = this.retryBackoffBaseMs;
+      casConfig.retryBackoffMaxMs = this.retryBackoffMaxMs;
+      casConfig.retryBudgetRatio = this.retryBudgetRatio.orElse(null);
+      casConfig.retryBudgetMaxBurst = this.retryBudgetMaxBurst;
+      casConfig.retryPolicies = Collections.unmodifiableMap(new HashMap<>(this.retryPolicies));
+      casConfig.hedgeLatencyPercentile = this.hedgeLatencyPercentile.orElse(null);
+      casConfig.maxHedgeRatio = this.maxHedgeRatio;
+      casConfig.getRequestsCoalesced = this.getRequestsCoalesced;
+      casConfig.serviceCircuitBreakerFailureRateThreshold = this.serviceCircuitBreakerFailureRateThreshold.orElse(null);
+      casConfig.serviceCircuitBreakerSlowCallRateThreshold = this.serviceCircuitBreakerSlowCallRateThreshold;
+      casConfig.serviceCircuitBreakerSlowCallDurationMs = this.serviceCircuitBreakerSlowCallDurationMs;
+      casConfig.serviceCircuitBreakerWaitInOpenStateMs = this.serviceCircuitBreakerWaitInOpenStateMs;
+      casConfig.serviceCircuitBreakerRoutes = List.copyOf(this.serviceCircuitBreakerRoutes);
+      casConfig.responseCacheMaxBytes = this.responseCacheMaxBytes.orElse(null);
+      casConfig.http2Enabled = this.http2Enabled;
+      casConfig.http2MaxConcurrentStreams = this.http2MaxConcurrentStreams.orElse(null);
+      casConfig.http2Cleartext = this.http2Cleartext;
+      casConfig.warmUpConnections = this.warmUpConnections;
+      casConfig.sessionStore = this.sessionStore.orElse(null);
+      casConfig.metricsListener = this.metricsListener.orElse(CasMetricsListener.NOOP);
       return casConfig;
     }
   }
@@ -156,6 +489,14 @@ public class CasConfig {
     return ticketGrantingTicketValidMs;
   }
 
+  public Long getAdaptiveSessionTtlMinMs() {
+    return adaptiveSessionTtlMinMs;
+  }
+
+  public Long getAdaptiveSessionTtlMaxMs() {
+    return adaptiveSessionTtlMaxMs;
+  }
+
   public int getNumberOfRetries() {
     return numberOfRetries;
   }
@@ -163,4 +504,116 @@ public class CasConfig {
   public Long getRequestTimeoutMs() {
     return requestTimeoutMs;
   }
+
+  public Double getProactiveRefreshFraction() {
+    return proactiveRefreshFraction;
+  }
+
+  public boolean isTicketGrantingTicketShared() {
+    return ticketGrantingTicketShared;
+  }
+
+  public boolean isServiceTicketPerRequest() {
+    return serviceTicketPerRequest;
+  }
+
+  public int getServiceTicketPoolSize() {
+    return serviceTicketPoolSize;
+  }
+
+  public long getPooledServiceTicketMaxAgeMs() {
+    return pooledServiceTicketMaxAgeMs;
+  }
+
+  public Integer getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  public int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  public long getConcurrencyLatencyThresholdMs() {
+    return concurrencyLatencyThresholdMs;
+  }
+
+  public long getRetryBackoffBaseMs() {
+    return retryBackoffBaseMs;
+  }
+
+  public long getRetryBackoffMaxMs() {
+    return retryBackoffMaxMs;
+  }
+
+  public Double getRetryBudgetRatio() {
+    return retryBudgetRatio;
+  }
+
+  public int getRetryBudgetMaxBurst() {
+    return retryBudgetMaxBurst;
+  }
+
+  public Map<Integer, RetryPolicy> getRetryPolicies() {
+    return retryPolicies;
+  }
+
+  public Double getHedgeLatencyPercentile() {
+    return hedgeLatencyPercentile;
+  }
+
+  public double getMaxHedgeRatio() {
+    return maxHedgeRatio;
+  }
+
+  public boolean isGetRequestsCoalesced() {
+    return getRequestsCoalesced;
+  }
+
+  public Float getServiceCircuitBreakerFailureRateThreshold() {
+    return serviceCircuitBreakerFailureRateThreshold;
+  }
+
+  public float getServiceCircuitBreakerSlowCallRateThreshold() {
+    return serviceCircuitBreakerSlowCallRateThreshold;
+  }
+
+  public long getServiceCircuitBreakerSlowCallDurationMs() {
+    return serviceCircuitBreakerSlowCallDurationMs;
+  }
+
+  public long getServiceCircuitBreakerWaitInOpenStateMs() {
+    return serviceCircuitBreakerWaitInOpenStateMs;
+  }
+
+  public List<String> getServiceCircuitBreakerRoutes() {
+    return serviceCircuitBreakerRoutes;
+  }
+
+  public Long getResponseCacheMaxBytes() {
+    return responseCacheMaxBytes;
+  }
+
+  public boolean isHttp2Enabled() {
+    return http2Enabled;
+  }
+
+  public Integer getHttp2MaxConcurrentStreams() {
+    return http2MaxConcurrentStreams;
+  }
+
+  public boolean isHttp2Cleartext() {
+    return http2Cleartext;
+  }
+
+  public int getWarmUpConnections() {
+    return warmUpConnections;
+  }
+
+  public SessionStore getSessionStore() {
+    return sessionStore;
+  }
+
+  public CasMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
 }
@@ -0,0 +1,42 @@
+package fi.vm.sade.javautils.nio.cas;
+
+/**
+ * Receives timings and outcomes from a {@link CasClient}, see {@link CasConfig.CasConfigBuilder#metricsListener}.
+ *
+ * The methods are called on the I/O threads of the client, so implementations must be fast, must not block and
+ * must not throw. {@link InMemoryCasMetrics} keeps the values in memory for exporting them elsewhere.
+ */
+public interface CasMetricsListener {
+
+    CasMetricsListener NOOP = new CasMetricsListener() {
+    };
+
+    /**
+     * @param durationNanos time from starting the phase until it completed or failed
+     * @param success       false if the phase completed exceptionally
+     */
+    default void phaseCompleted(CasPhase phase, long durationNanos, boolean success) {
+    }
+
+    /**
+     * @param cache {@code tgt}, {@code session} or {@code serviceTicketPool}
+     * @param hit   false if the call had to fetch a new value
+     */
+    default void cacheAccessed(String cache, boolean hit) {
+    }
+
+    /**
+     * @param circuitBreaker {@code tgt}, {@code sessionTicket}, or the host ({@code scheme://host:port}) or route
+     *                       prefix of a {@link CasConfig.CasConfigBuilder#serviceCircuitBreaker service circuit breaker}
+     * @param fromState      e.g. {@code CLOSED}
+     * @param toState        e.g. {@code OPEN}
+     */
+    default void circuitBreakerStateChanged(String circuitBreaker, String fromState, String toState) {
+    }
+
+    /**
+     * @param ttlMs the session validity time learned with {@link CasConfig.CasConfigBuilder#adaptiveSessionTtl}
+     */
+    default void sessionTtlChanged(long ttlMs) {
+    }
+}
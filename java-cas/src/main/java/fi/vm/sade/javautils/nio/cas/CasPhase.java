@@ -0,0 +1,20 @@
+package fi.vm.sade.javautils.nio.cas;
+
+/**
+ * The phases of a {@link CasClient} call reported to {@link CasMetricsListener#phaseCompleted}.
+ */
+public enum CasPhase {
+    /** Logging in to CAS for a ticket granting ticket. */
+    TICKET_GRANTING_TICKET,
+    /** Fetching a service ticket with the ticket granting ticket. */
+    SERVICE_TICKET,
+    /** Exchanging a service ticket for a session cookie at the service. */
+    SESSION,
+    /**
+     * Time a request waited for its session or service ticket: a cache hit, waiting for a login already in flight,
+     * a login of its own, or an immediate failure while a circuit breaker is open.
+     */
+    CREDENTIALS,
+    /** The request to the service itself, once per attempt. */
+    REQUEST
+}
@@ -0,0 +1,178 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.impl.CasUtils;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical GET requests: a GET for a method and URL that is already in flight is not sent again, but
+ * waits for the response of the request in flight. Headers are not part of the key, so use this only for services
+ * whose GET responses do not depend on the headers of the caller.
+ *
+ * Every caller gets the same {@link Response}. Its body accessors build a new string, array, buffer or stream on
+ * every call, so callers can read the body independently. Each caller gets its own future: cancelling it does not
+ * affect the others, and the request in flight is only cancelled when every caller waiting for it has cancelled.
+ * Requests with a body, other methods, {@link #executeAndRetryWithCleanSessionOnStatusCodes} and streamed requests
+ * are passed through.
+ *
+ * The coalesced requests are reported to the metrics listener as hits of the {@value #CACHE_NAME} cache.
+ */
+public class CoalescingCasClient implements CasClient {
+
+    public static final String CACHE_NAME = "singleFlight";
+
+    private final CasClient delegate;
+    private final CasMetricsListener metrics;
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public CoalescingCasClient(CasClient delegate) {
+        this(delegate, CasMetricsListener.NOOP);
+    }
+
+    public CoalescingCasClient(CasClient delegate, CasMetricsListener metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    /** GET requests made through this client. */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /** GET requests that waited for an identical request in flight instead of being sent. */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the fraction of GET requests that were coalesced, 0 if there have been none
+     */
+    public double getCoalescingRatio() {
+        long all = requests.sum();
+        return all == 0 ? 0 : (double) coalesced.sum() / all;
+    }
+
+    /**
+     * A request in flight and the number of callers still waiting for it.
+     */
+    private static final class Flight {
+        final CompletableFuture<Response> shared = new CompletableFuture<>();
+        final AtomicInteger waiters = new AtomicInteger(1);
+
+        /**
+         * @return false if every earlier caller has cancelled, so that the flight is being cancelled
+         */
+        boolean join() {
+            return waiters.getAndUpdate(n -> n == 0 ? 0 : n + 1) > 0;
+        }
+
+        CompletableFuture<Response> waiter() {
+            CompletableFuture<Response> waiter = shared.copy();
+            waiter.whenComplete((r, t) -> {
+                if (waiter.isCancelled() && waiters.decrementAndGet() == 0) {
+                    shared.cancel(true);
+                }
+            });
+            return waiter;
+        }
+
+        void send(Supplier<CompletableFuture<Response>> execution, Runnable done) {
+            CompletableFuture<Response> response;
+            try {
+                response = execution.get();
+            } catch (Throwable t) {
+                response = CompletableFuture.failedFuture(t);
+            }
+            CompletableFuture<Response> sent = response;
+            shared.whenComplete((r, t) -> {
+                if (shared.isCancelled()) {
+                    done.run();
+                    sent.cancel(true);
+                }
+            });
+            sent.whenComplete((r, t) -> {
+                // out of the map before the callers see the response, so that later requests are sent anew
+                done.run();
+                if (t != null) {
+                    shared.completeExceptionally(t);
+                } else {
+                    shared.complete(r);
+                }
+            });
+        }
+    }
+
+    private CompletableFuture<Response> coalesced(Request request, Supplier<CompletableFuture<Response>> execution) {
+        if (!"GET".equalsIgnoreCase(request.getMethod()) || CasUtils.hasBody(request)) {
+            return execution.get();
+        }
+        requests.increment();
+        String key = request.getMethod().toUpperCase() + " " + request.getUrl();
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (flight != null) {
+                if (flight.join()) {
+                    coalesced.increment();
+                    metrics.cacheAccessed(CACHE_NAME, true);
+                    return flight.waiter();
+                }
+                inFlight.remove(key, flight);
+                continue;
+            }
+            Flight started = new Flight();
+            if (inFlight.putIfAbsent(key, started) == null) {
+                metrics.cacheAccessed(CACHE_NAME, false);
+                CompletableFuture<Response> waiter = started.waiter();
+                started.send(execution, () -> inFlight.remove(key, started));
+                return waiter;
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> execute(Request request) {
+        return coalesced(request, () -> delegate.execute(request));
+    }
+
+    @Override
+    public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
+        return delegate.executeAndRetryWithCleanSessionOnStatusCodes(request, statusCodesToRetry);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeStreaming(Request request, AsyncHandler<T> handler) {
+        return delegate.executeStreaming(request, handler);
+    }
+
+    @Override
+    public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
+        return delegate.validateServiceTicketWithVirkailijaUserDetails(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
+        return delegate.validateServiceTicketWithOppijaAttributes(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        return delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
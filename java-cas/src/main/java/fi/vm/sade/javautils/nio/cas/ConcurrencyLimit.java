@@ -0,0 +1,15 @@
+package fi.vm.sade.javautils.nio.cas;
+
+/**
+ * Current state of the adaptive concurrency limit for one target host.
+ */
+public interface ConcurrencyLimit {
+
+    /** Requests that may be in flight at the same time. */
+    int getLimit();
+
+    int getInFlight();
+
+    /** Requests waiting for a slot. */
+    int getQueueDepth();
+}
@@ -0,0 +1,136 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.impl.AimdConcurrencyLimiter;
+import fi.vm.sade.javautils.nio.cas.impl.ConcurrencyLimiters;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.uri.Uri;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Limits the requests in flight to each target host with an adaptive limit that shrinks when the host slows down.
+ * Requests over the limit are queued, and rejected with
+ * {@link fi.vm.sade.javautils.nio.cas.exceptions.ConcurrencyLimitExceededException} when the queue is full.
+ * Cancelled requests release their slot without changing the limit, and server errors (5xx) shrink it like failures.
+ * Ticket validations and streamed requests are not limited: how long a streamed response takes tells more of its
+ * size than of the load of the host.
+ */
+public class ConcurrencyLimitedCasClient implements CasClient {
+
+    private final CasClient delegate;
+    private final ConcurrencyLimiters limiters;
+    // whether the limits are adjusted here with the whole request, or by the delegate with each attempt
+    private final boolean measuresRequests;
+
+    /**
+     * Adjusts the limits with the latency of the whole request, as {@code delegate} is not known to send it in
+     * attempts of its own.
+     */
+    public ConcurrencyLimitedCasClient(CasClient delegate, int maxConcurrency, int maxQueuedRequests, long latencyThresholdMs) {
+        this(delegate, new ConcurrencyLimiters(maxConcurrency, maxQueuedRequests, latencyThresholdMs), true);
+    }
+
+    /**
+     * @param limiters adjusted by {@code delegate} with each attempt it sends
+     */
+    ConcurrencyLimitedCasClient(CasClient delegate, ConcurrencyLimiters limiters) {
+        this(delegate, limiters, false);
+    }
+
+    private ConcurrencyLimitedCasClient(CasClient delegate, ConcurrencyLimiters limiters, boolean measuresRequests) {
+        this.delegate = delegate;
+        this.limiters = limiters;
+        this.measuresRequests = measuresRequests;
+    }
+
+    /**
+     * @return the current limits by target host ({@code host:port})
+     */
+    public Map<String, ConcurrencyLimit> getConcurrencyLimits() {
+        return limiters.getLimits();
+    }
+
+    private CompletableFuture<Response> limited(Request request, Supplier<CompletableFuture<Response>> execution) {
+        Uri uri = request.getUri();
+        AimdConcurrencyLimiter limiter = limiters.get(uri);
+        CompletableFuture<Void> slot = limiter.acquire();
+        // the request sent, or the marker of a cancelled one
+        AtomicReference<CompletableFuture<Response>> sent = new AtomicReference<>();
+        CompletableFuture<Response> cancelled = new CompletableFuture<>();
+        CompletableFuture<Response> result = slot.thenCompose(s -> {
+            long started = System.nanoTime();
+            CompletableFuture<Response> response;
+            try {
+                response = execution.get();
+            } catch (Throwable t) {
+                if (measuresRequests) {
+                    limiter.record(System.nanoTime() - started, true);
+                }
+                limiter.release();
+                return CompletableFuture.failedFuture(t);
+            }
+            if (!sent.compareAndSet(null, response)) {
+                response.cancel(true);
+            }
+            return response.whenComplete((r, t) -> {
+                if (measuresRequests) {
+                    limiters.record(uri, System.nanoTime() - started, r, t);
+                }
+                limiter.release();
+            });
+        });
+        // a cancelled request leaves the queue, or is cancelled in the delegate
+        result.whenComplete((r, t) -> {
+            if (t != null) {
+                slot.cancel(true);
+                CompletableFuture<Response> response = sent.getAndSet(cancelled);
+                if (response != null) {
+                    response.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Response> execute(Request request) {
+        return limited(request, () -> delegate.execute(request));
+    }
+
+    @Override
+    public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
+        return limited(request, () -> delegate.executeAndRetryWithCleanSessionOnStatusCodes(request, statusCodesToRetry));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeStreaming(Request request, AsyncHandler<T> handler) {
+        return delegate.executeStreaming(request, handler);
+    }
+
+    @Override
+    public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
+        return delegate.validateServiceTicketWithVirkailijaUserDetails(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
+        return delegate.validateServiceTicketWithOppijaAttributes(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        return delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,223 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.exceptions.SessionStoreException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SessionStore} in a local memory-mapped file, shared by the processes on the host and surviving restarts.
+ *
+ * The file has two slots for the entries and a header naming the current one. An update writes all entries to the
+ * other slot, flushes it to disk and only then switches the header to it, so a crash in the middle leaves the previous
+ * entries in place; the slots are checksummed. Updates hold an exclusive lock on the file and reads a shared one.
+ *
+ * The file holds TGTs, and is created readable by its owner only where the file system supports it.
+ */
+public class FileSessionStore implements SessionStore, AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY_BYTES = 64 * 1024;
+
+    // changed with the format of the entries, so that a file in an older format is started over
+    private static final int MAGIC = 0x43415354;
+    private static final int HEADER_BYTES = 8;
+    private static final int SLOT_HEADER_BYTES = 12;
+    // file locks are held by the process, so its threads take turns on a monitor of their own
+    private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final Object monitor;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slotBytes;
+
+    public FileSessionStore(Path path) {
+        this(path, DEFAULT_CAPACITY_BYTES);
+    }
+
+    /**
+     * @param capacityBytes the size of a new file; an existing file keeps its size
+     */
+    public FileSessionStore(Path path, int capacityBytes) {
+        if (capacityBytes < HEADER_BYTES + 2 * (SLOT_HEADER_BYTES + 4)) {
+            throw new IllegalArgumentException(String.format("capacityBytes is too small, was %s", capacityBytes));
+        }
+        this.path = path.toAbsolutePath().normalize();
+        this.monitor = MONITORS.computeIfAbsent(this.path, p -> new Object());
+        try {
+            createOwnerOnly(this.path);
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            synchronized (monitor) {
+                FileLock lock = channel.lock();
+                try {
+                    long size = channel.size() >= HEADER_BYTES + 2 * SLOT_HEADER_BYTES ? channel.size() : capacityBytes;
+                    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    this.slotBytes = (int) ((size - HEADER_BYTES) / 2);
+                    if (buffer.getInt(0) != MAGIC) {
+                        writeSlot(0, new LinkedHashMap<>());
+                        buffer.putInt(4, 0);
+                        buffer.putInt(0, MAGIC);
+                        buffer.force();
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            throw new SessionStoreException(String.format("Could not open session store %s", this.path), e);
+        }
+    }
+
+    private static void createOwnerOnly(Path path) throws IOException {
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(path);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // opened by an earlier process
+        }
+    }
+
+    @Override
+    public Optional<Entry> get(String key) {
+        return withLock(true, entries -> Optional.ofNullable(entries.get(key)));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value, long loggedInAtMillis, long expiresAtMillis) {
+        return withLock(false, entries -> {
+            Entry current = entries.get(key);
+            if ((current == null ? 0 : current.getVersion()) != expectedVersion) {
+                return false;
+            }
+            entries.put(key, new Entry(value, loggedInAtMillis, expiresAtMillis, expectedVersion + 1));
+            int next = 1 - buffer.getInt(4);
+            writeSlot(next, entries);
+            buffer.force();
+            buffer.putInt(4, next);
+            buffer.force();
+            return true;
+        });
+    }
+
+    private <T> T withLock(boolean shared, Function<Map<String, Entry>, T> action) {
+        synchronized (monitor) {
+            try {
+                FileLock lock = channel.lock(0, Long.MAX_VALUE, shared);
+                try {
+                    return action.apply(readEntries());
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new SessionStoreException(String.format("Could not access session store %s", path), e);
+            }
+        }
+    }
+
+    private Map<String, Entry> readEntries() {
+        int active = buffer.getInt(4);
+        Map<String, Entry> entries = readSlot(active);
+        if (entries == null) {
+            // the header was switched but the slot is damaged, so the previous entries are the last good ones
+            entries = readSlot(1 - active);
+        }
+        if (entries == null) {
+            throw new SessionStoreException(String.format("Session store %s is corrupted", path));
+        }
+        return entries;
+    }
+
+    private Map<String, Entry> readSlot(int slot) {
+        int offset = HEADER_BYTES + slot * slotBytes;
+        int length = buffer.getInt(offset);
+        if (length < 0 || length > slotBytes - SLOT_HEADER_BYTES) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + SLOT_HEADER_BYTES);
+        view.get(data);
+        if (crc(data) != buffer.getLong(offset + 4)) {
+            return null;
+        }
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long version = in.readLong();
+                long loggedInAtMillis = in.readLong();
+                long expiresAtMillis = in.readLong();
+                String value = in.readBoolean() ? in.readUTF() : null;
+                entries.put(key, new Entry(value, loggedInAtMillis, expiresAtMillis, version));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return entries;
+    }
+
+    private void writeSlot(int slot, Map<String, Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().getVersion());
+                out.writeLong(entry.getValue().getLoggedInAtMillis());
+                out.writeLong(entry.getValue().getExpiresAtMillis());
+                out.writeBoolean(entry.getValue().getValue() != null);
+                if (entry.getValue().getValue() != null) {
+                    out.writeUTF(entry.getValue().getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new SessionStoreException("Could not serialize session store entries", e);
+        }
+        byte[] data = bytes.toByteArray();
+        if (data.length > slotBytes - SLOT_HEADER_BYTES) {
+            throw new SessionStoreException(String.format("Session store %s is full, the entries take %s bytes of %s",
+                    path, data.length, slotBytes - SLOT_HEADER_BYTES));
+        }
+        int offset = HEADER_BYTES + slot * slotBytes;
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + SLOT_HEADER_BYTES);
+        view.put(data);
+        buffer.putLong(offset + 4, crc(data));
+        buffer.putInt(offset, data.length);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,192 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.impl.CasScheduler;
+import fi.vm.sade.javautils.nio.cas.impl.LatencyWindow;
+import fi.vm.sade.javautils.nio.cas.impl.RetryBudget;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedges GET requests: if a request has not been answered within the configured percentile of the recent GET
+ * latencies, an identical second request is sent, and whichever answers first is used. The other one is cancelled.
+ * Both requests use the cached session of the wrapped client.
+ *
+ * Hedges are limited to {@code maxHedgeRatio} of the GET requests, with bursts of at most {@link #MAX_HEDGE_BURST}
+ * hedges, so that a slow service does not get twice the load. Nothing is hedged until {@link #WINDOW_SIZE}
+ * responses have been seen. Other methods are passed through as they may not be idempotent, and streamed requests as
+ * their responses go to the one handler of the caller.
+ *
+ * The hedge delay is timed on the shared CAS scheduler thread, and the hedge is sent on the given executor (the common
+ * pool by default), so that a wrapped client that is slow to start a request does not hold up other timers.
+ */
+public class HedgingCasClient implements CasClient {
+
+    static final int WINDOW_SIZE = 100;
+    static final int MAX_HEDGE_BURST = 10;
+
+    private final CasClient delegate;
+    private final LatencyWindow latencies;
+    private final RetryBudget hedgeBudget;
+    private final Executor executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param latencyPercentile percentile (0-100) of the recent latencies after which a request is hedged, e.g. 95
+     * @param maxHedgeRatio     largest fraction of GET requests that may be hedged, e.g. 0.05
+     */
+    public HedgingCasClient(CasClient delegate, double latencyPercentile, double maxHedgeRatio) {
+        this(delegate, latencyPercentile, maxHedgeRatio, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor sends the hedge requests
+     */
+    public HedgingCasClient(CasClient delegate, double latencyPercentile, double maxHedgeRatio, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.latencies = new LatencyWindow(WINDOW_SIZE, latencyPercentile);
+        this.hedgeBudget = new RetryBudget(maxHedgeRatio, MAX_HEDGE_BURST);
+    }
+
+    /** GET requests sent through this client. */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** Hedge requests sent. */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /** Hedge requests that were answered before the request they hedged. */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the current delay before a request is hedged, or -1 while not enough latencies have been seen
+     */
+    public long getHedgeDelayMs() {
+        long nanos = latencies.getPercentileNanos();
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private CompletableFuture<Response> hedged(Request request, Supplier<CompletableFuture<Response>> execution) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return execution.get();
+        }
+        requests.incrementAndGet();
+        hedgeBudget.recordFirstAttempt();
+        long delayNanos = latencies.getPercentileNanos();
+        long started = System.nanoTime();
+        CompletableFuture<Response> primary = execution.get();
+        if (delayNanos < 0) {
+            return recordLatency(primary, started);
+        }
+
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        AtomicReference<CompletableFuture<Response>> hedge = new AtomicReference<>();
+        primary.whenComplete((r, t) -> {
+            if (t == null) {
+                result.complete(r);
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(t);
+            }
+        });
+        ScheduledFuture<?> timer = CasScheduler.get().schedule(() -> executor.execute(() -> {
+            if (result.isDone() || !hedgeBudget.tryRetry() || outstanding.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                return;
+            }
+            hedgesSent.incrementAndGet();
+            CompletableFuture<Response> second = execution.get();
+            hedge.set(second);
+            second.whenComplete((r, t) -> {
+                if (t == null) {
+                    if (result.complete(r)) {
+                        hedgeWins.incrementAndGet();
+                    }
+                } else if (outstanding.decrementAndGet() == 0) {
+                    result.completeExceptionally(t);
+                }
+            });
+            if (result.isDone()) {
+                second.cancel(true);
+            }
+        }), delayNanos, TimeUnit.NANOSECONDS);
+        recordLatency(result, started);
+        result.whenComplete((r, t) -> {
+            // the loser, or both if the caller cancelled
+            timer.cancel(false);
+            primary.cancel(true);
+            CompletableFuture<Response> second = hedge.get();
+            if (second != null) {
+                second.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Records the latency as the caller saw it, so that hedged requests that won still count with their full latency.
+     */
+    private CompletableFuture<Response> recordLatency(CompletableFuture<Response> response, long started) {
+        response.whenComplete((r, t) -> {
+            if (t == null) {
+                latencies.record(System.nanoTime() - started);
+            }
+        });
+        return response;
+    }
+
+    @Override
+    public CompletableFuture<Response> execute(Request request) {
+        return hedged(request, () -> delegate.execute(request));
+    }
+
+    @Override
+    public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
+        return hedged(request, () -> delegate.executeAndRetryWithCleanSessionOnStatusCodes(request, statusCodesToRetry));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeStreaming(Request request, AsyncHandler<T> handler) {
+        return delegate.executeStreaming(request, handler);
+    }
+
+    @Override
+    public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
+        return delegate.validateServiceTicketWithVirkailijaUserDetails(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
+        return delegate.validateServiceTicketWithOppijaAttributes(service, ticket);
+    }
+
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        return delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,88 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the metrics of a {@link CasClient} in memory: a latency histogram and a failure count per phase, hits and
+ * misses per cache, and the current state of each circuit breaker. Read the values periodically to export them.
+ */
+public class InMemoryCasMetrics implements CasMetricsListener {
+
+    private final Map<CasPhase, LatencyHistogram> latencies = new EnumMap<>(CasPhase.class);
+    private final Map<CasPhase, LongAdder> failures = new EnumMap<>(CasPhase.class);
+    private final ConcurrentMap<String, LongAdder> cacheHits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> cacheMisses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> circuitBreakerStates = new ConcurrentHashMap<>();
+    private volatile long sessionTtlMs = -1;
+
+    public InMemoryCasMetrics() {
+        for (CasPhase phase : CasPhase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+            failures.put(phase, new LongAdder());
+        }
+    }
+
+    @Override
+    public void phaseCompleted(CasPhase phase, long durationNanos, boolean success) {
+        latencies.get(phase).record(durationNanos);
+        if (!success) {
+            failures.get(phase).increment();
+        }
+    }
+
+    @Override
+    public void cacheAccessed(String cache, boolean hit) {
+        (hit ? cacheHits : cacheMisses).computeIfAbsent(cache, c -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void circuitBreakerStateChanged(String circuitBreaker, String fromState, String toState) {
+        circuitBreakerStates.put(circuitBreaker, toState);
+    }
+
+    @Override
+    public void sessionTtlChanged(long ttlMs) {
+        sessionTtlMs = ttlMs;
+    }
+
+    /**
+     * @return latencies of the phase in nanoseconds, successful and failed alike
+     */
+    public LatencyHistogram getLatencies(CasPhase phase) {
+        return latencies.get(phase);
+    }
+
+    public long getFailures(CasPhase phase) {
+        return failures.get(phase).sum();
+    }
+
+    public long getCacheHits(String cache) {
+        LongAdder hits = cacheHits.get(cache);
+        return hits == null ? 0 : hits.sum();
+    }
+
+    public long getCacheMisses(String cache) {
+        LongAdder misses = cacheMisses.get(cache);
+        return misses == null ? 0 : misses.sum();
+    }
+
+    /**
+     * @return the current state of each circuit breaker that has changed state, e.g. {@code tgt -> OPEN}
+     */
+    public Map<String, String> getCircuitBreakerStates() {
+        return Collections.unmodifiableMap(new HashMap<>(circuitBreakerStates));
+    }
+
+    /**
+     * @return the learned session validity time, or -1 if it has not changed from the initial one
+     */
+    public long getSessionTtlMs() {
+        return sessionTtlMs;
+    }
+}
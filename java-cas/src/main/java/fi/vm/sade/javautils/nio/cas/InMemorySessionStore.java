@@ -0,0 +1,33 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link SessionStore} in the memory of the process, for sharing the logins of clients in one process, e.g. ones
+ * built for the same service in different modules. Without a store a client keeps its tokens to itself.
+ */
+public class InMemorySessionStore implements SessionStore {
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public Optional<Entry> get(String key) {
+        return Optional.ofNullable(entries.get(key));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value, long loggedInAtMillis, long expiresAtMillis) {
+        Entry replacement = new Entry(value, loggedInAtMillis, expiresAtMillis, expectedVersion + 1);
+        if (expectedVersion == 0) {
+            return entries.putIfAbsent(key, replacement) == null;
+        }
+        boolean[] replaced = new boolean[1];
+        entries.computeIfPresent(key, (k, current) -> {
+            replaced[0] = current.getVersion() == expectedVersion;
+            return replaced[0] ? replacement : current;
+        });
+        return replaced[0];
+    }
+}
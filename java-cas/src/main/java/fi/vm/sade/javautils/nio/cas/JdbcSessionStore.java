@@ -0,0 +1,157 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.exceptions.SessionStoreException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * {@link SessionStore} in a database table, shared by the replicas of a service. Compare-and-set is an
+ * {@code UPDATE} conditional on the version, or an {@code INSERT} that the primary key lets only one replica make.
+ *
+ * The table, {@value #DEFAULT_TABLE_NAME} unless named otherwise, can be created with {@link #createTableIfMissing()}
+ * or by the schema migrations of the service:
+ * <pre>
+ * CREATE TABLE cas_session_store (
+ *   store_key    VARCHAR(512) PRIMARY KEY,
+ *   token        VARCHAR(4096),
+ *   logged_in_at BIGINT NOT NULL,
+ *   expires_at   BIGINT NOT NULL,
+ *   version      BIGINT NOT NULL
+ * )
+ * </pre>
+ * It holds TGTs, so access to it should be restricted like access to the CAS credentials.
+ */
+public class JdbcSessionStore implements SessionStore {
+
+    public static final String DEFAULT_TABLE_NAME = "cas_session_store";
+
+    private final DataSource dataSource;
+    private final String tableName;
+
+    public JdbcSessionStore(DataSource dataSource) {
+        this(dataSource, DEFAULT_TABLE_NAME);
+    }
+
+    public JdbcSessionStore(DataSource dataSource, String tableName) {
+        if (!tableName.matches("[A-Za-z_][A-Za-z0-9_.]*")) {
+            throw new IllegalArgumentException(String.format("tableName must be a plain SQL identifier, was %s", tableName));
+        }
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+    }
+
+    /**
+     * Creates the table unless it exists.
+     */
+    public void createTableIfMissing() {
+        try (Connection connection = dataSource.getConnection()) {
+            if (tableExists(connection)) {
+                return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE TABLE " + tableName + " ("
+                        + "store_key VARCHAR(512) PRIMARY KEY, "
+                        + "token VARCHAR(4096), "
+                        + "logged_in_at BIGINT NOT NULL, "
+                        + "expires_at BIGINT NOT NULL, "
+                        + "version BIGINT NOT NULL)");
+            }
+        } catch (SQLException e) {
+            throw new SessionStoreException(String.format("Could not create session store table %s", tableName), e);
+        }
+    }
+
+    private boolean tableExists(Connection connection) throws SQLException {
+        // databases differ in the case they store unquoted names in
+        for (String name : new String[]{tableName, tableName.toUpperCase(Locale.ROOT), tableName.toLowerCase(Locale.ROOT)}) {
+            try (ResultSet tables = connection.getMetaData().getTables(null, null, name, null)) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Optional<Entry> get(String key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT token, logged_in_at, expires_at, version FROM " + tableName + " WHERE store_key = ?")) {
+            select.setString(1, key);
+            try (ResultSet row = select.executeQuery()) {
+                return row.next()
+                        ? Optional.of(new Entry(row.getString(1), row.getLong(2), row.getLong(3), row.getLong(4)))
+                        : Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new SessionStoreException(String.format("Could not read session store table %s", tableName), e);
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value, long loggedInAtMillis, long expiresAtMillis) {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean replaced = expectedVersion == 0
+                    ? insert(connection, key, value, loggedInAtMillis, expiresAtMillis)
+                    : update(connection, key, expectedVersion, value, loggedInAtMillis, expiresAtMillis);
+            // pooled connections may come without auto-commit
+            if (!connection.getAutoCommit()) {
+                if (replaced) {
+                    connection.commit();
+                } else {
+                    connection.rollback();
+                }
+            }
+            return replaced;
+        } catch (SQLException e) {
+            throw new SessionStoreException(String.format("Could not update session store table %s", tableName), e);
+        }
+    }
+
+    private boolean insert(Connection connection, String key, String value, long loggedInAtMillis, long expiresAtMillis) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO " + tableName + " (store_key, token, logged_in_at, expires_at, version) VALUES (?, ?, ?, ?, 1)")) {
+            insert.setString(1, key);
+            setToken(insert, 2, value);
+            insert.setLong(3, loggedInAtMillis);
+            insert.setLong(4, expiresAtMillis);
+            return insert.executeUpdate() == 1;
+        } catch (SQLException e) {
+            // integrity constraint violation: another client inserted the key first
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private boolean update(Connection connection, String key, long expectedVersion, String value, long loggedInAtMillis, long expiresAtMillis) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE " + tableName + " SET token = ?, logged_in_at = ?, expires_at = ?, version = ? WHERE store_key = ? AND version = ?")) {
+            setToken(update, 1, value);
+            update.setLong(2, loggedInAtMillis);
+            update.setLong(3, expiresAtMillis);
+            update.setLong(4, expectedVersion + 1);
+            update.setString(5, key);
+            update.setLong(6, expectedVersion);
+            return update.executeUpdate() == 1;
+        }
+    }
+
+    private static void setToken(PreparedStatement statement, int index, String value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.VARCHAR);
+        } else {
+            statement.setString(index, value);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package fi.vm.sade.javautils.nio.cas;
+
+/**
+ * How a request that got a given response status is retried, see
+ * {@link CasConfig.CasConfigBuilder#retryOnStatusCode(int, RetryPolicy)}.
+ */
+public final class RetryPolicy {
+
+    private final int maxRetries;
+    private final boolean cleanSession;
+
+    private RetryPolicy(int maxRetries, boolean cleanSession) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException(String.format("maxRetries must not be negative, was %s", maxRetries));
+        }
+        this.maxRetries = maxRetries;
+        this.cleanSession = cleanSession;
+    }
+
+    /**
+     * Retries with the same session, e.g. for a 503 from an overloaded service.
+     */
+    public static RetryPolicy retry(int maxRetries) {
+        return new RetryPolicy(maxRetries, false);
+    }
+
+    /**
+     * Drops the session the request was sent with and retries with a new one, like the default handling of 401.
+     */
+    public static RetryPolicy retryWithCleanSession(int maxRetries) {
+        return new RetryPolicy(maxRetries, true);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public boolean isCleanSession() {
+        return cleanSession;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryPolicy(maxRetries = %s, cleanSession = %s)", maxRetries, cleanSession);
+    }
+}
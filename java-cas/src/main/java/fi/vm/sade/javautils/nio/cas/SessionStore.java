@@ -0,0 +1,92 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Keeps the TGTs and session cookies a client logs in for outside of the client, so that a restarted client or
+ * replicas sharing the store reuse them instead of logging in again. Each key has a version that every update
+ * increments, and updates are compare-and-set on it: of the clients that find an expired token, only the one whose
+ * update succeeds logs in, and the others wait for the token it stores.
+ *
+ * Implementations are {@link InMemorySessionStore}, {@link FileSessionStore} and {@link JdbcSessionStore}. Their
+ * methods may block; the clients call them on a thread of their own, never on an I/O thread.
+ *
+ * @see CasConfig.CasConfigBuilder#sessionStore
+ */
+public interface SessionStore {
+
+    /**
+     * @return the entry of {@code key}, or empty if the key has never been set
+     */
+    Optional<Entry> get(String key);
+
+    /**
+     * Replaces the entry of {@code key} if its version still is {@code expectedVersion}, 0 meaning that the key has
+     * never been set. The new entry gets version {@code expectedVersion + 1}.
+     *
+     * @param value            the token, or null while a client is logging in for one, until {@code expiresAtMillis}
+     * @param loggedInAtMillis when the login for the token started, or when the client started logging in
+     * @return true if the entry was replaced
+     */
+    boolean compareAndSet(String key, long expectedVersion, String value, long loggedInAtMillis, long expiresAtMillis);
+
+    final class Entry {
+        private final String value;
+        private final long loggedInAtMillis;
+        private final long expiresAtMillis;
+        private final long version;
+
+        public Entry(String value, long loggedInAtMillis, long expiresAtMillis, long version) {
+            this.value = value;
+            this.loggedInAtMillis = loggedInAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+            this.version = version;
+        }
+
+        /**
+         * @return the token, or null if a client is logging in
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return when the login for the token started, in epoch milliseconds, as stored by the client that logged in:
+         * the age of the token is not derived from its expiry, as clients may keep tokens for different times
+         */
+        public long getLoggedInAtMillis() {
+            return loggedInAtMillis;
+        }
+
+        /**
+         * @return when the token expires or the client logging in gives up, in epoch milliseconds
+         */
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == null || getClass() != o.getClass()) return false;
+            Entry that = (Entry) o;
+            return loggedInAtMillis == that.loggedInAtMillis && expiresAtMillis == that.expiresAtMillis && version == that.version
+                    && Objects.equals(value, that.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(value, loggedInAtMillis, expiresAtMillis, version);
+        }
+
+        @Override
+        public String toString() {
+            // the value is a credential
+            return "Entry{loggedInAtMillis=" + loggedInAtMillis + ", expiresAtMillis=" + expiresAtMillis + ", version=" + version + '}';
+        }
+    }
+}
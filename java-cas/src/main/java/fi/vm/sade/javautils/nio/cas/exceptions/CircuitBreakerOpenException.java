@@ -0,0 +1,18 @@
+package fi.vm.sade.javautils.nio.cas.exceptions;
+
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    private final String circuitBreaker;
+
+    public CircuitBreakerOpenException(String circuitBreaker, String msg) {
+        super(msg);
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the host ({@code scheme://host:port}) or route prefix whose circuit breaker is open
+     */
+    public String getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
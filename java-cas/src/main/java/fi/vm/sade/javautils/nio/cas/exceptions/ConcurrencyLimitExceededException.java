@@ -0,0 +1,8 @@
+package fi.vm.sade.javautils.nio.cas.exceptions;
+
+public class ConcurrencyLimitExceededException extends RuntimeException {
+
+    public ConcurrencyLimitExceededException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,12 @@
+package fi.vm.sade.javautils.nio.cas.exceptions;
+
+public class SessionStoreException extends RuntimeException {
+
+    public SessionStoreException(String msg) {
+        super(msg);
+    }
+
+    public SessionStoreException(String msg, Throwable e) {
+        super(msg, e);
+    }
+}
@@ -0,0 +1,81 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+/**
+ * Session TTL learned from the service instead of configured. When the service rejects a session, its age is taken as
+ * the lifetime of the sessions and the TTL drops just below it, so that the next sessions are replaced before they
+ * are rejected. Sessions replaced at the end of their TTL without being rejected raise it: right away while no
+ * rejection has been seen or once one outlives the lifetime seen, and otherwise after
+ * {@value #SURVIVALS_BEFORE_PROBE} of them in a row, to find out whether the lifetime has grown. The TTL stays within
+ * the given bounds.
+ */
+public class AdaptiveTtl {
+
+    static final double SAFETY_MARGIN = 0.9;
+    static final double GROWTH_FACTOR = 1.25;
+    static final int SURVIVALS_BEFORE_PROBE = 10;
+    // a session replaced before this share of its TTL was refreshed early and tells nothing of the lifetime
+    private static final double FULL_LIFE_FRACTION = 0.8;
+
+    private final long minMs;
+    private final long maxMs;
+    private long ttlMs;
+    private long observedLifetimeMs = -1;
+    private int survivals;
+
+    public AdaptiveTtl(long initialMs, long minMs, long maxMs) {
+        if (minMs <= 0 || minMs > maxMs) {
+            throw new IllegalArgumentException(String.format("minMs must be positive and at most maxMs (%s), was %s", maxMs, minMs));
+        }
+        this.minMs = minMs;
+        this.maxMs = maxMs;
+        this.ttlMs = clamp(initialMs);
+    }
+
+    public synchronized long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * @return the age of the last rejected session, or -1 if none has been rejected or a session has outlived it since
+     */
+    public synchronized long getObservedLifetimeMs() {
+        return observedLifetimeMs;
+    }
+
+    /**
+     * The service rejected a session at {@code ageMs}.
+     *
+     * @return the new TTL
+     */
+    public synchronized long rejected(long ageMs) {
+        observedLifetimeMs = ageMs;
+        survivals = 0;
+        ttlMs = clamp((long) (ageMs * SAFETY_MARGIN));
+        return ttlMs;
+    }
+
+    /**
+     * A session was replaced at {@code ageMs} without being rejected.
+     *
+     * @return the new TTL
+     */
+    public synchronized long survived(long ageMs) {
+        if (ageMs < ttlMs * FULL_LIFE_FRACTION) {
+            return ttlMs;
+        }
+        if (observedLifetimeMs >= 0 && ageMs >= observedLifetimeMs) {
+            // the lifetime has grown, or the rejection was not about the age of the session
+            observedLifetimeMs = -1;
+        }
+        if (observedLifetimeMs >= 0 && ++survivals < SURVIVALS_BEFORE_PROBE) {
+            return ttlMs;
+        }
+        survivals = 0;
+        ttlMs = clamp((long) (ttlMs * GROWTH_FACTOR));
+        return ttlMs;
+    }
+
+    private long clamp(long ms) {
+        return Math.max(minMs, Math.min(maxMs, ms));
+    }
+}
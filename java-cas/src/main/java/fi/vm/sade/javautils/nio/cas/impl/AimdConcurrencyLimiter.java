@@ -0,0 +1,120 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.ConcurrencyLimit;
+import fi.vm.sade.javautils.nio.cas.exceptions.ConcurrencyLimitExceededException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Additive-increase/multiplicative-decrease limit for the requests in flight to one host.
+ *
+ * A request that completes within the latency threshold while the limit is in use raises the limit by about one
+ * per round of requests; a slower or failed request cuts it by {@link #BACKOFF_RATIO}. Requests over the limit wait
+ * in a bounded FIFO queue and are rejected with {@link ConcurrencyLimitExceededException} when it is full.
+ */
+public class AimdConcurrencyLimiter implements ConcurrencyLimit {
+
+    static final double BACKOFF_RATIO = 0.9;
+    private static final int MIN_LIMIT = 1;
+    private static final int INITIAL_LIMIT = 20;
+
+    private final String name;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long latencyThresholdNanos;
+
+    private final Queue<CompletableFuture<Void>> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    public AimdConcurrencyLimiter(String name, int maxLimit, int maxQueueSize, long latencyThresholdMs) {
+        this.name = name;
+        this.maxLimit = maxLimit;
+        this.maxQueueSize = maxQueueSize;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs);
+        this.limit = Math.min(maxLimit, INITIAL_LIMIT);
+    }
+
+    /**
+     * @return future that completes when the request may be sent, after which {@link #release} must be called.
+     * Cancelling it while it waits leaves the queue.
+     */
+    public CompletableFuture<Void> acquire() {
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            if (queue.size() >= maxQueueSize) {
+                return CompletableFuture.failedFuture(new ConcurrencyLimitExceededException(String.format(
+                        "Too many concurrent requests to %s (limit = %s, queued = %s)", name, (int) limit, queue.size())));
+            }
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            queue.add(slot);
+            slot.whenComplete((v, t) -> {
+                if (t != null) {
+                    dequeue(slot);
+                }
+            });
+            return slot;
+        }
+    }
+
+    private synchronized void dequeue(CompletableFuture<Void> slot) {
+        queue.remove(slot);
+    }
+
+    /**
+     * Adjusts the limit with a request, or an attempt of one, that took {@code latencyNanos}. A cancelled request
+     * tells nothing of the host and is not recorded.
+     */
+    public synchronized void record(long latencyNanos, boolean failed) {
+        if (failed || latencyNanos > latencyThresholdNanos) {
+            limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+        } else if (inFlight * 2 >= limit) {
+            // only grow while the limit is actually in use
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Releases the slot of a request, admitting the queued requests that now fit in the limit.
+     */
+    public void release() {
+        List<CompletableFuture<Void>> admitted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                inFlight++;
+                admitted.add(queue.poll());
+            }
+        }
+        // complete outside the lock, as completing starts the queued requests on this thread
+        for (CompletableFuture<Void> slot : admitted) {
+            if (!slot.complete(null)) {
+                // cancelled after it was admitted
+                release();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+}
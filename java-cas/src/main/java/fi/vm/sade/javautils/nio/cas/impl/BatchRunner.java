@@ -0,0 +1,138 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.BatchResult;
+import org.asynchttpclient.Request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs a batch of requests with at most {@code maxConcurrency} of them in flight. A failed request is recorded in its
+ * {@link BatchResult} and does not affect the others. The result lists the outcomes in the order of the requests.
+ *
+ * When the result future is completed from outside, e.g. cancelled or timed out with
+ * {@link CompletableFuture#orTimeout}, no more requests are started and the ones in flight are cancelled.
+ */
+public class BatchRunner<T> {
+
+    private final List<Request> requests;
+    private final Function<Request, CompletableFuture<T>> execution;
+    private final Consumer<? super BatchResult<T>> onCompletion;
+    private final BatchResult<?>[] results;
+    private final Set<CompletableFuture<T>> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger freeSlots;
+    private final AtomicInteger remaining;
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final CompletableFuture<List<BatchResult<T>>> result = new CompletableFuture<>();
+    private int next;
+
+    /**
+     * @param onCompletion called with each outcome as it completes, on the thread that completed it
+     */
+    public BatchRunner(List<Request> requests,
+                       int maxConcurrency,
+                       Function<Request, CompletableFuture<T>> execution,
+                       Consumer<? super BatchResult<T>> onCompletion) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException(String.format("maxConcurrency must be positive, was %s", maxConcurrency));
+        }
+        this.requests = new ArrayList<>(requests);
+        this.execution = execution;
+        this.onCompletion = onCompletion;
+        this.results = new BatchResult<?>[this.requests.size()];
+        this.freeSlots = new AtomicInteger(maxConcurrency);
+        this.remaining = new AtomicInteger(this.requests.size());
+        this.result.whenComplete((r, t) -> {
+            if (t != null) {
+                inFlight.forEach(f -> f.cancel(true));
+            }
+        });
+    }
+
+    public CompletableFuture<List<BatchResult<T>>> run() {
+        if (requests.isEmpty()) {
+            result.complete(Collections.emptyList());
+        }
+        drain();
+        return result;
+    }
+
+    /**
+     * Starts requests while there are free slots. Only one thread at a time runs the loop; a request completing on
+     * the starting thread asks for another round instead of recursing.
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (!result.isDone() && next < requests.size() && freeSlots.get() > 0) {
+                freeSlots.decrementAndGet();
+                start(next++);
+            }
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    private void start(int index) {
+        Request request = requests.get(index);
+        CompletableFuture<T> future;
+        try {
+            future = execution.apply(request);
+        } catch (Throwable t) {
+            future = CompletableFuture.failedFuture(t);
+        }
+        inFlight.add(future);
+        // after adding, so that a batch cancelled or timed out since the check in drain either sees the request or is
+        // seen here
+        if (result.isCompletedExceptionally()) {
+            future.cancel(true);
+        }
+        CompletableFuture<T> started = future;
+        future.whenComplete((value, t) -> {
+            inFlight.remove(started);
+            BatchResult<T> outcome = t == null
+                    ? BatchResult.success(index, request, value)
+                    : BatchResult.failure(index, request, unwrap(t));
+            results[index] = outcome;
+            try {
+                if (!result.isDone()) {
+                    onCompletion.accept(outcome);
+                }
+            } finally {
+                freeSlots.incrementAndGet();
+                if (remaining.decrementAndGet() == 0) {
+                    complete();
+                } else {
+                    drain();
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete() {
+        List<BatchResult<T>> outcomes = new ArrayList<>(results.length);
+        for (BatchResult<?> outcome : Arrays.asList(results)) {
+            outcomes.add((BatchResult<T>) outcome);
+        }
+        result.complete(Collections.unmodifiableList(outcomes));
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException)
+                && t.getCause() != null && t.getCause() != t) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
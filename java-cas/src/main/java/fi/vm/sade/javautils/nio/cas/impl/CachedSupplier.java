@@ -1,64 +1,224 @@
 package fi.vm.sade.javautils.nio.cas.impl;
 
-import java.time.Instant;
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
+/**
+ * Caches the future returned by the wrapped supplier for a fixed time.
+ *
+ * The hot path is a plain read of an immutable {@link Entry}; the cached entry is only replaced with
+ * compare-and-set, so concurrent callers never block each other. When a refresh-ahead window is given,
+ * a successfully completed entry that is inside the window keeps being served while a single background
+ * refresh replaces it.
+ *
+ * Concurrent callers share the fetch in flight, and at most one background refresh runs at a time. {@link #clear()}
+ * and {@link #invalidate} do not wait for a fetch or refresh that is already running, as it may have been started
+ * with what was just found invalid: the next caller calls the supplier again while the earlier call is still in
+ * progress, and the result of the earlier call is not cached.
+ */
 public class CachedSupplier<T> implements Supplier<CompletableFuture<T>> {
 
-  private CompletableFuture<T> cached;
-  private Instant validUntil;
-  private final long ttlMs;
+  private final AtomicReference<Entry<T>> current = new AtomicReference<>();
+  // guards background refreshes only, see the class comment
+  private final AtomicBoolean refreshing = new AtomicBoolean(false);
+  private final LongSupplier ttlMs;
+  private final LongSupplier refreshAheadMs;
+  private final ToLongFunction<T> maxTtlMs;
 
   private final Supplier<CompletableFuture<T>> supplier;
+  private final String name;
+  private final CasMetricsListener metrics;
 
   public CachedSupplier(long ttlMs, Supplier<CompletableFuture<T>> supplier) {
+    this(ttlMs, 0, supplier);
+  }
+
+  public CachedSupplier(long ttlMs, long refreshAheadMs, Supplier<CompletableFuture<T>> supplier) {
+    this(ttlMs, refreshAheadMs, supplier, null, CasMetricsListener.NOOP);
+  }
+
+  /**
+   * @param name    cache name reported to {@code metrics} on every {@link #get()}
+   */
+  public CachedSupplier(long ttlMs, long refreshAheadMs, Supplier<CompletableFuture<T>> supplier, String name, CasMetricsListener metrics) {
+    this(() -> ttlMs, () -> refreshAheadMs, supplier, name, metrics);
+    if (refreshAheadMs < 0 || refreshAheadMs > ttlMs) {
+      throw new IllegalArgumentException(String.format("refreshAheadMs must be between 0 and ttlMs (%s), was %s", ttlMs, refreshAheadMs));
+    }
+  }
+
+  /**
+   * Like the constructor with fixed times, with the times read for every fetched value, e.g. from an
+   * {@link AdaptiveTtl}.
+   */
+  public CachedSupplier(LongSupplier ttlMs, LongSupplier refreshAheadMs, Supplier<CompletableFuture<T>> supplier, String name, CasMetricsListener metrics) {
+    this(ttlMs, refreshAheadMs, value -> Long.MAX_VALUE, supplier, name, metrics);
+  }
+
+  /**
+   * @param maxTtlMs how long a fetched value may be cached at most, e.g. what is left of the lifetime of a token read
+   *                 from a {@link fi.vm.sade.javautils.nio.cas.SessionStore}, if less than {@code ttlMs}
+   */
+  public CachedSupplier(LongSupplier ttlMs, LongSupplier refreshAheadMs, ToLongFunction<T> maxTtlMs, Supplier<CompletableFuture<T>> supplier, String name, CasMetricsListener metrics) {
     this.ttlMs = ttlMs;
+    this.refreshAheadMs = refreshAheadMs;
+    this.maxTtlMs = maxTtlMs;
     this.supplier = supplier;
+    this.name = name;
+    this.metrics = metrics;
   }
 
   public void clear() {
-    synchronized (this) {
-      this.cached = null;
-      this.validUntil = null;
+    current.set(null);
+  }
+
+  /**
+   * Drops the cached value if it still is {@code value}. A value that has already been replaced, e.g. by a caller
+   * that saw the same value fail earlier, is left alone, so that late failures of an old value do not discard
+   * its replacement.
+   *
+   * @return true if the value was dropped
+   */
+  public boolean invalidate(T value) {
+    Entry<T> entry = current.get();
+    return holds(entry, value) && current.compareAndSet(entry, null);
+  }
+
+  /**
+   * @return true if {@code value} is the successfully cached value
+   */
+  boolean holds(T value) {
+    return holds(current.get(), value);
+  }
+
+  private static <T> boolean holds(Entry<T> entry, T value) {
+    if (entry == null || !entry.future.isDone() || entry.future.isCompletedExceptionally()) {
+      return false;
+    }
+    return Objects.equals(entry.future.join(), value);
+  }
+
+  /**
+   * Starts a background refresh of a successfully cached value unless one is already running. The current
+   * value keeps being served until the refresh succeeds. Nothing is fetched when nothing is cached.
+   *
+   * @return future that completes when the refresh has finished or was skipped, exceptionally if it failed
+   */
+  public CompletableFuture<Void> refresh() {
+    Entry<T> entry = current.get();
+    if (entry == null) {
+      return CompletableFuture.completedFuture(null);
     }
+    return refreshInBackground(entry);
   }
 
   @Override
   public CompletableFuture<T> get() {
-    synchronized (this) {
-      Instant now = Instant.now();
-      if (cached == null || validUntil.isBefore(now)) {
-        CompletableFuture<T> inFlight;
-        try {
-          inFlight = supplier.get();
-          if (inFlight == null) {
-            return CompletableFuture.failedFuture(new NullPointerException("supplier returned null"));
-          }
-        } catch (Throwable t) {
-          this.cached = null;
-          this.validUntil = null;
-          return CompletableFuture.failedFuture(t);
+    while (true) {
+      Entry<T> entry = current.get();
+      long now = System.nanoTime();
+      if (entry != null && now - entry.expiresAt < 0) {
+        if (entry.refreshAt != entry.expiresAt && now - entry.refreshAt >= 0) {
+          refreshInBackground(entry);
         }
-        cached = inFlight;
-        validUntil = Instant.now().plusMillis(this.ttlMs);
-        inFlight.whenComplete((v, t) -> {
-          if (t != null) {
-            clearIfCurrent(inFlight);
-          }
-        });
+        metrics.cacheAccessed(name, true);
+        return entry.future;
+      }
+      CompletableFuture<T> inFlight = new CompletableFuture<>();
+      Entry<T> next = newEntry(inFlight, now);
+      if (current.compareAndSet(entry, next)) {
+        metrics.cacheAccessed(name, false);
+        fetch(next);
         return inFlight;
       }
-      return cached;
     }
   }
 
-  private void clearIfCurrent(CompletableFuture<T> expected) {
-    synchronized (this) {
-      if (cached == expected) {
-        cached = null;
-        validUntil = null;
+  private Entry<T> newEntry(CompletableFuture<T> future, long now) {
+    long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs.getAsLong());
+    long refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMs.getAsLong());
+    return new Entry<>(future, now + ttlNanos - refreshAheadNanos, now + ttlNanos);
+  }
+
+  /**
+   * @return {@code entry} expiring within the max TTL of {@code value}, with a refresh-ahead window of the same length
+   */
+  private Entry<T> bounded(Entry<T> entry, T value) {
+    long maxTtl = maxTtlMs.applyAsLong(value);
+    if (maxTtl == Long.MAX_VALUE) {
+      return entry;
+    }
+    long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxTtl));
+    if (expiresAt - entry.expiresAt >= 0) {
+      return entry;
+    }
+    return new Entry<>(entry.future, expiresAt - (entry.expiresAt - entry.refreshAt), expiresAt);
+  }
+
+  private void fetch(Entry<T> entry) {
+    CompletableFuture<T> fetched;
+    try {
+      fetched = supplier.get();
+      if (fetched == null) {
+        throw new NullPointerException("supplier returned null");
+      }
+    } catch (Throwable t) {
+      current.compareAndSet(entry, null);
+      entry.future.completeExceptionally(t);
+      return;
+    }
+    fetched.whenComplete((v, t) -> {
+      if (t != null) {
+        current.compareAndSet(entry, null);
+        entry.future.completeExceptionally(t);
+      } else {
+        current.compareAndSet(entry, bounded(entry, v));
+        entry.future.complete(v);
+      }
+    });
+  }
+
+  private CompletableFuture<Void> refreshInBackground(Entry<T> stale) {
+    if (!stale.future.isDone() || stale.future.isCompletedExceptionally() || !refreshing.compareAndSet(false, true)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    long started = System.nanoTime();
+    CompletableFuture<T> fetched;
+    try {
+      fetched = supplier.get();
+      if (fetched == null) {
+        throw new NullPointerException("supplier returned null");
       }
+    } catch (Throwable t) {
+      // the stale entry is served until it expires, after which callers fetch in the foreground
+      refreshing.set(false);
+      return CompletableFuture.failedFuture(t);
+    }
+    return fetched.whenComplete((v, t) -> {
+      if (t == null) {
+        current.compareAndSet(stale, bounded(newEntry(CompletableFuture.completedFuture(v), started), v));
+      }
+      refreshing.set(false);
+    }).thenApply(v -> null);
+  }
+
+  private static final class Entry<T> {
+    private final CompletableFuture<T> future;
+    private final long refreshAt;
+    private final long expiresAt;
+
+    private Entry(CompletableFuture<T> future, long refreshAt, long expiresAt) {
+      this.future = future;
+      this.refreshAt = refreshAt;
+      this.expiresAt = expiresAt;
     }
   }
 }
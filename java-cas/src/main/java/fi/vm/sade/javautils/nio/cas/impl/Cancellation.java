@@ -0,0 +1,64 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+
+/**
+ * The stages of one request that the caller can no longer see once its future is done: the attempts and the delays
+ * between them. Cancelling cancels the stages started so far, and a stage started after that is cancelled at once,
+ * so that a request that was cancelled or timed out stops sending and releases its connection.
+ */
+public class Cancellation {
+
+    private final Queue<Future<?>> stages = new ConcurrentLinkedQueue<>();
+    private volatile boolean cancelled;
+
+    /**
+     * Cancels the stages when {@code future} completes exceptionally, e.g. when the caller cancels it or it times
+     * out with {@link CompletableFuture#orTimeout}. A stage that failed by itself is already done by then.
+     *
+     * @return {@code future}
+     */
+    public <T> CompletableFuture<T> cancelledWith(CompletableFuture<T> future) {
+        future.whenComplete((v, t) -> {
+            if (t != null) {
+                cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return {@code stage}, which is cancelled with the request
+     */
+    public <F extends Future<?>> F track(F stage) {
+        stages.add(stage);
+        // after adding, so that a concurrent cancel either sees the stage or is seen here
+        if (cancelled) {
+            stage.cancel(true);
+        }
+        return stage;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return a failed future for a stage that is not started as the request has been cancelled
+     */
+    public <T> CompletableFuture<T> failed(String description) {
+        return CompletableFuture.failedFuture(new CancellationException(String.format("Cancelled before %s", description)));
+    }
+
+    public void cancel() {
+        cancelled = true;
+        Future<?> stage;
+        while ((stage = stages.poll()) != null) {
+            stage.cancel(true);
+        }
+    }
+}
@@ -2,32 +2,32 @@ package fi.vm.sade.javautils.nio.cas.impl;
 
 import fi.vm.sade.javautils.nio.cas.CasClient;
 import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.CasPhase;
+import fi.vm.sade.javautils.nio.cas.RetryPolicy;
 import fi.vm.sade.javautils.nio.cas.UserDetails;
+import fi.vm.sade.javautils.nio.cas.exceptions.CircuitBreakerOpenException;
 import fi.vm.sade.javautils.nio.cas.exceptions.ServiceTicketException;
 import fi.vm.sade.javautils.nio.cas.exceptions.TicketGrantingTicketException;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
+import org.asynchttpclient.AsyncHandler;
 import org.asynchttpclient.AsyncHttpClient;
 import org.asynchttpclient.Request;
 import org.asynchttpclient.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.StringReader;
+
+import java.io.IOException;
+import java.time.Duration;
 import java.util.HashMap;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 
 public class CasClientImpl implements CasClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(CasClientImpl.class);
@@ -35,62 +35,128 @@ public class CasClientImpl implements CasClient {
     private final AsyncHttpClient asyncHttpClient;
     private final CasSessionFetcher casSessionFetcher;
     private final CasUtils utils;
+    private final RetryBudget retryBudget;
+    private final RetryBackoff retryBackoff;
+    private final StreamLimiter streamLimiter;
+    private final ServiceCircuitBreakers serviceCircuitBreakers;
+    private final ConcurrencyLimiters concurrencyLimiters;
+    private final boolean closesHttpClient;
 
     public CasClientImpl(CasConfig config,
                          AsyncHttpClient asyncHttpClient,
                          CasSessionFetcher casSessionFetcher) {
+        this(config, asyncHttpClient, casSessionFetcher, false);
+    }
+
+    /**
+     * @param closesHttpClient whether {@link #close} closes {@code asyncHttpClient}, which the client then owns
+     */
+    public CasClientImpl(CasConfig config,
+                         AsyncHttpClient asyncHttpClient,
+                         CasSessionFetcher casSessionFetcher,
+                         boolean closesHttpClient) {
+        this(config, asyncHttpClient, casSessionFetcher, closesHttpClient, null);
+    }
+
+    /**
+     * @param concurrencyLimiters adjusted with each attempt of {@link #execute} and
+     *                            {@link #executeAndRetryWithCleanSessionOnStatusCodes}, or null
+     */
+    public CasClientImpl(CasConfig config,
+                         AsyncHttpClient asyncHttpClient,
+                         CasSessionFetcher casSessionFetcher,
+                         boolean closesHttpClient,
+                         ConcurrencyLimiters concurrencyLimiters) {
         this.config = config;
+        this.closesHttpClient = closesHttpClient;
+        this.concurrencyLimiters = concurrencyLimiters;
         this.utils = new CasUtils(this.config);
         this.asyncHttpClient = asyncHttpClient;
         this.casSessionFetcher = casSessionFetcher;
+        this.retryBudget = config.getRetryBudgetRatio() == null
+                ? RetryBudget.unlimited()
+                : new RetryBudget(config.getRetryBudgetRatio(), config.getRetryBudgetMaxBurst());
+        this.retryBackoff = new RetryBackoff(config.getRetryBackoffBaseMs(), config.getRetryBackoffMaxMs());
+        this.streamLimiter = config.getHttp2MaxConcurrentStreams() == null
+                ? null
+                : new StreamLimiter(config.getHttp2MaxConcurrentStreams());
+        this.serviceCircuitBreakers = config.getServiceCircuitBreakerFailureRateThreshold() == null
+                ? null
+                : new ServiceCircuitBreakers(CircuitBreakerConfig.custom()
+                        .failureRateThreshold(config.getServiceCircuitBreakerFailureRateThreshold())
+                        .slowCallRateThreshold(config.getServiceCircuitBreakerSlowCallRateThreshold())
+                        .slowCallDurationThreshold(Duration.ofMillis(config.getServiceCircuitBreakerSlowCallDurationMs()))
+                        .waitDurationInOpenState(Duration.ofMillis(config.getServiceCircuitBreakerWaitInOpenStateMs()))
+                        .permittedNumberOfCallsInHalfOpenState(4)
+                        .minimumNumberOfCalls(6)
+                        .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.TIME_BASED)
+                        .slidingWindowSize(10)
+                        .build(),
+                        config.getServiceCircuitBreakerRoutes(),
+                        config.getMetricsListener());
     }
 
-    private CompletableFuture<Response> executeWithSession(Request request, boolean retrySessionFetch) {
-        return this.casSessionFetcher.fetchSessionToken()
-                .handle(Either<String>::new)
-                .thenCompose(session -> {
-                    final Throwable cause = unwrap(session.throwable);
-                    if (retrySessionFetch
-                            && (cause instanceof ServiceTicketException || cause instanceof TicketGrantingTicketException)) {
-                        LOGGER.warn("Clearing stores and retrying executeWithSession, retrySessionFetch {}", retrySessionFetch, session.throwable);
-                        this.casSessionFetcher.clearTgtStore();
-                        this.casSessionFetcher.clearSessionStore();
-                        return executeWithSession(request, false);
-                    }
-                    if (cause != null) {
-                        return CompletableFuture.failedFuture(cause);
-                    }
-                    this.asyncHttpClient.getConfig().getCookieStore().clear();
-                    Request requestWithSession =
-                            utils.withCallerIdAndCsrfHeader(request.toBuilder())
-                                    .addOrReplaceCookie(new DefaultCookie(config.getjSessionName(), session.value))
-                                    .build();
-                    return this.asyncHttpClient.executeRequest(requestWithSession).toCompletableFuture();
-                });
+    private CompletableFuture<Attempt> executeWithSession(Request request, boolean retrySessionFetch, Exchange exchange, IntPredicate retriedStatus) {
+        if (config.isServiceTicketPerRequest()) {
+            return CasUtils.timed(config.getMetricsListener(), CasPhase.CREDENTIALS, this.casSessionFetcher::fetchServiceTicketForRequest)
+                    .handle(Either<String>::new)
+                    .thenCompose(ticket -> executeWithCredential(request, retrySessionFetch, exchange, retriedStatus, ticket, value ->
+                            send(utils.withTicket(utils.withCallerIdAndCsrfHeader(request.toBuilder()), value).build(), null, exchange, retriedStatus)));
+        }
+        return CasUtils.timed(config.getMetricsListener(), CasPhase.CREDENTIALS, this.casSessionFetcher::fetchSession)
+                .handle(Either<CasSession>::new)
+                .thenCompose(session -> executeWithCredential(request, retrySessionFetch, exchange, retriedStatus, session, value ->
+                        send(utils.withCallerIdAndCsrfHeader(request.toBuilder())
+                                .addOrReplaceCookie(new DefaultCookie(config.getjSessionName(), value.getToken()))
+                                .build(), value, exchange, retriedStatus)));
     }
 
-    private static Throwable unwrap(Throwable t) {
-        while ((t instanceof CompletionException || t instanceof ExecutionException)
-                && t.getCause() != null && t.getCause() != t) {
-            t = t.getCause();
+    private <T> CompletableFuture<Attempt> executeWithCredential(Request request, boolean retrySessionFetch, Exchange exchange, IntPredicate retriedStatus,
+                                                                 Either<T> credential, Function<T, CompletableFuture<Attempt>> send) {
+        final Throwable cause = unwrap(credential.throwable);
+        if (retrySessionFetch
+                && (cause instanceof ServiceTicketException || cause instanceof TicketGrantingTicketException)) {
+            // the fetcher has already dropped the TGT that failed to produce a service ticket
+            LOGGER.warn("Retrying executeWithSession, retrySessionFetch {}", retrySessionFetch, credential.throwable);
+            return executeWithSession(request, false, exchange, retriedStatus);
         }
-        return t;
+        if (cause != null) {
+            return CompletableFuture.failedFuture(cause);
+        }
+        return send.apply(credential.value);
     }
 
-    private CompletableFuture<Response> retryConditionally(Request request, Response response, int numberOfRetries, Set<Integer> statusCodesToRetry) {
-        if (statusCodesToRetry.contains(response.getStatusCode())) {
-            LOGGER.warn(String.format("Retrying request %s (response status code = %s)", request.getUrl(), response.getStatusCode()));
-            this.casSessionFetcher.clearSessionStore();
-            this.casSessionFetcher.clearTgtStore();
-            return executeWithRetries(request, numberOfRetries - 1, statusCodesToRetry);
-        } else {
-            return CompletableFuture.completedFuture(response);
+    /**
+     * Sends an attempt, which is cancelled with the request: while waiting for a stream it leaves the queue, and in
+     * flight it is aborted, closing its connection.
+     */
+    private CompletableFuture<Attempt> send(Request request, CasSession session, Exchange exchange, IntPredicate retriedStatus) {
+        if (exchange.cancellation.isCancelled()) {
+            // e.g. timed out while waiting for the session
+            return exchange.cancellation.failed(String.format("sending request %s", request.getUrl()));
         }
+        CasUtils.clearCookieStore(this.asyncHttpClient);
+        Supplier<CompletableFuture<Response>> execution = () -> {
+            CompletableFuture<Response> exchanged = exchange.send(request, retriedStatus);
+            return CasUtils.cancelsSource(CasUtils.timed(config.getMetricsListener(), CasPhase.REQUEST, () -> exchanged), exchanged);
+        };
+        Supplier<CompletableFuture<Response>> guarded = serviceCircuitBreakers == null
+                ? execution
+                : () -> serviceCircuitBreakers.execute(request, execution);
+        // the wait for a stream is not part of the request phase, nor timed by the circuit breaker of the service
+        Supplier<CompletableFuture<Response>> limited = streamLimiter == null
+                ? guarded
+                : () -> streamLimiter.execute(request.getUri(), guarded);
+        return exchange.cancellation.track(limited.get())
+                .thenApply(response -> new Attempt(session, response));
     }
 
-    private CompletableFuture<Response> retryConditionally(Request request, Throwable exception, int numberOfRetries, Set<Integer> statusCodesToRetry) {
-        LOGGER.warn(String.format("Retrying request %s on exception!", request.getUrl()), exception);
-        return executeWithRetries(request, numberOfRetries - 1, statusCodesToRetry);
+    private static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException)
+                && t.getCause() != null && t.getCause() != t) {
+            t = t.getCause();
+        }
+        return t;
     }
 
     private static class Either<T> {
@@ -103,29 +169,211 @@ public class CasClientImpl implements CasClient {
         }
     }
 
-    private CompletableFuture<Response> executeWithRetries(Request request, int numberOfRetries, Set<Integer> statusCodesToRetry) {
-        CompletableFuture<Response> execution = executeWithSession(request, true);
-        if (numberOfRetries < 1) {
-            return execution;
-        } else {
-            return execution.handle(Either<Response>::new).thenCompose(entry -> {
-                    if(entry.throwable != null) {
-                        return retryConditionally(request, entry.throwable, numberOfRetries, statusCodesToRetry);
-                    } else {
-                        return retryConditionally(request, entry.value, numberOfRetries, statusCodesToRetry);
-                    }
-            });
+    /**
+     * A response together with the session it was requested with, or null if it was sent with a service ticket.
+     */
+    private static class Attempt {
+        public final CasSession session;
+        public final Response response;
+
+        public Attempt(CasSession session, Response response) {
+            this.session = session;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Sends the attempts of one request, and cancels them when the request is cancelled or times out.
+     */
+    private abstract static class Exchange {
+        final Cancellation cancellation = new Cancellation();
+
+        /**
+         * Sends one attempt, given the statuses that it would be retried on.
+         */
+        abstract CompletableFuture<Response> send(Request request, IntPredicate retriedStatus);
+
+        /**
+         * @return false once the request has been cancelled or a part of the response has reached the caller
+         */
+        boolean isRetryable() {
+            return !cancellation.isCancelled();
+        }
+    }
+
+    private RetryPolicy retryPolicy(int statusCode, Set<Integer> statusCodesToRetry) {
+        return statusCodesToRetry.contains(statusCode)
+                ? RetryPolicy.retryWithCleanSession(config.getNumberOfRetries())
+                : config.getRetryPolicies().get(statusCode);
+    }
+
+    private CompletableFuture<Response> executeWithRetries(Request request, Set<Integer> statusCodesToRetry, Exchange exchange) {
+        this.retryBudget.recordFirstAttempt();
+        return executeWithRetries(request, 0, statusCodesToRetry, exchange);
+    }
+
+    private CompletableFuture<Response> executeWithRetries(Request request, int retries, Set<Integer> statusCodesToRetry, Exchange exchange) {
+        IntPredicate retriedStatus = statusCode -> {
+            RetryPolicy policy = retryPolicy(statusCode, statusCodesToRetry);
+            return policy != null && retries < policy.getMaxRetries();
+        };
+        return executeWithSession(request, true, exchange, retriedStatus).handle(Either<Attempt>::new).thenCompose(entry -> {
+            if (entry.throwable != null) {
+                if (retries < config.getNumberOfRetries() && exchange.isRetryable()
+                        && !(unwrap(entry.throwable) instanceof CircuitBreakerOpenException)) {
+                    LOGGER.warn(String.format("Retrying request %s on exception!", request.getUrl()), entry.throwable);
+                    return retry(request, retries, statusCodesToRetry, exchange, CompletableFuture.failedFuture(entry.throwable));
+                }
+                return CompletableFuture.failedFuture(entry.throwable);
+            }
+            Attempt attempt = entry.value;
+            int statusCode = attempt.response.getStatusCode();
+            RetryPolicy policy = retryPolicy(statusCode, statusCodesToRetry);
+            if (policy == null || retries >= policy.getMaxRetries()) {
+                return CompletableFuture.completedFuture(attempt.response);
+            }
+            LOGGER.warn(String.format("Retrying request %s (response status code = %s)", request.getUrl(), statusCode));
+            if (policy.isCleanSession()) {
+                if (attempt.session != null) {
+                    this.casSessionFetcher.invalidateSession(attempt.session, statusCode);
+                } else {
+                    this.casSessionFetcher.clearTgtStore();
+                }
+            }
+            return retry(request, retries, statusCodesToRetry, exchange, CompletableFuture.completedFuture(attempt.response));
+        });
+    }
+
+    /**
+     * Sends the request again after the backoff delay, or returns the outcome of the last attempt if the retry budget
+     * has run out. The delay is waited on the shared scheduler, not on the I/O thread that completed the last attempt.
+     */
+    private CompletableFuture<Response> retry(Request request, int retries, Set<Integer> statusCodesToRetry, Exchange exchange,
+                                              CompletableFuture<Response> lastOutcome) {
+        if (!exchange.isRetryable()) {
+            return lastOutcome;
+        }
+        if (!this.retryBudget.tryRetry()) {
+            LOGGER.warn(String.format("Not retrying request %s, retry budget exhausted", request.getUrl()));
+            return lastOutcome;
+        }
+        long delayMs = this.retryBackoff.delayMs(retries);
+        if (delayMs <= 0) {
+            return executeWithRetries(request, retries + 1, statusCodesToRetry, exchange);
         }
+        CompletableFuture<Void> delay = exchange.cancellation.track(new CompletableFuture<>());
+        exchange.cancellation.track(CasScheduler.get().schedule(() -> delay.complete(null), delayMs, TimeUnit.MILLISECONDS));
+        return delay.thenCompose(v -> executeWithRetries(request, retries + 1, statusCodesToRetry, exchange));
     }
 
+    private Exchange buffered() {
+        return new Exchange() {
+            @Override
+            CompletableFuture<Response> send(Request request, IntPredicate retriedStatus) {
+                return concurrencyLimiters == null
+                        ? CasUtils.abortable(asyncHttpClient.executeRequest(request))
+                        : concurrencyLimiters.measured(request.getUri(), () -> CasUtils.abortable(asyncHttpClient.executeRequest(request)));
+            }
+        };
+    }
+
+    /**
+     * Cancelling the returned future, or its timing out, cancels the request: the attempt in flight is aborted, a
+     * pending retry is not sent, and a request still waiting for the session is not sent once the session is there.
+     * The login itself is shared with other requests and goes on.
+     */
     @Override
     public CompletableFuture<Response> execute(Request request) {
-        return withRequestTimeout(executeWithRetries(request, config.getNumberOfRetries(), Set.of(401)));
+        Exchange exchange = buffered();
+        return withRequestTimeout(exchange.cancellation.cancelledWith(executeWithRetries(request, Set.of(401), exchange)));
     }
 
     @Override
     public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
-        return withRequestTimeout(executeWithRetries(request, config.getNumberOfRetries(), statusCodesToRetry));
+        Exchange exchange = buffered();
+        return withRequestTimeout(exchange.cancellation.cancelledWith(executeWithRetries(request, statusCodesToRetry, exchange)));
+    }
+
+    /**
+     * Retried like {@link #execute} until a part of the response has reached {@code handler}. Responses that would be
+     * retried are buffered and reach the handler only if they are not retried after all.
+     */
+    @Override
+    public <T> CompletableFuture<T> executeStreaming(Request request, AsyncHandler<T> handler) {
+        StreamingExchange<T> streaming = new StreamingExchange<>(handler);
+        Exchange exchange = new Exchange() {
+            @Override
+            CompletableFuture<Response> send(Request attemptRequest, IntPredicate retriedStatus) {
+                return CasUtils.abortable(streaming.send(asyncHttpClient, attemptRequest, retriedStatus));
+            }
+
+            @Override
+            boolean isRetryable() {
+                return super.isRetryable() && !streaming.isDelivered();
+            }
+        };
+        CompletableFuture<T> result = executeWithRetries(request, Set.of(401), exchange)
+                .handle(Either<Response>::new)
+                .thenCompose(outcome -> {
+                    if (outcome.throwable != null) {
+                        streaming.fail(unwrap(outcome.throwable));
+                        return CompletableFuture.failedFuture(outcome.throwable);
+                    }
+                    try {
+                        return CompletableFuture.completedFuture(streaming.complete());
+                    } catch (Exception e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                });
+        return withRequestTimeout(exchange.cancellation.cancelledWith(result));
+    }
+
+    /**
+     * Logs in and opens {@link CasConfig#getWarmUpConnections} connections to the service and CAS at the same time.
+     * Only the login decides readiness: connections that fail to open are logged and left to the first requests.
+     */
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        long started = System.nanoTime();
+        CompletableFuture<Void> connections = CompletableFuture.allOf(
+                openConnections(config.getServiceUrl()),
+                openConnections(config.getCasUrl()));
+        return withRequestTimeout(this.casSessionFetcher.warmUp()
+                .thenCombine(connections, (credentials, opened) -> (Void) null)
+                .whenComplete((v, t) -> {
+                    if (t == null) {
+                        LOGGER.info(String.format("Warmed up CAS client in %s ms (service = %s, connections = %s)",
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), config.getServiceUrl(), config.getWarmUpConnections()));
+                    }
+                }));
+    }
+
+    @Override
+    public void close() {
+        this.casSessionFetcher.close();
+        if (closesHttpClient) {
+            try {
+                this.asyncHttpClient.close();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not close the HTTP client of the CAS client (service = %s)", config.getServiceUrl()), e);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> openConnections(String url) {
+        CompletableFuture<?>[] opened = new CompletableFuture<?>[config.getWarmUpConnections()];
+        CasUtils.clearCookieStore(this.asyncHttpClient);
+        for (int i = 0; i < opened.length; i++) {
+            // concurrent, so that each needs a connection of its own; the status does not matter
+            Request request = utils.withCallerIdAndCsrfHeader().setUrl(url).setMethod("HEAD").build();
+            opened[i] = this.asyncHttpClient.executeRequest(request).toCompletableFuture();
+        }
+        return CompletableFuture.allOf(opened).handle((v, t) -> {
+            if (t != null) {
+                LOGGER.warn(String.format("Could not open all %s warm-up connections to %s", opened.length, url), t);
+            }
+            return null;
+        });
     }
 
     private <T> CompletableFuture<T> withRequestTimeout(CompletableFuture<T> future) {
@@ -138,21 +386,13 @@ public class CasClientImpl implements CasClient {
 
     private UserDetails getUserDetailsFromResponse(Response response) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new InputSource(new StringReader(response.getResponseBody())));
-
-            String username = document.getElementsByTagName("cas:user").item(0).getTextContent();
-            String henkiloOid = document.getElementsByTagName("cas:oidHenkilo").item(0).getTextContent();
-            String kayttajaTyyppi = Optional.ofNullable(document.getElementsByTagName("cas:kayttajaTyyppi").item(0)).map(Node::getTextContent).orElse(null);
-            String idpEntityId = Optional.ofNullable(document.getElementsByTagName("cas:idpEntityId").item(0)).map(Node::getTextContent).orElse(null);
-
-            NodeList roleNodes = document.getElementsByTagName("cas:roles");
-            Set<String> roles = IntStream.range(0, roleNodes.getLength())
-                    .mapToObj(i -> roleNodes.item(i).getTextContent())
-                    .collect(Collectors.toSet());
-
-            return new UserDetails(username, henkiloOid, kayttajaTyyppi, idpEntityId, roles);
+            ServiceValidateResponse document = ServiceValidateResponse.parse(response);
+            return new UserDetails(
+                    document.getRequired("cas:user"),
+                    document.getRequired("cas:oidHenkilo"),
+                    document.get("cas:kayttajaTyyppi"),
+                    document.get("cas:idpEntityId"),
+                    document.getRoles());
         } catch (Exception e) {
             throw new RuntimeException("CAS service ticket validation failed: ", e);
         }
@@ -161,21 +401,19 @@ public class CasClientImpl implements CasClient {
     private HashMap<String, String> getOppijaAttributesFromResponse(Response response) {
         HashMap<String, String> oppijaAttributes = new HashMap<>();
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new InputSource(new StringReader(response.getResponseBody())));
-
-            oppijaAttributes.put("clientName", document.getElementsByTagName("cas:clientName").item(0).getTextContent());
-            oppijaAttributes.put("displayName", document.getElementsByTagName("cas:displayName").item(0).getTextContent());
-            oppijaAttributes.put("givenName", document.getElementsByTagName("cas:givenName").item(0).getTextContent());
-            oppijaAttributes.put("personOid", document.getElementsByTagName("cas:personOid").item(0).getTextContent());
-            oppijaAttributes.put("personName", document.getElementsByTagName("cas:personName").item(0).getTextContent());
-            oppijaAttributes.put("firstName", document.getElementsByTagName("cas:firstName").item(0).getTextContent());
-            oppijaAttributes.put("nationalIdentificationNumber", document.getElementsByTagName("cas:nationalIdentificationNumber").item(0).getTextContent());
-
-            if (document.getElementsByTagName("cas:impersonatorNationalIdentificationNumber").getLength() > 0) {
-                oppijaAttributes.put("impersonatorNationalIdentificationNumber", document.getElementsByTagName("cas:impersonatorNationalIdentificationNumber").item(0).getTextContent());
-                oppijaAttributes.put("impersonatorDisplayName", document.getElementsByTagName("cas:impersonatorDisplayName").item(0).getTextContent());
+            ServiceValidateResponse document = ServiceValidateResponse.parse(response);
+
+            oppijaAttributes.put("clientName", document.getRequired("cas:clientName"));
+            oppijaAttributes.put("displayName", document.getRequired("cas:displayName"));
+            oppijaAttributes.put("givenName", document.getRequired("cas:givenName"));
+            oppijaAttributes.put("personOid", document.getRequired("cas:personOid"));
+            oppijaAttributes.put("personName", document.getRequired("cas:personName"));
+            oppijaAttributes.put("firstName", document.getRequired("cas:firstName"));
+            oppijaAttributes.put("nationalIdentificationNumber", document.getRequired("cas:nationalIdentificationNumber"));
+
+            if (document.get("cas:impersonatorNationalIdentificationNumber") != null) {
+                oppijaAttributes.put("impersonatorNationalIdentificationNumber", document.get("cas:impersonatorNationalIdentificationNumber"));
+                oppijaAttributes.put("impersonatorDisplayName", document.getRequired("cas:impersonatorDisplayName"));
             }
             return oppijaAttributes;
         } catch (Exception e) {
@@ -189,19 +427,19 @@ public class CasClientImpl implements CasClient {
                 .addQueryParam("ticket", ticket)
                 .addQueryParam("service", service)
                 .setMethod("GET").build();
-        return asyncHttpClient.executeRequest(req).toCompletableFuture();
+        return CasUtils.abortable(asyncHttpClient.executeRequest(req));
     }
 
     @Override
     public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
-        return withRequestTimeout(fetchValidationResponse(service, ticket)
-                .thenApply(this::getUserDetailsFromResponse));
+        CompletableFuture<Response> response = fetchValidationResponse(service, ticket);
+        return withRequestTimeout(CasUtils.cancelsSource(response.thenApply(this::getUserDetailsFromResponse), response));
     }
 
     @Override
     public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
-        return withRequestTimeout(fetchValidationResponse(service, ticket)
-                .thenApply(this::getOppijaAttributesFromResponse));
+        CompletableFuture<Response> response = fetchValidationResponse(service, ticket);
+        return withRequestTimeout(CasUtils.cancelsSource(response.thenApply(this::getOppijaAttributesFromResponse), response));
     }
 
 }
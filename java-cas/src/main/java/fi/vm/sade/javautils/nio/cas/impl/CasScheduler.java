@@ -0,0 +1,27 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Process-wide timer for the java-cas background work. Scheduled tasks must only start asynchronous
+ * work, never block, as all clients share the single thread.
+ */
+public final class CasScheduler {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder()
+                    .namingPattern("async-cas-client-scheduler-%d")
+                    .daemon(true)
+                    .priority(Thread.NORM_PRIORITY)
+                    .build());
+
+    private CasScheduler() {
+    }
+
+    public static ScheduledExecutorService get() {
+        return SCHEDULER;
+    }
+}
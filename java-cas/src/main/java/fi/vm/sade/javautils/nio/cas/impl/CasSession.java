@@ -0,0 +1,52 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A session cookie value together with the TGT it was fetched with. Every fetched session gets a new generation,
+ * so that a failed request invalidates only the session it was sent with.
+ */
+public final class CasSession {
+    private final String token;
+    private final String ticketGrantingTicket;
+    private final long generation;
+    private final long createdAtNanos;
+
+    CasSession(String token, String ticketGrantingTicket, long generation) {
+        this(token, ticketGrantingTicket, generation, 0);
+    }
+
+    /**
+     * @param ageMs time since the session was fetched, e.g. by another client that stored it
+     */
+    CasSession(String token, String ticketGrantingTicket, long generation, long ageMs) {
+        this.token = token;
+        this.ticketGrantingTicket = ticketGrantingTicket;
+        this.generation = generation;
+        this.createdAtNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ageMs);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    String getTicketGrantingTicket() {
+        return ticketGrantingTicket;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return time since the session was fetched from CAS, by this client or by the one that stored it
+     */
+    long getAgeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAtNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "CasSession{generation=" + generation + '}';
+    }
+}
@@ -1,6 +1,9 @@
 package fi.vm.sade.javautils.nio.cas.impl;
 
 import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+import fi.vm.sade.javautils.nio.cas.CasPhase;
+import fi.vm.sade.javautils.nio.cas.SessionStore;
 import fi.vm.sade.javautils.nio.cas.exceptions.MissingSessionCookieException;
 import fi.vm.sade.javautils.nio.cas.exceptions.ServiceTicketException;
 import fi.vm.sade.javautils.nio.cas.exceptions.TicketGrantingTicketException;
@@ -15,19 +18,41 @@ import org.slf4j.LoggerFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 import static java.util.concurrent.CompletableFuture.*;
 
 public class CasSessionFetcher {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CasSessionFetcher.class);
+    private static final int REFRESH_AHEAD_DIVISOR = 10;
+    private static final long STORE_LOGIN_LEASE_MS = 30000;
     private final AsyncHttpClient asyncHttpClient;
     private final CasConfig config;
     private final CasUtils utils;
-    private final CachedSupplier<String> sessionTicketSupplier;
+    private final CachedSupplier<CasSession> sessionTicketSupplier;
     private final CachedSupplier<String> tgtSupplier;
+    private final TicketGrantingTicketRegistry.Registration tgtRegistration;
+    private final ServiceTicketPool serviceTicketPool;
+    private final StoredTokenSupplier<CasSession> storedSessions;
+    private final StoredTokenSupplier<String> storedTgts;
+    private final AdaptiveTtl adaptiveSessionTtl;
+    // the latest session, until it is invalidated
+    private final AtomicReference<CasSession> liveSession = new AtomicReference<>();
+    private final List<ScheduledFuture<?>> scheduledRefreshes = new ArrayList<>();
+    private final AtomicLong sessionGenerations = new AtomicLong();
+    private final AtomicLong reportedSessionTtlMs = new AtomicLong();
+    private final CasMetricsListener metrics;
 
     public CasSessionFetcher(CasConfig config,
                              AsyncHttpClient asyncHttpClient,
@@ -53,8 +78,73 @@ public class CasSessionFetcher {
         this.config = config;
         this.utils = new CasUtils(this.config);
         this.asyncHttpClient = asyncHttpClient;
-        this.sessionTicketSupplier = new CachedSupplier<>(sessionTicketTTL, new CircuitBreakerSupplier<>("sessionTicket", circuitBreakerConfig, this::fetchSessionForReal));
-        this.tgtSupplier = new CachedSupplier<>(tgtTTL, new CircuitBreakerSupplier<>("tgt", circuitBreakerConfig, this::fetchTicketGrantingTicketForReal));
+        this.metrics = config.getMetricsListener();
+        this.adaptiveSessionTtl = config.getAdaptiveSessionTtlMinMs() != null
+                ? new AdaptiveTtl(sessionTicketTTL, config.getAdaptiveSessionTtlMinMs(), config.getAdaptiveSessionTtlMaxMs())
+                : null;
+        this.reportedSessionTtlMs.set(adaptiveSessionTtl != null ? adaptiveSessionTtl.getTtlMs() : sessionTicketTTL);
+        LongSupplier sessionTtl = adaptiveSessionTtl != null ? adaptiveSessionTtl::getTtlMs : () -> sessionTicketTTL;
+        Supplier<CompletableFuture<CasSession>> sessionLogin =
+                new CircuitBreakerSupplier<>("sessionTicket", circuitBreakerConfig, this::fetchSessionForReal, metrics);
+        Supplier<CompletableFuture<String>> tgtLogin =
+                new CircuitBreakerSupplier<>("tgt", circuitBreakerConfig, this::fetchTicketGrantingTicketForReal, metrics);
+        SessionStore store = config.getSessionStore();
+        if (store != null) {
+            // a session read from the store comes without its TGT, which stays in the store under its own key
+            this.storedSessions = new StoredTokenSupplier<>(store,
+                    String.format("session %s@%s", config.getUsername(), config.getSessionUrl()),
+                    sessionTtl, STORE_LOGIN_LEASE_MS, sessionLogin, CasSession::getToken,
+                    (token, ageMs) -> new CasSession(token, null, sessionGenerations.incrementAndGet(), ageMs));
+            this.storedTgts = new StoredTokenSupplier<>(store,
+                    String.format("tgt %s@%s", config.getUsername(), config.getCasUrl()),
+                    () -> tgtTTL, STORE_LOGIN_LEASE_MS, tgtLogin, tgt -> tgt, (tgt, ageMs) -> tgt);
+            sessionLogin = storedSessions;
+            tgtLogin = storedTgts;
+        } else {
+            this.storedSessions = null;
+            this.storedTgts = null;
+        }
+        Supplier<CompletableFuture<CasSession>> trackedSessionLogin = sessionLogin;
+        // a token read from the store expires in memory when it does in the store
+        this.sessionTicketSupplier = new CachedSupplier<>(sessionTtl, () -> sessionTtl.getAsLong() / REFRESH_AHEAD_DIVISOR,
+                storedSessions != null ? storedSessions::remainingTtlMs : session -> Long.MAX_VALUE,
+                () -> trackedSessionLogin.get().thenApply(this::replaceLiveSession), "session", metrics);
+        ToLongFunction<String> tgtMaxTtl = storedTgts != null ? storedTgts::remainingTtlMs : tgt -> Long.MAX_VALUE;
+        Long tgtRefreshPeriodMs = config.getProactiveRefreshFraction() != null
+                ? (long) (tgtTTL * config.getProactiveRefreshFraction())
+                : null;
+        if (config.isTicketGrantingTicketShared()) {
+            // the registry refreshes a shared TGT
+            this.tgtRegistration = TicketGrantingTicketRegistry.register(config, tgtTTL, tgtTTL / REFRESH_AHEAD_DIVISOR,
+                    tgtLogin, tgtMaxTtl, metrics, tgtRefreshPeriodMs);
+            this.tgtSupplier = tgtRegistration.getTicketGrantingTickets();
+        } else {
+            this.tgtRegistration = null;
+            this.tgtSupplier = new CachedSupplier<>(() -> tgtTTL, () -> tgtTTL / REFRESH_AHEAD_DIVISOR, tgtMaxTtl,
+                    tgtLogin, "tgt", metrics);
+            if (tgtRefreshPeriodMs != null) {
+                scheduleRefresh("TGT", tgtSupplier, tgtRefreshPeriodMs);
+            }
+        }
+        this.serviceTicketPool = config.getServiceTicketPoolSize() > 0
+                ? new ServiceTicketPool(config.getServiceTicketPoolSize(), config.getPooledServiceTicketMaxAgeMs(), this::fetchServiceTicket, metrics)
+                : null;
+        if (config.getProactiveRefreshFraction() != null) {
+            scheduleRefresh("session", sessionTicketSupplier, (long) (sessionTicketTTL * config.getProactiveRefreshFraction()));
+        }
+    }
+
+    private void scheduleRefresh(String name, CachedSupplier<?> supplier, long periodMs) {
+        // an open circuit breaker fails the refresh fast, and the cached value is served until the next round
+        scheduledRefreshes.add(CasScheduler.get().scheduleAtFixedRate(
+                () -> supplier.refresh().whenComplete((v, t) -> {
+                    if (t != null) {
+                        LOGGER.warn(String.format("Proactive CAS %s refresh failed (service = %s)", name, config.getSessionUrl()), unwrap(t));
+                    }
+                }),
+                periodMs,
+                Math.max(1, periodMs),
+                TimeUnit.MILLISECONDS));
     }
 
     private String tgtFromResponse(Response tgtResponse) {
@@ -83,9 +173,9 @@ public class CasSessionFetcher {
                 .addFormParam("username", config.getUsername())
                 .addFormParam("password", config.getPassword())
                 .build();
-        this.asyncHttpClient.getConfig().getCookieStore().clear();
-        return this.asyncHttpClient.executeRequest(tgtRequest).toCompletableFuture()
-                .thenApply(this::tgtFromResponse)
+        CasUtils.clearCookieStore(this.asyncHttpClient);
+        return CasUtils.timed(metrics, CasPhase.TICKET_GRANTING_TICKET, () -> this.asyncHttpClient.executeRequest(tgtRequest).toCompletableFuture()
+                .thenApply(this::tgtFromResponse))
                 .handle((value, throwable) -> {
                     if (throwable == null) {
                         return CompletableFuture.completedFuture(value);
@@ -117,19 +207,13 @@ public class CasSessionFetcher {
                 .setMethod("POST")
                 .addFormParam("service", serviceUrl)
                 .build();
-        this.asyncHttpClient.getConfig().getCookieStore().clear();
+        CasUtils.clearCookieStore(this.asyncHttpClient);
         return this.asyncHttpClient.executeRequest(serviceTicketRequest).toCompletableFuture();
     }
 
-    private CompletableFuture<Response> sessionFromSTResponse(Response response) {
+    private CompletableFuture<String> serviceTicketFromResponse(Response response) {
         if (200 == response.getStatusCode()) {
-            String ticket = response.getResponseBody().trim();
-            Request sessionRequest = utils.withCallerIdAndCsrfHeader()
-                    .setUrl(config.getSessionUrl())
-                    .setMethod("GET")
-                    .addQueryParam("ticket", ticket)
-                    .build();
-            return this.asyncHttpClient.executeRequest(sessionRequest).toCompletableFuture();
+            return completedFuture(response.getResponseBody().trim());
         } else {
             return failedFuture(
                 new ServiceTicketException(
@@ -138,6 +222,31 @@ public class CasSessionFetcher {
         }
     }
 
+    private CompletableFuture<Response> sessionFromServiceTicket(String ticket) {
+        Request sessionRequest = utils.withCallerIdAndCsrfHeader()
+                .setUrl(config.getSessionUrl())
+                .setMethod("GET")
+                .addQueryParam("ticket", ticket)
+                .build();
+        return this.asyncHttpClient.executeRequest(sessionRequest).toCompletableFuture();
+    }
+
+    private CompletableFuture<String> fetchServiceTicket(String ticketGrantingTicket) {
+        return CasUtils.timed(metrics, CasPhase.SERVICE_TICKET, () -> this.fetchServiceTicketWithTgt(ticketGrantingTicket)
+                .thenCompose(this::serviceTicketFromResponse))
+            .whenComplete((ticket, t) -> {
+                if (unwrap(t) instanceof ServiceTicketException) {
+                    // CAS may have dropped the TGT, so the next attempt logs in again
+                    invalidateTicketGrantingTicket(ticketGrantingTicket);
+                }
+            });
+    }
+
+    private CompletableFuture<String> fetchServiceTicket() {
+        return this.fetchTicketGrantingTicket()
+            .thenCompose(this::fetchServiceTicket);
+    }
+
     private CompletableFuture<String> responseAsToken(Response response) {
         for (Cookie cookie : response.getCookies()) {
             if (config.getjSessionName().equals(cookie.name())) {
@@ -147,15 +256,40 @@ public class CasSessionFetcher {
         return failedFuture(new MissingSessionCookieException(config.getjSessionName(), response));
     }
 
-    private CompletableFuture<String> fetchSessionForReal() {
+    private CompletableFuture<CasSession> fetchSessionForReal() {
         LOGGER.info(String.format("Fetching CAS session (service = %s, session name = %s)", config.getSessionUrl(), config.getjSessionName()));
         return this.fetchTicketGrantingTicket()
-            .thenCompose(this::fetchServiceTicketWithTgt)
-            .thenCompose(this::sessionFromSTResponse)
-            .thenCompose(this::responseAsToken);
+            .thenCompose(tgt -> this.fetchServiceTicket(tgt)
+                .thenCompose(ticket -> CasUtils.timed(metrics, CasPhase.SESSION, () -> this.sessionFromServiceTicket(ticket)
+                    .thenCompose(this::responseAsToken)))
+                .thenApply(token -> new CasSession(token, tgt, sessionGenerations.incrementAndGet())));
     }
 
-    public CompletableFuture<String> fetchSessionToken() {
+    private CasSession replaceLiveSession(CasSession session) {
+        CasSession replaced = liveSession.getAndSet(session);
+        if (replaced != null && adaptiveSessionTtl != null) {
+            long ageMs = replaced.getAgeMs();
+            adaptSessionTtl(adaptiveSessionTtl.survived(ageMs), String.format("session generation %s lasted %s ms", replaced.getGeneration(), ageMs));
+        }
+        return session;
+    }
+
+    private void adaptSessionTtl(long ttlMs, String reason) {
+        long previousTtlMs = reportedSessionTtlMs.getAndSet(ttlMs);
+        if (previousTtlMs != ttlMs) {
+            LOGGER.info(String.format("CAS session TTL changed from %s ms to %s ms, %s (service = %s)", previousTtlMs, ttlMs, reason, config.getSessionUrl()));
+            metrics.sessionTtlChanged(ttlMs);
+        }
+    }
+
+    /**
+     * @return the time sessions are used before fetching new ones, learned from the service with an adaptive TTL
+     */
+    public long getSessionTtlMs() {
+        return adaptiveSessionTtl != null ? adaptiveSessionTtl.getTtlMs() : config.getSessionTicketValidMs();
+    }
+
+    public CompletableFuture<CasSession> fetchSession() {
         try {
             return sessionTicketSupplier.get();
         } catch (Throwable t) {
@@ -163,13 +297,107 @@ public class CasSessionFetcher {
         }
     }
 
+    /**
+     * Fetches what the first request would otherwise wait for: the session, or the TGT when each request gets a
+     * service ticket of its own.
+     */
+    public CompletableFuture<Void> warmUp() {
+        CompletableFuture<?> credentials = config.isServiceTicketPerRequest() ? fetchTicketGrantingTicket() : fetchSession();
+        return credentials.thenApply(c -> null);
+    }
+
+    public CompletableFuture<String> fetchSessionToken() {
+        return fetchSession().thenApply(CasSession::getToken);
+    }
+
+    /**
+     * Drops the session and the TGT it was fetched with, unless they have already been replaced. Requests that
+     * fail with the same session all call this, and only the first one causes a new CAS login. For a session read
+     * from a session store, the TGTs fetched before now are dropped.
+     */
+    public void invalidateSession(CasSession session) {
+        invalidateSession(session, 0);
+    }
+
+    /**
+     * Like {@link #invalidateSession(CasSession)}, for a session a request got {@code statusCode} with. The age of
+     * a session rejected with 401 adjusts an adaptive TTL.
+     */
+    public void invalidateSession(CasSession session, int statusCode) {
+        if (liveSession.compareAndSet(session, null) && statusCode == 401 && adaptiveSessionTtl != null) {
+            long ageMs = session.getAgeMs();
+            adaptSessionTtl(adaptiveSessionTtl.rejected(ageMs), String.format("session generation %s was rejected at %s ms", session.getGeneration(), ageMs));
+        }
+        // the TGT goes first, so that the login replacing the session cannot pick up the TGT being dropped
+        if (this.sessionTicketSupplier.holds(session)) {
+            if (session.getTicketGrantingTicket() != null) {
+                invalidateTicketGrantingTicket(session.getTicketGrantingTicket());
+            } else {
+                // read from the store, so the TGT it was fetched with is not known; any TGT fetched before it goes
+                this.tgtSupplier.clear();
+                this.storedTgts.clear();
+                if (this.serviceTicketPool != null) {
+                    this.serviceTicketPool.clear();
+                }
+            }
+        }
+        if (this.sessionTicketSupplier.invalidate(session)) {
+            if (this.storedSessions != null) {
+                this.storedSessions.invalidate(session);
+            }
+            LOGGER.info(String.format("Invalidated CAS session generation %s (service = %s)", session.getGeneration(), config.getSessionUrl()));
+        }
+    }
+
+    private void invalidateTicketGrantingTicket(String ticketGrantingTicket) {
+        if (this.tgtSupplier.invalidate(ticketGrantingTicket)) {
+            if (this.storedTgts != null) {
+                this.storedTgts.invalidate(ticketGrantingTicket);
+            }
+            if (this.serviceTicketPool != null) {
+                this.serviceTicketPool.clear();
+            }
+        }
+    }
+
+    /**
+     * A service ticket to send with a single request, from the pool of pre-fetched tickets when there is one.
+     */
+    public CompletableFuture<String> fetchServiceTicketForRequest() {
+        try {
+            return serviceTicketPool == null ? fetchServiceTicket() : serviceTicketPool.take();
+        } catch (Throwable t) {
+            return failedFuture(t);
+        }
+    }
+
+    /**
+     * Stops the proactive refreshes and leaves a shared TGT to the other clients, see
+     * {@link fi.vm.sade.javautils.nio.cas.CasClient#close}. Cached tokens can still be used and fetched on demand.
+     */
+    public void close() {
+        scheduledRefreshes.forEach(f -> f.cancel(false));
+        if (this.tgtRegistration != null) {
+            this.tgtRegistration.unregister();
+        }
+    }
+
     public void clearSessionStore() {
         this.sessionTicketSupplier.clear();
-        this.asyncHttpClient.getConfig().getCookieStore().clear();
+        if (this.storedSessions != null) {
+            this.storedSessions.clear();
+        }
+        CasUtils.clearCookieStore(this.asyncHttpClient);
     }
     public void clearTgtStore() {
         this.tgtSupplier.clear();
-        this.asyncHttpClient.getConfig().getCookieStore().clear();
+        if (this.storedTgts != null) {
+            this.storedTgts.clear();
+        }
+        if (this.serviceTicketPool != null) {
+            this.serviceTicketPool.clear();
+        }
+        CasUtils.clearCookieStore(this.asyncHttpClient);
     }
 
     static Throwable unwrap(Throwable t) {
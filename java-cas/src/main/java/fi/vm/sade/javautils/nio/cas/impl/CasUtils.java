@@ -1,8 +1,21 @@
 package fi.vm.sade.javautils.nio.cas.impl;
 
 import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+import fi.vm.sade.javautils.nio.cas.CasPhase;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.ListenableFuture;
+import org.asynchttpclient.Request;
 import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.cookie.CookieStore;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class CasUtils {
     private final CasConfig config;
@@ -27,4 +40,89 @@ public class CasUtils {
             return requestBuilder.addHeader(this.config.getServiceTicketHeaderName(), ticket);
         }
     }
+
+    /**
+     * Clients built by CasClientBuilder have no cookie store, so every request carries only its own cookies.
+     * A caller supplied client may have one, and its cookies would replace the session cookie set on our
+     * requests, so it is emptied before each CAS call as before.
+     */
+    public static void clearCookieStore(AsyncHttpClient asyncHttpClient) {
+        CookieStore cookieStore = asyncHttpClient.getConfig().getCookieStore();
+        if (cookieStore != null) {
+            cookieStore.clear();
+        }
+    }
+
+    /**
+     * @return true if the request has a body or form parameters of any kind
+     */
+    public static boolean hasBody(Request request) {
+        return request.getStringData() != null
+                || request.getByteData() != null
+                || request.getCompositeByteData() != null
+                || request.getByteBufferData() != null
+                || request.getStreamData() != null
+                || request.getBodyGenerator() != null
+                || request.getFile() != null
+                || !request.getFormParams().isEmpty()
+                || !request.getBodyParts().isEmpty();
+    }
+
+    /**
+     * Cancels {@code source} when {@code dependent} completes exceptionally, e.g. when the caller cancels it or it
+     * times out with {@link CompletableFuture#orTimeout}. A future derived with {@code thenApply} and the like does not
+     * cancel the one it was derived from by itself. If {@code source} failed first, it is already done and cancelling
+     * it does nothing.
+     *
+     * @return {@code dependent}
+     */
+    public static <T> CompletableFuture<T> cancelsSource(CompletableFuture<T> dependent, Future<?> source) {
+        dependent.whenComplete((v, t) -> {
+            if (t != null) {
+                source.cancel(true);
+            }
+        });
+        return dependent;
+    }
+
+    /**
+     * @return the outcome of an HTTP request, which aborts the request and closes its connection when cancelled or
+     * timed out. The future from {@link ListenableFuture#toCompletableFuture} would leave the request in flight.
+     */
+    public static <T> CompletableFuture<T> abortable(ListenableFuture<T> request) {
+        return cancelsSource(request.toCompletableFuture().thenApply(Function.identity()), request);
+    }
+
+    /**
+     * @return true if {@code t} is the cancellation of a future, possibly wrapped by a dependent of it
+     */
+    public static boolean isCancellation(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null && t.getCause() != t) {
+            t = t.getCause();
+        }
+        return t instanceof CancellationException;
+    }
+
+    /**
+     * Reports the duration and outcome of {@code phase} to {@code metrics}. The returned future completes with the
+     * outcome of {@code phase} as it is, after the listener has been called, whatever the listener does.
+     */
+    public static <T> CompletableFuture<T> timed(CasMetricsListener metrics, CasPhase casPhase, Supplier<CompletableFuture<T>> phase) {
+        long started = System.nanoTime();
+        CompletableFuture<T> timed = new CompletableFuture<>();
+        phase.get().whenComplete((v, t) -> {
+            // reported before anything waiting on the phase runs, which would not be the case for a second
+            // dependent of the phase's own future
+            try {
+                metrics.phaseCompleted(casPhase, System.nanoTime() - started, t == null);
+            } finally {
+                if (t != null) {
+                    timed.completeExceptionally(t);
+                } else {
+                    timed.complete(v);
+                }
+            }
+        });
+        return timed;
+    }
 }
@@ -0,0 +1,288 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the body of a 2xx response to a channel as it arrives, and completes with a {@link Response} of its status and
+ * headers only once the body has been written. The body of any other response is kept in the {@link Response} instead,
+ * as it is an error page and not the content asked for.
+ *
+ * The I/O thread only queues the body parts, which a writer thread then writes to the blocking channel in order. While
+ * {@value #MAX_QUEUED_PARTS} parts wait for the channel, the connection is not read, so a slow channel slows down the
+ * response instead of piling it up in memory.
+ */
+public class ChannelBodyHandler implements AsyncHandler<CompletableFuture<Response>> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelBodyHandler.class);
+    static final int MAX_QUEUED_PARTS = 16;
+    // channel writes block, and the writers come and go with the responses
+    private static final ExecutorService WRITER_EXECUTOR = Executors.newCachedThreadPool(
+            new BasicThreadFactory.Builder()
+                    .namingPattern("async-cas-client-channel-writer-%d")
+                    .daemon(true)
+                    .build());
+
+    /**
+     * Where the body goes. The channel is opened on the first body byte of a 2xx response, so that nothing is written
+     * for other responses, and all the methods are called on the writer thread.
+     */
+    @FunctionalInterface
+    private interface Target {
+        WritableByteChannel open() throws IOException;
+
+        /**
+         * Called once the whole body has been written to the channel.
+         */
+        default void commit() throws IOException {
+        }
+
+        /**
+         * Called instead of {@link #commit} when the response or a write has failed, whether the channel was opened
+         * or not.
+         */
+        default void discard() {
+        }
+    }
+
+    private final Target target;
+    private final Response.ResponseBuilder response = new Response.ResponseBuilder();
+    private final CompletableFuture<Response> written = new CompletableFuture<>();
+    private final Queue<Runnable> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private boolean successful;
+    private volatile Channel connection;
+    private volatile IOException writeFailure;
+    // the writer thread only
+    private WritableByteChannel channel;
+    // guarded by this
+    private int queuedParts;
+    private Channel paused;
+
+    private ChannelBodyHandler(Target target) {
+        this.target = target;
+    }
+
+    /**
+     * Writes the body to the channel and leaves it open.
+     */
+    public static ChannelBodyHandler toChannel(WritableByteChannel channel) {
+        return new ChannelBodyHandler(() -> channel);
+    }
+
+    /**
+     * Writes the body to a temporary file next to {@code file}, which is moved over {@code file} once the whole body
+     * has been written, and removed if the response fails.
+     */
+    public static ChannelBodyHandler toFile(Path file) {
+        return new ChannelBodyHandler(new FileTarget(file));
+    }
+
+    /**
+     * @return the response once its body has been written, see {@link CasClient#executeToChannel}, or the failure of
+     * the request once what was written of it has been discarded. Cancelling it cancels the request.
+     */
+    public CompletableFuture<Response> execute(CasClient client, Request request) {
+        CompletableFuture<CompletableFuture<Response>> streamed = client.executeStreaming(request, this);
+        return CasUtils.cancelsSource(streamed
+                .handle((body, t) -> t == null ? body : discarded(t))
+                .thenCompose(body -> body), streamed);
+    }
+
+    @Override
+    public void onTcpConnectSuccess(InetSocketAddress remoteAddress, Channel connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void onConnectionPooled(Channel connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public State onStatusReceived(HttpResponseStatus responseStatus) {
+        successful = responseStatus.getStatusCode() / 100 == 2;
+        response.accumulate(responseStatus);
+        return State.CONTINUE;
+    }
+
+    @Override
+    public State onHeadersReceived(HttpHeaders headers) {
+        response.accumulate(headers);
+        return State.CONTINUE;
+    }
+
+    @Override
+    public State onBodyPartReceived(HttpResponseBodyPart bodyPart) {
+        if (!successful) {
+            response.accumulate(bodyPart);
+            return State.CONTINUE;
+        }
+        if (writeFailure != null) {
+            return State.ABORT;
+        }
+        // the bytes of the part, as its buffer may be released once this returns
+        ByteBuffer buffer = ByteBuffer.wrap(bodyPart.getBodyPartBytes());
+        queued();
+        write(() -> {
+            try {
+                if (writeFailure == null) {
+                    WritableByteChannel out = channel();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                writeFailure = e;
+            } finally {
+                dequeued();
+            }
+        });
+        return State.CONTINUE;
+    }
+
+    @Override
+    public void onThrowable(Throwable t) {
+        resume();
+        discarded(t);
+    }
+
+    @Override
+    public CompletableFuture<Response> onCompleted() {
+        // the connection goes back to the pool, while the rest of the parts are already queued
+        resume();
+        Response head = response.build();
+        if (!successful) {
+            return CompletableFuture.completedFuture(head);
+        }
+        write(() -> {
+            try {
+                if (writeFailure != null) {
+                    throw writeFailure;
+                }
+                // an empty body is written as an empty file
+                channel();
+                target.commit();
+                written.complete(head);
+            } catch (IOException e) {
+                target.discard();
+                written.completeExceptionally(e);
+            }
+        });
+        return written;
+    }
+
+    private CompletableFuture<Response> discarded(Throwable t) {
+        CompletableFuture<Response> failed = new CompletableFuture<>();
+        write(() -> {
+            target.discard();
+            failed.completeExceptionally(t);
+        });
+        return failed;
+    }
+
+    private WritableByteChannel channel() throws IOException {
+        if (channel == null) {
+            channel = target.open();
+        }
+        return channel;
+    }
+
+    private void write(Runnable write) {
+        writes.add(write);
+        if (drainRequests.getAndIncrement() == 0) {
+            WRITER_EXECUTOR.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs the writes in the order they were queued, on one writer thread at a time.
+     */
+    private void drain() {
+        do {
+            writes.poll().run();
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    private synchronized void queued() {
+        Channel reading = connection;
+        if (++queuedParts >= MAX_QUEUED_PARTS && paused == null && reading != null) {
+            paused = reading;
+            reading.config().setAutoRead(false);
+        }
+    }
+
+    private synchronized void dequeued() {
+        if (--queuedParts <= MAX_QUEUED_PARTS / 2) {
+            resume();
+        }
+    }
+
+    private synchronized void resume() {
+        if (paused != null) {
+            paused.config().setAutoRead(true);
+            paused = null;
+        }
+    }
+
+    private static final class FileTarget implements Target {
+        private final Path file;
+        private Path part;
+        private FileChannel channel;
+
+        private FileTarget(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public WritableByteChannel open() throws IOException {
+            part = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".part");
+            channel = FileChannel.open(part, StandardOpenOption.WRITE);
+            return channel;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            channel.close();
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void discard() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (part != null) {
+                    Files.deleteIfExists(part);
+                }
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not remove the partial file %s of a failed response", part), e);
+            }
+        }
+    }
+}
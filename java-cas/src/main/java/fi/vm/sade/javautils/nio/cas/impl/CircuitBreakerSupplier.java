@@ -1,5 +1,6 @@
 package fi.vm.sade.javautils.nio.cas.impl;
 
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 
@@ -12,7 +13,13 @@ public class CircuitBreakerSupplier<T> implements Supplier<CompletableFuture<T>>
   private final Supplier<CompletionStage<T>> decorated;
 
   public CircuitBreakerSupplier(String name, CircuitBreakerConfig circuitBreakerConfig, Supplier<CompletableFuture<T>> supplier) {
+    this(name, circuitBreakerConfig, supplier, CasMetricsListener.NOOP);
+  }
+
+  public CircuitBreakerSupplier(String name, CircuitBreakerConfig circuitBreakerConfig, Supplier<CompletableFuture<T>> supplier, CasMetricsListener metrics) {
     CircuitBreaker breaker = CircuitBreaker.of(name, circuitBreakerConfig);
+    breaker.getEventPublisher().onStateTransition(event -> metrics.circuitBreakerStateChanged(name,
+        event.getStateTransition().getFromState().name(), event.getStateTransition().getToState().name()));
     this.decorated = CircuitBreaker.decorateCompletionStage(breaker, supplier::get);
   }
 
@@ -0,0 +1,67 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.ConcurrencyLimit;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.uri.Uri;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * The {@link AimdConcurrencyLimiter}s of the target hosts ({@code host:port}).
+ *
+ * {@link fi.vm.sade.javautils.nio.cas.ConcurrencyLimitedCasClient} holds a slot for the whole request, while
+ * {@link CasClientImpl} adjusts the limits with each attempt it sends: neither the login nor the backoff between
+ * retries tells of the load of the host.
+ */
+public class ConcurrencyLimiters {
+
+    private final int maxConcurrency;
+    private final int maxQueuedRequests;
+    private final long latencyThresholdMs;
+    private final ConcurrentMap<String, AimdConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    public ConcurrencyLimiters(int maxConcurrency, int maxQueuedRequests, long latencyThresholdMs) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.latencyThresholdMs = latencyThresholdMs;
+    }
+
+    public AimdConcurrencyLimiter get(Uri uri) {
+        return limiters.computeIfAbsent(uri.getHost() + ":" + uri.getExplicitPort(),
+                host -> new AimdConcurrencyLimiter(host, maxConcurrency, maxQueuedRequests, latencyThresholdMs));
+    }
+
+    /**
+     * @return the current limits by target host ({@code host:port})
+     */
+    public Map<String, ConcurrencyLimit> getLimits() {
+        return Collections.unmodifiableMap(new HashMap<>(limiters));
+    }
+
+    /**
+     * Adjusts the limit of the host of {@code uri} with a response that took {@code latencyNanos}. A server error
+     * (5xx) is a failure like an exception, and a cancelled request is not recorded.
+     */
+    public void record(Uri uri, long latencyNanos, Response response, Throwable failure) {
+        if (failure != null && CasUtils.isCancellation(failure)) {
+            return;
+        }
+        get(uri).record(latencyNanos, failure != null || (response != null && response.getStatusCode() >= 500));
+    }
+
+    /**
+     * @return the attempt sent by {@code send}, recorded to the limit of the host of {@code uri} once it completes
+     */
+    public CompletableFuture<Response> measured(Uri uri, Supplier<CompletableFuture<Response>> send) {
+        long started = System.nanoTime();
+        CompletableFuture<Response> attempt = send.get();
+        attempt.whenComplete((response, t) -> record(uri, System.nanoTime() - started, response, t));
+        return attempt;
+    }
+}
@@ -0,0 +1,52 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the last {@code size} requests, for estimating a latency percentile.
+ *
+ * The percentile is recomputed after every tenth of the window has been replaced, so reading it is cheap and it
+ * follows the recent latencies with a small lag.
+ */
+public class LatencyWindow {
+
+    private final long[] latenciesNanos;
+    private final double percentile;
+    private final int recomputeEvery;
+    private int next;
+    private int count;
+    private int sinceComputed;
+    private long percentileNanos = -1;
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public LatencyWindow(int size, double percentile) {
+        if (size < 1 || percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(String.format("size must be positive and percentile between 0 and 100, were %s and %s", size, percentile));
+        }
+        this.latenciesNanos = new long[size];
+        this.percentile = percentile;
+        this.recomputeEvery = Math.max(1, size / 10);
+    }
+
+    public synchronized void record(long latencyNanos) {
+        latenciesNanos[next] = latencyNanos;
+        next = (next + 1) % latenciesNanos.length;
+        count = Math.min(count + 1, latenciesNanos.length);
+        if (++sinceComputed >= recomputeEvery && count == latenciesNanos.length) {
+            long[] sorted = latenciesNanos.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            percentileNanos = sorted[Math.max(0, index)];
+            sinceComputed = 0;
+        }
+    }
+
+    /**
+     * @return the latency percentile, or -1 until the window has been filled
+     */
+    public synchronized long getPercentileNanos() {
+        return percentileNanos;
+    }
+}
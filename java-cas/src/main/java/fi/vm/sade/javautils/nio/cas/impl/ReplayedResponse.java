@@ -0,0 +1,134 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.Response;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hands a buffered {@link Response} to an {@link AsyncHandler} as if it was streamed: the status, the headers and the
+ * whole body as one part. For clients that cannot stream, see
+ * {@link fi.vm.sade.javautils.nio.cas.CasClient#executeStreaming}.
+ */
+public final class ReplayedResponse {
+
+    private ReplayedResponse() {
+    }
+
+    /**
+     * @return what {@code handler} made of the response, or the failure of the request, which is handed to
+     * {@code handler} first. Cancelling the returned future cancels {@code response}.
+     */
+    public static <T> CompletableFuture<T> replay(CompletableFuture<Response> response, AsyncHandler<T> handler) {
+        return CasUtils.cancelsSource(response
+                .handle((r, t) -> {
+                    if (t != null) {
+                        handler.onThrowable(CasSessionFetcher.unwrap(t));
+                        return CompletableFuture.<T>failedFuture(t);
+                    }
+                    try {
+                        return CompletableFuture.completedFuture(replay(r, handler));
+                    } catch (Throwable e) {
+                        handler.onThrowable(e);
+                        return CompletableFuture.<T>failedFuture(e);
+                    }
+                })
+                .thenCompose(f -> f), response);
+    }
+
+    private static <T> T replay(Response response, AsyncHandler<T> handler) throws Exception {
+        if (handler.onStatusReceived(new Status(response)) == AsyncHandler.State.CONTINUE
+                && handler.onHeadersReceived(response.getHeaders()) == AsyncHandler.State.CONTINUE) {
+            byte[] body = response.getResponseBodyAsBytes();
+            if (body.length > 0) {
+                handler.onBodyPartReceived(new BodyPart(body));
+            }
+        }
+        return handler.onCompleted();
+    }
+
+    private static final class Status extends HttpResponseStatus {
+        private final Response response;
+
+        private Status(Response response) {
+            super(response.getUri());
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public String getStatusText() {
+            return response.getStatusText();
+        }
+
+        // the protocol of a buffered response is not kept
+        @Override
+        public String getProtocolName() {
+            return "HTTP";
+        }
+
+        @Override
+        public int getProtocolMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getProtocolMinorVersion() {
+            return 1;
+        }
+
+        @Override
+        public String getProtocolText() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return response.getRemoteAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return response.getLocalAddress();
+        }
+    }
+
+    private static final class BodyPart extends HttpResponseBodyPart {
+        private final byte[] bytes;
+
+        private BodyPart(byte[] bytes) {
+            super(true);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public byte[] getBodyPartBytes() {
+            return bytes;
+        }
+
+        @Override
+        public ByteBuffer getBodyByteBuffer() {
+            return ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public ByteBuf getBodyByteBuf() {
+            return Unpooled.wrappedBuffer(bytes);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP responses by request key, evicted in least recently used order when their total size would exceed
+ * {@code maxBytes}. The freshness of a response comes from its {@code Cache-Control: max-age} or {@code Expires},
+ * and responses that can be revalidated with an {@code ETag} or {@code Last-Modified} are kept after they go stale.
+ */
+public class ResponseCache {
+
+    /** Rough overhead of an entry besides the body and headers, so that empty bodies still count. */
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+    private long evictions;
+
+    public ResponseCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException(String.format("maxBytes must be positive, was %s", maxBytes));
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A cached response and what is needed to decide whether it can be served and how to revalidate it.
+     */
+    public static final class Entry {
+        public final Response response;
+        public final String etag;
+        public final String lastModified;
+        final Map<String, String> varyingHeaders;
+        final long sizeBytes;
+        final long expiresAtMillis;
+
+        Entry(Response response, Map<String, String> varyingHeaders, long sizeBytes, long expiresAtMillis) {
+            this.response = response;
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+            this.varyingHeaders = varyingHeaders;
+            this.sizeBytes = sizeBytes;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        public boolean isFresh(long nowMillis) {
+            return nowMillis < expiresAtMillis;
+        }
+
+        public boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * @return the same response, fresh for as long as the headers of the {@code 304 Not Modified} allow
+         */
+        Entry revalidated(Response notModified, long nowMillis) {
+            return new Entry(response, varyingHeaders, sizeBytes, nowMillis + freshnessMillis(notModified, nowMillis));
+        }
+    }
+
+    /**
+     * @return the entry for {@code key}, or null if there is none for the headers of {@code request}
+     */
+    public synchronized Entry get(String key, Request request) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : entry.varyingHeaders.entrySet()) {
+            if (!Objects.equals(header.getValue(), request.getHeaders().get(header.getKey()))) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the response to {@code request} if it may be cached, or drops the old entry if not.
+     */
+    public void put(String key, Request request, Response response) {
+        long now = System.currentTimeMillis();
+        Entry entry = cacheable(request, response) ? newEntry(request, response, now) : null;
+        synchronized (this) {
+            Entry old = entry == null ? entries.remove(key) : entries.put(key, entry);
+            if (old != null) {
+                sizeBytes -= old.sizeBytes;
+            }
+            if (entry != null) {
+                sizeBytes += entry.sizeBytes;
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Extends the freshness of an entry after a {@code 304 Not Modified}, unless the entry has been replaced meanwhile.
+     */
+    public synchronized void revalidated(String key, Entry entry, Response notModified) {
+        if (entries.get(key) == entry) {
+            entries.put(key, entry.revalidated(notModified, System.currentTimeMillis()));
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void evict() {
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (sizeBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            sizeBytes -= leastRecentlyUsed.next().sizeBytes;
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+    }
+
+    private boolean cacheable(Request request, Response response) {
+        if (response.getStatusCode() != 200
+                || hasDirective(request.getHeaders().get("Cache-Control"), "no-store")
+                || hasDirective(response.getHeader("Cache-Control"), "no-store")
+                || response.getHeader("Set-Cookie") != null
+                || "*".equals(trimmed(response.getHeader("Vary")))) {
+            return false;
+        }
+        return freshnessMillis(response, System.currentTimeMillis()) > 0
+                || response.getHeader("ETag") != null
+                || response.getHeader("Last-Modified") != null;
+    }
+
+    private Entry newEntry(Request request, Response response, long now) {
+        Map<String, String> varyingHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String vary = response.getHeader("Vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                if (!name.isBlank()) {
+                    varyingHeaders.put(name.trim(), request.getHeaders().get(name.trim()));
+                }
+            }
+        }
+        long size = ENTRY_OVERHEAD_BYTES + response.getResponseBodyAsBytes().length;
+        for (Map.Entry<String, String> header : response.getHeaders()) {
+            size += header.getKey().length() + header.getValue().length();
+        }
+        return new Entry(response, varyingHeaders, size, now + freshnessMillis(response, now));
+    }
+
+    /**
+     * @return how long the response stays fresh from now, 0 if it has to be revalidated before every use
+     */
+    static long freshnessMillis(Response response, long nowMillis) {
+        String cacheControl = response.getHeader("Cache-Control");
+        if (hasDirective(cacheControl, "no-cache")) {
+            return 0;
+        }
+        long age = TimeUnit.SECONDS.toMillis(parseLong(response.getHeader("Age"), 0));
+        long maxAge = directiveSeconds(cacheControl, "max-age");
+        if (maxAge >= 0) {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(maxAge) - age);
+        }
+        String expiresHeader = response.getHeader("Expires");
+        if (expiresHeader == null) {
+            return 0;
+        }
+        Long expires = parseDate(expiresHeader);
+        if (expires == null) {
+            // an invalid Expires means already expired
+            return 0;
+        }
+        Long date = parseDate(response.getHeader("Date"));
+        return Math.max(0, expires - (date != null ? date : nowMillis) - age);
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String part : cacheControl.split(",")) {
+            String name = part.trim().toLowerCase(Locale.ROOT);
+            if (name.equals(directive) || name.startsWith(directive + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long directiveSeconds(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String part : cacheControl.split(",")) {
+            String[] nameAndValue = part.trim().split("=", 2);
+            if (nameAndValue.length == 2 && nameAndValue[0].trim().equalsIgnoreCase(directive)) {
+                return parseLong(nameAndValue[1].trim().replace("\"", ""), -1);
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(String value, long orElse) {
+        try {
+            return value == null ? orElse : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return orElse;
+        }
+    }
+
+    private static Long parseDate(String value) {
+        try {
+            return value == null ? null : ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String trimmed(String value) {
+        return value == null ? null : value.trim();
+    }
+}
@@ -0,0 +1,34 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the delay before a retry is random between zero and
+ * {@code baseMs * 2^retries}, capped at {@code maxMs}, so that clients retrying the same failure spread out
+ * instead of hitting the service again together.
+ */
+public class RetryBackoff {
+
+    private final long baseMs;
+    private final long maxMs;
+
+    public RetryBackoff(long baseMs, long maxMs) {
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+    }
+
+    /**
+     * @param retries retries already sent for the request
+     */
+    public long delayMs(int retries) {
+        if (baseMs <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(capMs(retries) + 1);
+    }
+
+    long capMs(int retries) {
+        long cap = baseMs << Math.min(retries, 30);
+        return cap < 0 ? maxMs : Math.min(maxMs, cap);
+    }
+}
@@ -0,0 +1,55 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+/**
+ * Token bucket that keeps retries to a fraction of the first attempts.
+ *
+ * Every first attempt adds {@code retryRatio} tokens and every retry takes a whole one. The bucket starts full and
+ * holds at most {@code maxRetryBurst} tokens, so a quiet client can still retry a few failures, but a client whose
+ * requests all fail retries only {@code retryRatio} of them.
+ */
+public class RetryBudget {
+
+    private final double retryRatio;
+    private final int maxRetryBurst;
+    private double tokens;
+
+    public RetryBudget(double retryRatio, int maxRetryBurst) {
+        if (retryRatio < 0 || maxRetryBurst < 0) {
+            throw new IllegalArgumentException(String.format("retryRatio and maxRetryBurst must not be negative, were %s and %s", retryRatio, maxRetryBurst));
+        }
+        this.retryRatio = retryRatio;
+        this.maxRetryBurst = maxRetryBurst;
+        this.tokens = maxRetryBurst;
+    }
+
+    /**
+     * A budget that never runs out.
+     */
+    public static RetryBudget unlimited() {
+        return new RetryBudget(0, 0) {
+            @Override
+            public void recordFirstAttempt() {
+            }
+
+            @Override
+            public boolean tryRetry() {
+                return true;
+            }
+        };
+    }
+
+    public synchronized void recordFirstAttempt() {
+        tokens = Math.min(maxRetryBurst, tokens + retryRatio);
+    }
+
+    /**
+     * @return true if a retry may be sent, in which case its token has been taken
+     */
+    public synchronized boolean tryRetry() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
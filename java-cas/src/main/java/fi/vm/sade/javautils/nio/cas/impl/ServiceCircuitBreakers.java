@@ -0,0 +1,100 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+import fi.vm.sade.javautils.nio.cas.exceptions.CircuitBreakerOpenException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.uri.Uri;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A circuit breaker for the service requests to each host ({@code scheme://host:port}), or to each of the given URL
+ * prefixes for services sharing a host. Exceptions and 5xx responses count as failures. While a breaker is open,
+ * requests fail at once with {@link CircuitBreakerOpenException} instead of waiting for a dead service to time out.
+ * State changes are reported to the metrics listener with the host or prefix as the name of the breaker.
+ */
+public class ServiceCircuitBreakers {
+
+    private final CircuitBreakerConfig circuitBreakerConfig;
+    private final List<String> routePrefixes;
+    private final CasMetricsListener metrics;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public ServiceCircuitBreakers(CircuitBreakerConfig circuitBreakerConfig, List<String> routePrefixes, CasMetricsListener metrics) {
+        this.circuitBreakerConfig = circuitBreakerConfig;
+        // the longest matching prefix wins
+        this.routePrefixes = routePrefixes.stream()
+                .sorted(Comparator.comparingInt(String::length).reversed())
+                .collect(Collectors.toUnmodifiableList());
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends the request with {@code execution} if the breaker of its host or route allows, and records the outcome.
+     * Cancelling the returned future cancels the request, which releases its permission without an outcome.
+     */
+    public CompletableFuture<Response> execute(Request request, Supplier<CompletableFuture<Response>> execution) {
+        String name = nameOf(request);
+        CircuitBreaker breaker = breakers.computeIfAbsent(name, this::newBreaker);
+        if (!breaker.tryAcquirePermission()) {
+            return CompletableFuture.failedFuture(new CircuitBreakerOpenException(name,
+                    String.format("Circuit breaker %s is open, not sending request %s", name, request.getUrl())));
+        }
+        long started = System.nanoTime();
+        CompletableFuture<Response> response;
+        try {
+            response = execution.get();
+        } catch (Throwable t) {
+            response = CompletableFuture.failedFuture(t);
+        }
+        return CasUtils.cancelsSource(response.whenComplete((r, t) -> {
+            long durationNanos = System.nanoTime() - started;
+            if (t != null && CasUtils.isCancellation(t)) {
+                breaker.releasePermission();
+            } else if (t != null) {
+                breaker.onError(durationNanos, TimeUnit.NANOSECONDS, t);
+            } else if (r.getStatusCode() >= 500) {
+                breaker.onError(durationNanos, TimeUnit.NANOSECONDS,
+                        new IllegalStateException(String.format("Service responded %s", r.getStatusCode())));
+            } else {
+                breaker.onSuccess(durationNanos, TimeUnit.NANOSECONDS);
+            }
+        }), response);
+    }
+
+    /**
+     * @return the state of the breaker, e.g. {@code OPEN}, or null if no request has been sent through it
+     */
+    String getState(String name) {
+        CircuitBreaker breaker = breakers.get(name);
+        return breaker == null ? null : breaker.getState().name();
+    }
+
+    private String nameOf(Request request) {
+        String url = request.getUrl();
+        for (String prefix : routePrefixes) {
+            if (url.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        Uri uri = request.getUri();
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getExplicitPort();
+    }
+
+    private CircuitBreaker newBreaker(String name) {
+        CircuitBreaker breaker = CircuitBreaker.of(name, circuitBreakerConfig);
+        breaker.getEventPublisher().onStateTransition(event -> metrics.circuitBreakerStateChanged(name,
+                event.getStateTransition().getFromState().name(), event.getStateTransition().getToState().name()));
+        return breaker;
+    }
+}
@@ -0,0 +1,130 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of service tickets fetched ahead of time, for services that want a fresh ticket with every request.
+ *
+ * Every ticket taken from the pool is replaced asynchronously. The pool size follows the number of tickets taken
+ * during the last ticket lifetime, up to {@code maxSize}, so an idle client stops fetching tickets. Tickets older
+ * than {@code maxAgeMs} are dropped, so that they are not used after CAS has stopped accepting them.
+ */
+public class ServiceTicketPool {
+
+  private final int maxSize;
+  private final long maxAgeNanos;
+  private final Supplier<CompletableFuture<String>> ticketSupplier;
+  private final CasMetricsListener metrics;
+
+  private final ConcurrentLinkedQueue<PooledTicket> tickets = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger refilling = new AtomicInteger();
+  private final AtomicInteger generation = new AtomicInteger();
+  private final AtomicLong demandWindowStart = new AtomicLong(System.nanoTime());
+  private final AtomicInteger currentDemand = new AtomicInteger();
+  private final AtomicInteger previousDemand = new AtomicInteger();
+
+  public ServiceTicketPool(int maxSize, long maxAgeMs, Supplier<CompletableFuture<String>> ticketSupplier) {
+    this(maxSize, maxAgeMs, ticketSupplier, CasMetricsListener.NOOP);
+  }
+
+  public ServiceTicketPool(int maxSize, long maxAgeMs, Supplier<CompletableFuture<String>> ticketSupplier, CasMetricsListener metrics) {
+    this.maxSize = maxSize;
+    this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+    this.ticketSupplier = ticketSupplier;
+    this.metrics = metrics;
+  }
+
+  public CompletableFuture<String> take() {
+    long now = System.nanoTime();
+    recordDemand(now);
+    CompletableFuture<String> ticket = null;
+    PooledTicket pooled;
+    while (ticket == null && (pooled = tickets.poll()) != null) {
+      if (now - pooled.fetchedAt < maxAgeNanos) {
+        ticket = CompletableFuture.completedFuture(pooled.ticket);
+      }
+    }
+    metrics.cacheAccessed("serviceTicketPool", ticket != null);
+    if (ticket == null) {
+      ticket = ticketSupplier.get();
+    }
+    refill();
+    return ticket;
+  }
+
+  /**
+   * Drops the pooled tickets and any tickets still being fetched, e.g. after the TGT they were fetched with became invalid.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    tickets.clear();
+  }
+
+  public int size() {
+    return tickets.size();
+  }
+
+  private void recordDemand(long now) {
+    long windowStart = demandWindowStart.get();
+    long elapsed = now - windowStart;
+    if (elapsed >= maxAgeNanos && demandWindowStart.compareAndSet(windowStart, now)) {
+      previousDemand.set(elapsed >= 2 * maxAgeNanos ? 0 : currentDemand.get());
+      currentDemand.set(0);
+    }
+    currentDemand.incrementAndGet();
+  }
+
+  private int targetSize() {
+    return Math.min(maxSize, Math.max(previousDemand.get(), currentDemand.get()));
+  }
+
+  private void refill() {
+    int target = targetSize();
+    for (int started = 0; started < target; ) {
+      int inFlight = refilling.get();
+      if (tickets.size() + inFlight >= target) {
+        return;
+      }
+      if (refilling.compareAndSet(inFlight, inFlight + 1)) {
+        fetchOne();
+        started++;
+      }
+    }
+  }
+
+  private void fetchOne() {
+    int fetchGeneration = generation.get();
+    long fetchedAt = System.nanoTime();
+    CompletableFuture<String> fetched;
+    try {
+      fetched = ticketSupplier.get();
+    } catch (Throwable t) {
+      refilling.decrementAndGet();
+      return;
+    }
+    // a failed refill is not retried here, the next take() fetches on demand and reports the error
+    fetched.whenComplete((ticket, t) -> {
+      if (t == null && fetchGeneration == generation.get()) {
+        tickets.add(new PooledTicket(ticket, fetchedAt));
+      }
+      refilling.decrementAndGet();
+    });
+  }
+
+  private static final class PooledTicket {
+    private final String ticket;
+    private final long fetchedAt;
+
+    private PooledTicket(String ticket, long fetchedAt) {
+      this.ticket = ticket;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
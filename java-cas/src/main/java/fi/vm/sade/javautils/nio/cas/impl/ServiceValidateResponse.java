@@ -0,0 +1,114 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import io.netty.handler.codec.http.HttpUtil;
+import org.asynchttpclient.Response;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The leaf elements of a CAS serviceValidate response, read in a single streaming pass.
+ *
+ * Elements are looked up by their qualified name (e.g. {@code cas:user}) like the CAS responses are written;
+ * the first occurrence of each element wins, except for {@code cas:roles} which are all collected.
+ */
+public final class ServiceValidateResponse {
+
+    private static final String ROLES = "cas:roles";
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private final Map<String, String> elements;
+    private final Set<String> roles;
+
+    private ServiceValidateResponse(Map<String, String> elements, Set<String> roles) {
+        this.elements = elements;
+        this.roles = roles;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    public static ServiceValidateResponse parse(Response response) throws XMLStreamException {
+        CharSequence charset = response.getContentType() == null ? null : HttpUtil.getCharsetAsSequence(response.getContentType());
+        return parse(response.getResponseBodyAsStream(), charset == null ? null : charset.toString());
+    }
+
+    /**
+     * @param encoding encoding of the body, or null to detect it from the XML declaration
+     */
+    public static ServiceValidateResponse parse(InputStream body, String encoding) throws XMLStreamException {
+        XMLStreamReader reader = encoding == null
+                ? XML_INPUT_FACTORY.createXMLStreamReader(body)
+                : XML_INPUT_FACTORY.createXMLStreamReader(body, encoding);
+        try {
+            Map<String, String> elements = new HashMap<>();
+            Set<String> roles = new HashSet<>();
+            Deque<StringBuilder> texts = new ArrayDeque<>();
+            boolean leaf = false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        texts.push(new StringBuilder());
+                        leaf = true;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (!texts.isEmpty()) {
+                            texts.peek().append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        String text = texts.pop().toString();
+                        if (leaf) {
+                            String name = reader.getLocalName();
+                            if (ROLES.equals(name)) {
+                                roles.add(text);
+                            } else {
+                                elements.putIfAbsent(name, text);
+                            }
+                        }
+                        leaf = false;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return new ServiceValidateResponse(elements, roles);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Can be null. */
+    public String get(String element) {
+        return elements.get(element);
+    }
+
+    /** @throws IllegalStateException if the response has no such element */
+    public String getRequired(String element) {
+        String value = elements.get(element);
+        if (value == null) {
+            throw new IllegalStateException(String.format("Element %s missing from CAS response", element));
+        }
+        return value;
+    }
+
+    /** Never null, but can be empty. */
+    public Set<String> getRoles() {
+        return roles;
+    }
+}
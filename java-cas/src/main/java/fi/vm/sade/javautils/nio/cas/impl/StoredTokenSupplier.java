@@ -0,0 +1,190 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.SessionStore;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Fetches a token through a {@link SessionStore}: a token another client has stored is used until it expires, and
+ * only the client that manages to take a lease on the expired entry logs in, while the others poll the store for the
+ * token it stores. A client that dies while logging in holds up the others for {@code leaseMs} at most. The store is
+ * only read when the token is not cached in memory, so it is accessed on a thread of its own without holding up the
+ * callers' threads. A token read from the store is cached only for what is left of its lifetime in the store, see
+ * {@link #remainingTtlMs}.
+ */
+public class StoredTokenSupplier<T> implements Supplier<CompletableFuture<T>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoredTokenSupplier.class);
+    static final long POLL_INTERVAL_MS = 100;
+    // store access blocks, and is rare enough for threads that come and go
+    private static final ExecutorService STORE_EXECUTOR = Executors.newCachedThreadPool(
+            new BasicThreadFactory.Builder()
+                    .namingPattern("async-cas-client-session-store-%d")
+                    .daemon(true)
+                    .build());
+
+    private final SessionStore store;
+    private final String key;
+    private final LongSupplier ttlMs;
+    private final long leaseMs;
+    private final Supplier<CompletableFuture<T>> login;
+    private final Function<T, String> encode;
+    private final BiFunction<String, Long, T> decode;
+    private volatile Read<T> lastRead;
+    private volatile String rejected;
+    private volatile long clearedAtMillis;
+
+    /**
+     * @param encode the token of a value fetched with {@code login}, as stored
+     * @param decode a value for a token read from the store, and the time since its login started in milliseconds
+     */
+    public StoredTokenSupplier(SessionStore store,
+                               String key,
+                               LongSupplier ttlMs,
+                               long leaseMs,
+                               Supplier<CompletableFuture<T>> login,
+                               Function<T, String> encode,
+                               BiFunction<String, Long, T> decode) {
+        this.store = store;
+        this.key = key;
+        this.ttlMs = ttlMs;
+        this.leaseMs = leaseMs;
+        this.login = login;
+        this.encode = encode;
+        this.decode = decode;
+    }
+
+    @Override
+    public CompletableFuture<T> get() {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        STORE_EXECUTOR.execute(() -> attempt(result));
+        return result;
+    }
+
+    private void attempt(CompletableFuture<T> result) {
+        try {
+            long now = System.currentTimeMillis();
+            SessionStore.Entry entry = store.get(key).orElse(null);
+            if (entry != null && now < entry.getExpiresAtMillis()) {
+                if (entry.getValue() == null) {
+                    // another client is logging in
+                    CasScheduler.get().schedule(() -> STORE_EXECUTOR.execute(() -> attempt(result)), POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                // as stored, since the TTL the token was stored with may differ from the current one
+                long loggedInAtMillis = entry.getLoggedInAtMillis();
+                if (!entry.getValue().equals(rejected) && loggedInAtMillis > clearedAtMillis) {
+                    T value = decode.apply(entry.getValue(), Math.max(0, now - loggedInAtMillis));
+                    lastRead = new Read<>(value, entry.getExpiresAtMillis());
+                    result.complete(value);
+                    return;
+                }
+            }
+            long version = entry == null ? 0 : entry.getVersion();
+            if (!store.compareAndSet(key, version, null, now, now + leaseMs)) {
+                // another client took the lease or stored a token first; queued, so that contention does not grow the stack
+                STORE_EXECUTOR.execute(() -> attempt(result));
+                return;
+            }
+            login(result, version + 1, now);
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    private void login(CompletableFuture<T> result, long leasedVersion, long started) {
+        CompletableFuture<T> fetched;
+        try {
+            fetched = login.get();
+        } catch (Throwable t) {
+            fetched = CompletableFuture.failedFuture(t);
+        }
+        fetched.whenComplete((value, throwable) -> STORE_EXECUTOR.execute(() -> {
+            try {
+                if (throwable == null) {
+                    store.compareAndSet(key, leasedVersion, encode.apply(value), started, started + ttlMs.getAsLong());
+                } else {
+                    // lets the next client log in right away
+                    store.compareAndSet(key, leasedVersion, null, 0, 0);
+                }
+            } catch (Throwable t) {
+                LOGGER.warn(String.format("Could not store CAS token %s", key), t);
+            }
+            if (throwable == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    /**
+     * @return what is left of the lifetime in the store of {@code value} if it was read from the store, so that it is
+     * not cached past it, and {@link Long#MAX_VALUE} for a value this client logged in for
+     */
+    public long remainingTtlMs(T value) {
+        Read<T> read = lastRead;
+        return read != null && read.value.equals(value) ? read.expiresAtMillis - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Expires the stored token if it is the one of {@code value}, so that no client picks it up any more.
+     */
+    public void invalidate(T value) {
+        String token = encode.apply(value);
+        // until the store has been updated, the token is passed over here
+        rejected = token;
+        STORE_EXECUTOR.execute(() -> {
+            try {
+                Optional<SessionStore.Entry> entry = store.get(key);
+                if (entry.isPresent() && token.equals(entry.get().getValue())) {
+                    store.compareAndSet(key, entry.get().getVersion(), null, 0, 0);
+                }
+            } catch (Throwable t) {
+                LOGGER.warn(String.format("Could not expire CAS token %s", key), t);
+            }
+        });
+    }
+
+    /**
+     * Expires the stored token if it was fetched before now, like {@link #invalidate} when the token is not known.
+     */
+    public void clear() {
+        long now = System.currentTimeMillis();
+        clearedAtMillis = now;
+        STORE_EXECUTOR.execute(() -> {
+            try {
+                Optional<SessionStore.Entry> entry = store.get(key);
+                if (entry.isPresent() && entry.get().getValue() != null && entry.get().getLoggedInAtMillis() <= now) {
+                    store.compareAndSet(key, entry.get().getVersion(), null, 0, 0);
+                }
+            } catch (Throwable t) {
+                LOGGER.warn(String.format("Could not expire CAS token %s", key), t);
+            }
+        });
+    }
+
+    /**
+     * The value of the token read last, and when it expires in the store.
+     */
+    private static final class Read<T> {
+        final T value;
+        final long expiresAtMillis;
+
+        Read(T value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
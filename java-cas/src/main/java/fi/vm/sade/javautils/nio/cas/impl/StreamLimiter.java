@@ -0,0 +1,142 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.asynchttpclient.uri.Uri;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Fixed limit of the HTTP requests in flight to each host, for HTTP/2 where they are streams of one connection.
+ * Requests over the limit wait in a FIFO queue, so that the HTTP client never has more streams open than the server
+ * allows. The HTTP client queues such streams itself, but loses track of them and leaves some requests waiting until
+ * they time out.
+ */
+public class StreamLimiter {
+
+    private final int maxConcurrentStreams;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    public StreamLimiter(int maxConcurrentStreams) {
+        if (maxConcurrentStreams < 1) {
+            throw new IllegalArgumentException(String.format("maxConcurrentStreams must be positive, was %s", maxConcurrentStreams));
+        }
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * Runs {@code execution} when there is a free stream to the host of {@code uri}, and frees it when the returned
+     * future completes. Cancelling the returned future takes a waiting request out of the queue, and cancels the
+     * future of {@code execution} once it has started.
+     */
+    public <T> CompletableFuture<T> execute(Uri uri, Supplier<CompletableFuture<T>> execution) {
+        Host host = hosts.computeIfAbsent(uri.getScheme() + "://" + uri.getHost() + ":" + uri.getExplicitPort(), h -> new Host());
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<T>> started = new AtomicReference<>();
+        Runnable start = () -> {
+            CompletableFuture<T> response;
+            try {
+                response = execution.get();
+            } catch (Throwable t) {
+                response = CompletableFuture.failedFuture(t);
+            }
+            started.set(response);
+            response.whenComplete((r, t) -> {
+                host.release();
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(r);
+                }
+            });
+            // cancelled while starting
+            if (result.isDone()) {
+                response.cancel(true);
+            }
+        };
+        result.whenComplete((r, t) -> {
+            if (t != null && !host.dequeue(start)) {
+                CompletableFuture<T> response = started.get();
+                if (response != null) {
+                    response.cancel(true);
+                }
+            }
+        });
+        host.acquire(start);
+        return result;
+    }
+
+    /**
+     * @return the requests in flight to {@code host} ({@code scheme://host:port})
+     */
+    int getInFlight(String host) {
+        Host h = hosts.get(host);
+        return h == null ? 0 : h.inFlight();
+    }
+
+    private final class Host {
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+        private final Queue<Runnable> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private int inFlight;
+
+        void acquire(Runnable start) {
+            synchronized (this) {
+                if (inFlight >= maxConcurrentStreams) {
+                    queue.add(start);
+                    return;
+                }
+                inFlight++;
+            }
+            start.run();
+        }
+
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    inFlight--;
+                }
+            }
+            // the freed stream goes to the next request, started outside the lock
+            if (next != null) {
+                ready.add(next);
+                drain();
+            }
+        }
+
+        /**
+         * Starts the requests that got a stream. Only one thread at a time runs the loop; a request failing on the
+         * starting thread releases its stream to the next one here instead of recursing as deep as the queue.
+         */
+        private void drain() {
+            if (drainRequests.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                Runnable next;
+                while ((next = ready.poll()) != null) {
+                    next.run();
+                }
+            } while (drainRequests.decrementAndGet() != 0);
+        }
+
+        /**
+         * @return true if {@code start} was still waiting, and will not run
+         */
+        synchronized boolean dequeue(Runnable start) {
+            return queue.remove(start);
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.ListenableFuture;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * The attempts of one streamed request, and the handler of the caller they stream the response to. A response with a
+ * status the request would be retried on is buffered like in {@code execute}, as it is an error page that is thrown
+ * away. Other responses go to the handler part by part, on the I/O thread, so the next part is not read before the
+ * handler has returned. The status and headers are held back until the first body part, so that an attempt failing
+ * before it can still be retried: once anything has reached the handler, the request is not retried.
+ */
+class StreamingExchange<T> {
+
+    private final AsyncHandler<T> handler;
+    private volatile boolean delivered;
+    private volatile Attempt lastAttempt;
+    private volatile T result;
+
+    StreamingExchange(AsyncHandler<T> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sends an attempt.
+     *
+     * @param retriedStatus statuses the attempt would be retried on
+     * @return the outcome of the attempt: the status and headers of a streamed response, or the whole of a buffered one
+     */
+    ListenableFuture<Response> send(AsyncHttpClient asyncHttpClient, Request request, IntPredicate retriedStatus) {
+        Attempt attempt = new Attempt(retriedStatus);
+        ListenableFuture<Response> sent = asyncHttpClient.executeRequest(request, attempt);
+        attempt.sentWith(sent);
+        return sent;
+    }
+
+    /**
+     * @return true once a part of a response has been handed to the handler of the caller
+     */
+    boolean isDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return what the handler of the caller made of the response of the last attempt, which is first handed to it if
+     * it was buffered to be retried but was not, e.g. as the retry budget had run out
+     */
+    T complete() throws Exception {
+        Attempt attempt = lastAttempt;
+        if (attempt.streamed) {
+            return result;
+        }
+        delivered = true;
+        if (attempt.deliverHead() == AsyncHandler.State.CONTINUE) {
+            for (HttpResponseBodyPart part : attempt.bodyParts) {
+                if (handler.onBodyPartReceived(part) == AsyncHandler.State.ABORT) {
+                    break;
+                }
+            }
+        }
+        return handler.onCompleted();
+    }
+
+    /**
+     * Hands the failure of the request to the handler of the caller, before the request completes. The attempts do
+     * not, as the HTTP client fails an attempt before it tells the handler.
+     */
+    void fail(Throwable t) {
+        delivered = true;
+        handler.onThrowable(t);
+    }
+
+    private final class Attempt implements AsyncHandler<Response> {
+        private final IntPredicate retriedStatus;
+        private final Response.ResponseBuilder head = new Response.ResponseBuilder();
+        private final List<HttpResponseBodyPart> bodyParts = new ArrayList<>();
+        private HttpResponseStatus status;
+        private HttpHeaders headers;
+        private boolean buffered;
+        private volatile boolean streamed;
+        private volatile ListenableFuture<Response> sent;
+        private volatile boolean replayed;
+
+        Attempt(IntPredicate retriedStatus) {
+            this.retriedStatus = retriedStatus;
+        }
+
+        // the connection of the attempt, for a handler that pauses reading it
+        @Override
+        public void onTcpConnectSuccess(InetSocketAddress remoteAddress, Channel connection) {
+            handler.onTcpConnectSuccess(remoteAddress, connection);
+        }
+
+        @Override
+        public void onConnectionPooled(Channel connection) {
+            handler.onConnectionPooled(connection);
+        }
+
+        @Override
+        public State onStatusReceived(HttpResponseStatus responseStatus) {
+            status = responseStatus;
+            buffered = retriedStatus.test(responseStatus.getStatusCode());
+            head.accumulate(responseStatus);
+            return State.CONTINUE;
+        }
+
+        @Override
+        public State onHeadersReceived(HttpHeaders responseHeaders) {
+            headers = responseHeaders;
+            head.accumulate(responseHeaders);
+            return State.CONTINUE;
+        }
+
+        @Override
+        public State onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+            if (buffered) {
+                bodyParts.add(bodyPart);
+                return State.CONTINUE;
+            }
+            if (!streamed && startStreaming() == State.ABORT) {
+                return State.ABORT;
+            }
+            return handler.onBodyPartReceived(bodyPart);
+        }
+
+        @Override
+        public State onTrailingHeadersReceived(HttpHeaders trailingHeaders) throws Exception {
+            if (buffered) {
+                return State.CONTINUE;
+            }
+            if (!streamed && startStreaming() == State.ABORT) {
+                return State.ABORT;
+            }
+            return handler.onTrailingHeadersReceived(trailingHeaders);
+        }
+
+        void sentWith(ListenableFuture<Response> sent) {
+            this.sent = sent;
+            if (replayed) {
+                abortReplay();
+            }
+        }
+
+        /**
+         * The HTTP client sends the request again by itself when the connection closes before the response is
+         * complete. That is fine until the response has started to stream, after which the attempt fails instead.
+         */
+        @Override
+        public void onRetry() {
+            if (streamed) {
+                replayed = true;
+                abortReplay();
+                return;
+            }
+            head.reset();
+            bodyParts.clear();
+            status = null;
+            headers = null;
+            buffered = false;
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+            // see fail
+        }
+
+        @Override
+        public Response onCompleted() throws Exception {
+            lastAttempt = this;
+            if (buffered) {
+                for (HttpResponseBodyPart part : bodyParts) {
+                    head.accumulate(part);
+                }
+                return head.build();
+            }
+            if (!streamed) {
+                // a response without a body
+                startStreaming();
+            }
+            result = handler.onCompleted();
+            return head.build();
+        }
+
+        private void abortReplay() {
+            // null if the replay comes before executeRequest has returned, which then aborts in sentWith
+            ListenableFuture<Response> request = sent;
+            if (request != null) {
+                request.abort(new IOException("Connection closed after the response had started to stream"));
+            }
+        }
+
+        private State startStreaming() throws Exception {
+            streamed = true;
+            delivered = true;
+            return deliverHead();
+        }
+
+        State deliverHead() throws Exception {
+            if (handler.onStatusReceived(status) == State.ABORT) {
+                return State.ABORT;
+            }
+            return headers == null ? State.CONTINUE : handler.onHeadersReceived(headers);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Process-wide TGT caches shared by all CasSessionFetchers that log in to the same CAS server with the same
+ * credentials. Clearing a cache after a TGT failure invalidates the TGT for every client using it.
+ *
+ * A cache lives as long as a fetcher is registered for it. The TGT is fetched with the login, i.e. the HTTP client, of
+ * the earliest registration still open, reported to its metrics listener, and refreshed proactively on the schedule of
+ * the earliest registration that has one, so that closing a client hands these over to the others. The TTLs are
+ * those of the first registration.
+ */
+public final class TicketGrantingTicketRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TicketGrantingTicketRegistry.class);
+    private static final ConcurrentMap<Key, Shared> TGTS = new ConcurrentHashMap<>();
+
+    private TicketGrantingTicketRegistry() {
+    }
+
+    /**
+     * @param login           fetches a TGT with the HTTP client of the registering fetcher
+     * @param maxTtlMs        see {@link CachedSupplier}
+     * @param refreshPeriodMs how often to refresh the TGT proactively, or null for not at all
+     * @return the registration, to be {@link Registration#unregister unregistered} when the fetcher is closed
+     */
+    public static Registration register(CasConfig config,
+                                        long ttlMs,
+                                        long refreshAheadMs,
+                                        Supplier<CompletableFuture<String>> login,
+                                        ToLongFunction<String> maxTtlMs,
+                                        CasMetricsListener metrics,
+                                        Long refreshPeriodMs) {
+        Key key = new Key(config);
+        Registration registration = new Registration(key, login, maxTtlMs, metrics, refreshPeriodMs);
+        TGTS.compute(key, (k, shared) -> {
+            Shared joined = shared == null ? new Shared(k, ttlMs, refreshAheadMs) : shared;
+            joined.add(registration);
+            return joined;
+        });
+        return registration;
+    }
+
+    static void clear() {
+        TGTS.values().forEach(Shared::stopRefresh);
+        TGTS.clear();
+    }
+
+    /**
+     * A fetcher using a shared TGT cache.
+     */
+    public static final class Registration {
+        private final Key key;
+        private final Supplier<CompletableFuture<String>> login;
+        private final ToLongFunction<String> maxTtlMs;
+        private final CasMetricsListener metrics;
+        private final Long refreshPeriodMs;
+        private volatile Shared shared;
+
+        private Registration(Key key,
+                             Supplier<CompletableFuture<String>> login,
+                             ToLongFunction<String> maxTtlMs,
+                             CasMetricsListener metrics,
+                             Long refreshPeriodMs) {
+            this.key = key;
+            this.login = login;
+            this.maxTtlMs = maxTtlMs;
+            this.metrics = metrics;
+            this.refreshPeriodMs = refreshPeriodMs;
+        }
+
+        public CachedSupplier<String> getTicketGrantingTickets() {
+            return shared.supplier;
+        }
+
+        /**
+         * Leaves the shared cache, which is dropped with the last registration. Calling this again does nothing.
+         */
+        public void unregister() {
+            TGTS.computeIfPresent(key, (k, current) -> current == shared && current.remove(this) ? null : current);
+        }
+    }
+
+    private static final class Shared implements CasMetricsListener {
+        private final Key key;
+        private final CachedSupplier<String> supplier;
+        // updated in TGTS.compute only, so one registration at a time
+        private final List<Registration> registrations = new ArrayList<>();
+        private volatile List<Registration> open = List.of();
+        private Registration refreshing;
+        private ScheduledFuture<?> refresh;
+
+        private Shared(Key key, long ttlMs, long refreshAheadMs) {
+            this.key = key;
+            this.supplier = new CachedSupplier<>(() -> ttlMs, () -> refreshAheadMs, this::maxTtlMs, this::login, "tgt", this);
+        }
+
+        private void add(Registration registration) {
+            registration.shared = this;
+            registrations.add(registration);
+            open = List.copyOf(registrations);
+            if (refreshing == null) {
+                startRefresh();
+            }
+        }
+
+        /**
+         * @return true if it was the last registration
+         */
+        private boolean remove(Registration registration) {
+            if (!registrations.remove(registration)) {
+                return false;
+            }
+            open = List.copyOf(registrations);
+            if (refreshing == registration) {
+                stopRefresh();
+                startRefresh();
+            }
+            return registrations.isEmpty();
+        }
+
+        private void startRefresh() {
+            for (Registration registration : registrations) {
+                if (registration.refreshPeriodMs != null) {
+                    long periodMs = Math.max(1, registration.refreshPeriodMs);
+                    refreshing = registration;
+                    // an open circuit breaker fails the refresh fast, and the cached value is served until the next round
+                    refresh = CasScheduler.get().scheduleAtFixedRate(
+                            () -> supplier.refresh().whenComplete((v, t) -> {
+                                if (t != null) {
+                                    LOGGER.warn(String.format("Proactive shared CAS TGT refresh failed (CAS = %s)", key.casUrl),
+                                            CasSessionFetcher.unwrap(t));
+                                }
+                            }),
+                            periodMs,
+                            periodMs,
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+        }
+
+        private void stopRefresh() {
+            if (refresh != null) {
+                refresh.cancel(false);
+            }
+            refreshing = null;
+            refresh = null;
+        }
+
+        private CompletableFuture<String> login() {
+            List<Registration> current = open;
+            if (current.isEmpty()) {
+                return CompletableFuture.failedFuture(new IllegalStateException(String.format(
+                        "Every client sharing the TGT for %s has been closed", key.casUrl)));
+            }
+            return current.get(0).login.get();
+        }
+
+        private long maxTtlMs(String tgt) {
+            List<Registration> current = open;
+            return current.isEmpty() ? Long.MAX_VALUE : current.get(0).maxTtlMs.applyAsLong(tgt);
+        }
+
+        @Override
+        public void cacheAccessed(String cache, boolean hit) {
+            List<Registration> current = open;
+            if (!current.isEmpty()) {
+                current.get(0).metrics.cacheAccessed(cache, hit);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String casUrl;
+        private final String username;
+        private final String password;
+
+        private Key(CasConfig config) {
+            this.casUrl = config.getCasUrl();
+            this.username = config.getUsername();
+            this.password = config.getPassword();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return Objects.equals(casUrl, that.casUrl) && Objects.equals(username, that.username) && Objects.equals(password, that.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(casUrl, username, password);
+        }
+    }
+}
@@ -2,10 +2,14 @@ module fi.vm.sade.javautils.cas {
     exports fi.vm.sade.javautils.nio.cas;
     requires async.http.client;
     requires com.google.gson;
+    requires io.netty.buffer;
     requires io.netty.codec.http;
+    requires io.netty.transport;
     requires java.net.http;
+    requires java.sql;
     requires java.xml;
     requires org.apache.commons.lang3;
     requires slf4j.api;
     requires io.github.resilience4j.circuitbreaker;
+    requires io.github.resilience4j.core;
 }
@@ -0,0 +1,136 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.exceptions.TicketGrantingTicketException;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.netty.EagerResponseBodyPart;
+import org.asynchttpclient.uri.Uri;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BlockingCasClientTest {
+
+    private static final Request REQUEST = new RequestBuilder().setUrl("http://service/api").build();
+
+    private static Throwable failure(Throwable cause) throws InterruptedException {
+        StubCasClient delegate = new StubCasClient(request -> CompletableFuture.failedFuture(cause));
+        try {
+            new BlockingCasClient(delegate).execute(REQUEST);
+        } catch (RuntimeException | IOException e) {
+            return e;
+        }
+        throw new AssertionError("execute should have thrown");
+    }
+
+    @Test
+    public void shouldWriteBufferedResponseToFileWhenClientCannotStream() throws Exception {
+        Response.ResponseBuilder buffered = new Response.ResponseBuilder();
+        buffered.accumulate(new HttpResponseStatus(Uri.create("http://service/api")) {
+            @Override
+            public int getStatusCode() {
+                return 200;
+            }
+
+            @Override
+            public String getStatusText() {
+                return "OK";
+            }
+
+            @Override
+            public String getProtocolName() {
+                return "HTTP";
+            }
+
+            @Override
+            public int getProtocolMajorVersion() {
+                return 1;
+            }
+
+            @Override
+            public int getProtocolMinorVersion() {
+                return 1;
+            }
+
+            @Override
+            public String getProtocolText() {
+                return "HTTP/1.1";
+            }
+
+            @Override
+            public SocketAddress getRemoteAddress() {
+                return null;
+            }
+
+            @Override
+            public SocketAddress getLocalAddress() {
+                return null;
+            }
+        });
+        buffered.accumulate(new DefaultHttpHeaders().add("Content-Type", "text/plain"));
+        buffered.accumulate(new EagerResponseBodyPart(Unpooled.copiedBuffer("content", StandardCharsets.UTF_8), true));
+        Response buffer = buffered.build();
+        // a client that only implements execute
+        StubCasClient delegate = new StubCasClient(request -> CompletableFuture.completedFuture(buffer));
+        Path file = Files.createTempFile("response", ".txt");
+
+        Response response = new BlockingCasClient(delegate).executeToFile(REQUEST, file);
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("text/plain", response.getHeader("Content-Type"));
+        Assert.assertEquals("content", Files.readString(file));
+    }
+
+    @Test
+    public void shouldThrowFailuresUnwrapped() throws Exception {
+        TicketGrantingTicketException tgtFailure = new TicketGrantingTicketException("CAS down");
+        Assert.assertSame(tgtFailure, failure(new CompletionException(new CompletionException(tgtFailure))));
+        ConnectException connectFailure = new ConnectException("connection refused");
+        Assert.assertSame(connectFailure, failure(connectFailure));
+    }
+
+    @Test
+    public void shouldThrowRequestTimeoutAsHttpTimeoutException() throws Exception {
+        Throwable timeout = failure(new TimeoutException());
+        Assert.assertTrue(timeout instanceof HttpTimeoutException);
+        Assert.assertTrue(timeout.getCause() instanceof TimeoutException);
+    }
+
+    @Test
+    public void shouldCancelRequestWhenInterrupted() throws Exception {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        StubCasClient delegate = new StubCasClient(request -> response);
+        BlockingCasClient client = new BlockingCasClient(delegate);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread caller = new Thread(() -> {
+            try {
+                client.execute(REQUEST);
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+            done.countDown();
+        });
+        caller.start();
+        caller.interrupt();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(thrown.get() instanceof InterruptedException);
+        Assert.assertTrue(response.isCancelled());
+    }
+}
@@ -0,0 +1,130 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+
+public class CachingCasClientTest {
+
+    private MockWebServer mockWebServer;
+    private AsyncHttpClient asyncHttpClient;
+    private CasClient delegate;
+
+    @Before
+    public void init() {
+        this.mockWebServer = new MockWebServer();
+        this.asyncHttpClient = asyncHttpClient();
+        this.delegate = new StubCasClient(request -> asyncHttpClient.executeRequest(request).toCompletableFuture());
+    }
+
+    @After
+    public void shutDown() throws Exception {
+        this.mockWebServer.shutdown();
+        this.asyncHttpClient.close();
+    }
+
+    private Request get(String path) {
+        return new RequestBuilder().setUrl(mockWebServer.url(path).toString()).build();
+    }
+
+    @Test
+    public void shouldServeFreshResponsesFromTheCache() throws Exception {
+        mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "max-age=60").setBody("codes"));
+        InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+        CachingCasClient client = new CachingCasClient(delegate, 1_000_000, metrics);
+
+        Assert.assertEquals("codes", client.execute(get("/codes")).get().getResponseBody());
+        Assert.assertEquals("codes", client.execute(get("/codes")).get().getResponseBody());
+
+        Assert.assertEquals(1, mockWebServer.getRequestCount());
+        Assert.assertEquals(1, client.getHits());
+        Assert.assertEquals(1, client.getMisses());
+        Assert.assertEquals(1, metrics.getCacheHits(CachingCasClient.CACHE_NAME));
+        Assert.assertEquals(1, metrics.getCacheMisses(CachingCasClient.CACHE_NAME));
+    }
+
+    @Test
+    public void shouldRevalidateStaleResponsesWithTheirETag() throws Exception {
+        mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "no-cache").addHeader("ETag", "\"v1\"").setBody("codes"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(304).addHeader("ETag", "\"v1\""));
+        mockWebServer.enqueue(new MockResponse().addHeader("ETag", "\"v2\"").setBody("new codes"));
+        CachingCasClient client = new CachingCasClient(delegate, 1_000_000);
+
+        client.execute(get("/codes")).get();
+        Response revalidated = client.execute(get("/codes")).get();
+        Assert.assertEquals(200, revalidated.getStatusCode());
+        Assert.assertEquals("codes", revalidated.getResponseBody());
+        Assert.assertEquals("new codes", client.execute(get("/codes")).get().getResponseBody());
+
+        mockWebServer.takeRequest(1, TimeUnit.SECONDS);
+        RecordedRequest conditional = mockWebServer.takeRequest(1, TimeUnit.SECONDS);
+        Assert.assertEquals("\"v1\"", conditional.getHeader("If-None-Match"));
+        Assert.assertEquals(1, client.getRevalidations());
+    }
+
+    @Test
+    public void shouldSeparateCallersAndSkipUncacheableResponses() throws Exception {
+        mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "max-age=60").setBody("for alice"));
+        mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "max-age=60").setBody("for bob"));
+        mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "max-age=60").addHeader("Set-Cookie", "a=b").setBody("personal"));
+        mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "max-age=60").setBody("again"));
+        CachingCasClient client = new CachingCasClient(delegate, 1_000_000);
+
+        Request alice = get("/me").toBuilder().setHeader("Authorization", "Bearer alice").build();
+        Request bob = get("/me").toBuilder().setHeader("Authorization", "Bearer bob").build();
+        Assert.assertEquals("for alice", client.execute(alice).get().getResponseBody());
+        Assert.assertEquals("for bob", client.execute(bob).get().getResponseBody());
+        Assert.assertEquals("for alice", client.execute(alice).get().getResponseBody());
+
+        client.execute(get("/session")).get();
+        Assert.assertEquals("again", client.execute(get("/session")).get().getResponseBody());
+        Assert.assertEquals(4, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void shouldNotCacheExpiredResponsesWithInvalidDates() throws Exception {
+        String anHourAgo = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusHours(1));
+        mockWebServer.enqueue(new MockResponse().addHeader("Expires", anHourAgo).addHeader("Date", "yesterday").setBody("old"));
+        mockWebServer.enqueue(new MockResponse().addHeader("Expires", "0").setBody("invalid"));
+        mockWebServer.enqueue(new MockResponse().setBody("new"));
+        CachingCasClient client = new CachingCasClient(delegate, 1_000_000);
+
+        Assert.assertEquals("old", client.execute(get("/codes")).get().getResponseBody());
+        Assert.assertEquals("invalid", client.execute(get("/codes")).get().getResponseBody());
+        Assert.assertEquals("new", client.execute(get("/codes")).get().getResponseBody());
+        Assert.assertEquals(0, client.getHits());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedResponsesOverTheSizeLimit() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.enqueue(new MockResponse().addHeader("Cache-Control", "max-age=60").setBody("x".repeat(1000)));
+        }
+        CachingCasClient client = new CachingCasClient(delegate, 3000);
+
+        client.execute(get("/1")).get();
+        client.execute(get("/2")).get();
+        client.execute(get("/1")).get();
+        client.execute(get("/3")).get();
+
+        Assert.assertEquals(1, client.getEvictions());
+        Assert.assertTrue(client.getSizeBytes() <= 3000);
+        client.execute(get("/1")).get();
+        Assert.assertEquals(2, client.getHits());
+    }
+}
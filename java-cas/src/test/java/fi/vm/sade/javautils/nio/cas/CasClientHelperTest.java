@@ -10,11 +10,19 @@ import org.hamcrest.core.IsInstanceOf;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
+import com.google.gson.reflect.TypeToken;
+import okio.Buffer;
+
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertEquals;
 
@@ -110,6 +118,62 @@ public class CasClientHelperTest {
         assertEquals("{\"test\":\"testi\"}", actualRequest.getBody().readString(Charset.defaultCharset()));
     }
 
+    private void enqueueLogin() {
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Location", mockWebServer.url("/") + "cas/tickets")
+                .setResponseCode(201));
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(VALID_TICKET)
+                .setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Set-Cookie: " + String.format(COOKIENAME + "=%s; Path=/test-service/", "123456789"))
+                .setResponseCode(200));
+    }
+
+    @Test
+    public void shouldGetGenericTypeInResponseCharsetOnGivenExecutor() throws Exception {
+        enqueueLogin();
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=ISO-8859-1")
+                .setBody(new Buffer().writeString("[{\"test\": \"äö\"}, {\"test\": \"testi\"}]", StandardCharsets.ISO_8859_1))
+                .setResponseCode(200));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "parser"));
+        try {
+            List<String> parsedOn = new ArrayList<>();
+            List<TestPojo> testPojos = this.casClientHelper
+                    .doGet(this.mockWebServer.url("/test").toString(), new TypeToken<List<TestPojo>>() {}, executor)
+                    .thenApply(pojos -> {
+                        parsedOn.add(Thread.currentThread().getName());
+                        return pojos;
+                    })
+                    .get();
+
+            assertEquals(2, testPojos.size());
+            assertEquals("äö", testPojos.get(0).test);
+            assertEquals("testi", testPojos.get(1).test);
+            assertEquals(List.of("parser"), parsedOn);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldHandArrayElementsToConsumerOneByOne() throws Exception {
+        enqueueLogin();
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/json")
+                .setBody("[{\"test\": \"1\"}, {\"test\": \"2\"}, {\"test\": \"3\"}]")
+                .setResponseCode(200));
+
+        List<String> consumed = new ArrayList<>();
+        long elements = this.casClientHelper.doGetForEachSync(this.mockWebServer.url("/test").toString(),
+                TestPojo.class, pojo -> consumed.add(pojo.test));
+
+        assertEquals(3, elements);
+        assertEquals(List.of("1", "2", "3"), consumed);
+    }
+
     public class TestPojo {
         public String test;
         @Override
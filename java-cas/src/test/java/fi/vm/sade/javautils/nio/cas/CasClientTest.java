@@ -1,10 +1,21 @@
 package fi.vm.sade.javautils.nio.cas;
 
+import fi.vm.sade.javautils.nio.cas.exceptions.CircuitBreakerOpenException;
+import io.netty.handler.codec.http.HttpHeaders;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
 import org.asynchttpclient.Request;
 import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.After;
 import org.junit.Before;
@@ -14,10 +25,27 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.asynchttpclient.Dsl.asyncHttpClient;
 import static org.junit.Assert.*;
 
 public class CasClientTest {
@@ -241,6 +269,35 @@ public class CasClientTest {
         casClient.validateServiceTicketWithVirkailijaUserDetailsBlocking(mockWebServer.url("/test-service").toString(), VALID_TICKET);
     }
 
+    @Test
+    public void shouldParseHundredsOfVirkailijaRolesSuccessfully() throws Exception {
+        StringBuilder roles = new StringBuilder();
+        Set<String> expectedRoles = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            roles.append("<cas:roles>ROOLI_").append(i).append("</cas:roles>\n");
+            expectedRoles.add("ROOLI_" + i);
+        }
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/xml;charset=UTF-8")
+                .setBody(casVirkailijaAttributes.replace("<cas:roles>ROOLI_1</cas:roles>", roles.toString())));
+
+        UserDetails details = casClient.validateServiceTicketWithVirkailijaUserDetailsBlocking(mockWebServer.url("/test-service").toString(), VALID_TICKET);
+
+        assertEquals("it-ankka", details.getUser());
+        expectedRoles.add("ROOLI_2");
+        expectedRoles.add("ROOLI_3");
+        assertEquals(expectedRoles, details.getRoles());
+    }
+
+    @Test
+    public void shouldNotResolveExternalEntitiesInValidationResponse() throws Exception {
+        exception.expectCause(IsInstanceOf.instanceOf(RuntimeException.class));
+        mockWebServer.enqueue(new MockResponse().setBody(
+                "<!DOCTYPE cas:serviceResponse [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>" +
+                        casVirkailijaAttributes.replace("it-ankka", "&xxe;")));
+        casClient.validateServiceTicketWithVirkailijaUserDetailsBlocking(mockWebServer.url("/test-service").toString(), VALID_TICKET);
+    }
+
     @Test
     public void shouldSendSessionCookieWithRequest() throws Exception {
         mockWebServer.enqueue(new MockResponse()
@@ -416,4 +473,852 @@ public class CasClientTest {
         final String cookie = actualRequest.getHeader("cookie");
         assertTrue(cookie != null && cookie.contains("JSESSIONID=123456789"));
     }
+
+    private CasClient buildClient(CasConfig.CasConfigBuilder builder) {
+        return CasClientBuilder.build(builder.setJsessionName(COOKIENAME).build());
+    }
+
+    private CasConfig.CasConfigBuilder configBuilder() {
+        return new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check");
+    }
+
+    private void enqueueLogin(String session) {
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Location", mockWebServer.url("/") + "cas/tickets")
+                .setResponseCode(201));
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(VALID_TICKET)
+                .setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Set-Cookie: " + String.format(COOKIENAME + "=%s; Path=/test-service/", session))
+                .setResponseCode(200));
+    }
+
+    @Test
+    public void shouldRetryConfiguredStatusCodeWithSameSessionAfterBackoff() throws Exception {
+        CasClient client = buildClient(configBuilder()
+                .retryOnStatusCode(503, RetryPolicy.retry(2))
+                .retryBackoff(TimeUnit.MILLISECONDS, 50, 50));
+        enqueueLogin("123456789");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+
+        Response response = client.execute(new RequestBuilder().setUrl(this.mockWebServer.url("/test").toString()).build())
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(6, mockWebServer.getRequestCount());
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.takeRequest();
+        }
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest actualRequest = mockWebServer.takeRequest();
+            assertEquals("/test", actualRequest.getPath());
+            assertTrue(actualRequest.getHeader("cookie").contains("JSESSIONID=123456789"));
+        }
+    }
+
+    @Test
+    public void shouldAdjustConcurrencyLimitWithTheAttemptsOnly() throws Exception {
+        CasClient client = buildClient(configBuilder()
+                .adaptiveConcurrencyLimit(10, 10, TimeUnit.MILLISECONDS, 200));
+        // a slow login is not a slow response of the service
+        mockWebServer.enqueue(new MockResponse()
+                .setHeadersDelay(300, TimeUnit.MILLISECONDS)
+                .addHeader("Location", mockWebServer.url("/") + "cas/tickets")
+                .setResponseCode(201));
+        mockWebServer.enqueue(new MockResponse().setBody(VALID_TICKET).setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Set-Cookie: " + String.format(COOKIENAME + "=%s; Path=/test-service/", "123456789"))
+                .setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        Request request = new RequestBuilder().setUrl(this.mockWebServer.url("/test").toString()).build();
+
+        assertEquals(200, client.execute(request).get(5, TimeUnit.SECONDS).getStatusCode());
+        ConcurrencyLimit limit = ((ConcurrencyLimitedCasClient) client).getConcurrencyLimits()
+                .get(mockWebServer.getHostName() + ":" + mockWebServer.getPort());
+        assertEquals(10, limit.getLimit());
+        // but a server error is a failure
+        assertEquals(503, client.execute(request).get(5, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(9, limit.getLimit());
+    }
+
+    @Test
+    public void shouldNotRetryOverRetryBudget() throws Exception {
+        CasClient client = buildClient(configBuilder()
+                .retryOnStatusCode(503, RetryPolicy.retry(5))
+                .retryBudget(0, 2));
+        enqueueLogin("123456789");
+        for (int i = 0; i < 4; i++) {
+            mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        }
+        Request request = new RequestBuilder().setUrl(this.mockWebServer.url("/test").toString()).build();
+
+        // the first request spends the whole burst of two retries
+        assertEquals(503, client.execute(request).get(5, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(6, mockWebServer.getRequestCount());
+        // and the next one is not retried at all
+        assertEquals(503, client.execute(request).get(5, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(7, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void shouldReportPhasesAndCacheHitsToMetricsListener() throws Exception {
+        InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+        CasClient client = buildClient(configBuilder().metricsListener(metrics));
+        enqueueLogin("123456789");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        Request request = new RequestBuilder().setUrl(this.mockWebServer.url("/test").toString()).build();
+
+        client.execute(request).get();
+        client.execute(request).get();
+
+        for (CasPhase phase : List.of(CasPhase.TICKET_GRANTING_TICKET, CasPhase.SERVICE_TICKET, CasPhase.SESSION)) {
+            assertEquals(phase.name(), 1, metrics.getLatencies(phase).getCount());
+            assertEquals(phase.name(), 0, metrics.getFailures(phase));
+        }
+        assertEquals(2, metrics.getLatencies(CasPhase.CREDENTIALS).getCount());
+        assertEquals(2, metrics.getLatencies(CasPhase.REQUEST).getCount());
+        assertTrue(metrics.getLatencies(CasPhase.CREDENTIALS).getMax() >= metrics.getLatencies(CasPhase.SESSION).getMax());
+        assertEquals(1, metrics.getCacheMisses("session"));
+        assertEquals(1, metrics.getCacheHits("session"));
+        assertEquals(1, metrics.getCacheMisses("tgt"));
+    }
+
+    @Test
+    public void shouldSendNewServiceTicketWithEveryRequest() throws Exception {
+        AtomicInteger serviceTickets = new AtomicInteger();
+        AtomicInteger tgts = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    tgts.incrementAndGet();
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if ("/cas/v1/tickets/TGT-1".equals(request.getPath())) {
+                    return new MockResponse().setBody("ST-" + serviceTickets.incrementAndGet()).setResponseCode(200);
+                }
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        CasClient client = CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setServiceTicketHeaderName("CasSecurityTicket")
+                .serviceTicketPerRequest(5)
+                .build());
+
+        for (int i = 0; i < 10; i++) {
+            client.execute(new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build()).get();
+        }
+
+        Set<String> ticketsSent = new HashSet<>();
+        for (int i = 0; i < mockWebServer.getRequestCount(); i++) {
+            RecordedRequest recorded = mockWebServer.takeRequest();
+            if ("/test".equals(recorded.getPath())) {
+                assertTrue(ticketsSent.add(recorded.getHeader("CasSecurityTicket")));
+                String cookie = recorded.getHeader("cookie");
+                assertTrue(cookie == null || !cookie.contains(COOKIENAME));
+            }
+        }
+        assertEquals(10, ticketsSent.size());
+        assertEquals(1, tgts.get());
+        assertTrue(serviceTickets.get() <= 10 + 5);
+    }
+
+    @Test
+    public void shouldNotLeakCookiesBetweenConcurrentRequests() throws Exception {
+        final int requests = 2000;
+        AtomicInteger tgts = new AtomicInteger();
+        AtomicInteger responses = new AtomicInteger();
+        Set<String> unexpectedCookies = ConcurrentHashMap.newKeySet();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    tgts.incrementAndGet();
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if ("/cas/v1/tickets/TGT-1".equals(request.getPath())) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=123456789; Path=/")
+                            .setResponseCode(200);
+                }
+                // every response sets a cookie of its own that no other request may see
+                String cookie = request.getHeader("cookie");
+                if (cookie == null || !cookie.contains("JSESSIONID=123456789") || cookie.contains("LEAK")) {
+                    unexpectedCookies.add(String.valueOf(cookie));
+                }
+                return new MockResponse()
+                        .addHeader("Set-Cookie", "LEAK=" + responses.incrementAndGet() + "; Path=/")
+                        .setResponseCode(200);
+            }
+        });
+
+        List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(casClient.execute(new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+
+        assertEquals(requests, responses.get());
+        assertEquals(Set.of(), unexpectedCookies);
+        assertEquals(1, tgts.get());
+    }
+
+    @Test
+    public void shouldLogInOnceWhenConcurrentRequestsHitSessionExpiry() throws Exception {
+        final int requests = 500;
+        AtomicInteger tgts = new AtomicInteger();
+        AtomicInteger sessions = new AtomicInteger();
+        AtomicReference<String> validSession = new AtomicReference<>();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    tgts.incrementAndGet();
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-" + tgts.get())
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    String session = "S-" + sessions.incrementAndGet();
+                    validSession.set(session);
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=" + session + "; Path=/")
+                            .setResponseCode(200);
+                }
+                String cookie = request.getHeader("cookie");
+                boolean valid = cookie != null && cookie.contains(COOKIENAME + "=" + validSession.get());
+                return new MockResponse().setResponseCode(valid ? 200 : 401);
+            }
+        });
+        Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+        assertEquals(200, casClient.execute(request).get().getStatusCode());
+
+        // the service forgets the session
+        validSession.set("expired");
+        List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(casClient.execute(request));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+
+        for (CompletableFuture<Response> future : futures) {
+            assertEquals(200, future.get().getStatusCode());
+        }
+        assertEquals(2, tgts.get());
+        assertEquals(2, sessions.get());
+    }
+
+    @Test
+    public void shouldSendSessionCookieOnEveryStreamOverHttp2() throws Exception {
+        final int requests = 50;
+        mockWebServer.setProtocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+        CasClient http2Client = CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setJsessionName(COOKIENAME)
+                .http2(requests)
+                .http2Cleartext()
+                .build());
+        AtomicInteger sessions = new AtomicInteger();
+        Set<Integer> serviceRequestSequenceNumbers = ConcurrentHashMap.newKeySet();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    sessions.incrementAndGet();
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-1; Path=/")
+                            .setResponseCode(200);
+                }
+                serviceRequestSequenceNumbers.add(request.getSequenceNumber());
+                String cookie = request.getHeader("cookie");
+                return new MockResponse().setResponseCode(cookie != null && cookie.contains(COOKIENAME + "=S-1") ? 200 : 401);
+            }
+        });
+        Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+        List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(http2Client.execute(request));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+        for (CompletableFuture<Response> future : futures) {
+            assertEquals(200, future.get().getStatusCode());
+        }
+        assertEquals(1, sessions.get());
+        // numbered per connection, so requests on separate connections would share numbers
+        assertEquals(requests, serviceRequestSequenceNumbers.size());
+    }
+
+    @Test
+    public void shouldNotCountTheWaitForAStreamAsASlowCall() throws Exception {
+        final int requests = 10;
+        InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+        String slowRoute = mockWebServer.url("/slow/").toString();
+        mockWebServer.setProtocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+        CasClient http2Client = CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setJsessionName(COOKIENAME)
+                .http2(1)
+                .http2Cleartext()
+                .serviceCircuitBreaker(50, 50, TimeUnit.MILLISECONDS, 500, 30000)
+                .serviceCircuitBreakerRoutes(slowRoute)
+                .metricsListener(metrics)
+                .build());
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-1; Path=/")
+                            .setResponseCode(200);
+                }
+                return new MockResponse().setHeadersDelay(150, TimeUnit.MILLISECONDS).setResponseCode(200);
+            }
+        });
+        Request request = new RequestBuilder().setUrl(slowRoute + "api").build();
+        List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(http2Client.execute(request));
+        }
+
+        // the last requests wait for the one stream far longer than the slow call duration
+        for (CompletableFuture<Response> future : futures) {
+            assertEquals(200, future.get(30, TimeUnit.SECONDS).getStatusCode());
+        }
+        assertEquals(Map.of(), metrics.getCircuitBreakerStates());
+        http2Client.close();
+    }
+
+    @Test
+    public void shouldLogInAndOpenConnectionsOnWarmUp() throws Exception {
+        CasClient warmClient = CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setJsessionName(COOKIENAME)
+                .warmUpConnections(3)
+                .build());
+        AtomicInteger heads = new AtomicInteger();
+        AtomicInteger tgts = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("HEAD".equals(request.getMethod())) {
+                    heads.incrementAndGet();
+                    return new MockResponse().setResponseCode(404);
+                } else if ("/cas/v1/tickets".equals(request.getPath())) {
+                    tgts.incrementAndGet();
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-1; Path=/")
+                            .setResponseCode(200);
+                }
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+
+        warmClient.warmUp().get(10, TimeUnit.SECONDS);
+        assertEquals(6, heads.get());
+        assertEquals(1, tgts.get());
+
+        int requestsBefore = mockWebServer.getRequestCount();
+        Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+        assertEquals(200, warmClient.execute(request).get().getStatusCode());
+        assertEquals(requestsBefore + 1, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void shouldShareLoginsThroughSessionStore() throws Exception {
+        Path storeFile = Files.createTempDirectory("session-store").resolve("store");
+        AtomicInteger tgts = new AtomicInteger();
+        AtomicInteger sessions = new AtomicInteger();
+        AtomicReference<String> validSession = new AtomicReference<>();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    tgts.incrementAndGet();
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-" + tgts.get())
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    String session = "S-" + sessions.incrementAndGet();
+                    validSession.set(session);
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=" + session + "; Path=/")
+                            .setResponseCode(200);
+                }
+                String cookie = request.getHeader("cookie");
+                boolean valid = cookie != null && cookie.contains(COOKIENAME + "=" + validSession.get());
+                return new MockResponse().setResponseCode(valid ? 200 : 401);
+            }
+        });
+        Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+        // two replicas, each with a store of its own on the same file
+        CasClient first = clientWithSessionStore(new FileSessionStore(storeFile));
+        CasClient second = clientWithSessionStore(new FileSessionStore(storeFile));
+
+        CompletableFuture<Response> firstResponse = first.execute(request);
+        CompletableFuture<Response> secondResponse = second.execute(request);
+        assertEquals(200, firstResponse.get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(200, secondResponse.get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(1, tgts.get());
+        assertEquals(1, sessions.get());
+
+        // a restarted replica
+        CasClient restarted = clientWithSessionStore(new FileSessionStore(storeFile));
+        assertEquals(200, restarted.execute(request).get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(1, sessions.get());
+
+        // the service forgets the session, and the replica seeing it first logs in again for both
+        validSession.set("expired");
+        assertEquals(200, first.execute(request).get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(200, second.execute(request).get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(2, tgts.get());
+        assertEquals(2, sessions.get());
+    }
+
+    @Test
+    public void shouldExpireStoredSessionWhenItExpiresInTheStore() throws Exception {
+        AtomicInteger sessions = new AtomicInteger();
+        List<String> cookies = new ArrayList<>();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-" + sessions.incrementAndGet() + "; Path=/")
+                            .setResponseCode(200);
+                }
+                cookies.add(request.getHeader("cookie"));
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+        // a session another replica logged in for a while ago, which expires in the store soon
+        SessionStore store = new InMemorySessionStore();
+        long now = System.currentTimeMillis();
+        store.compareAndSet("session it-ankka@" + mockWebServer.url("/cas/") + "test-service/j_spring_cas_security_check",
+                0, "S-stored", now - 1000, now + 300);
+        CasClient client = clientWithSessionStore(store);
+
+        assertEquals(200, client.execute(request).get(10, TimeUnit.SECONDS).getStatusCode());
+        Thread.sleep(500);
+        assertEquals(200, client.execute(request).get(10, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(List.of("CSRF=CSRF; " + COOKIENAME + "=S-stored", "CSRF=CSRF; " + COOKIENAME + "=S-1"), cookies);
+    }
+
+    @Test
+    public void shouldLearnSessionTtlFromRejectedSession() throws Exception {
+        final long sessionLifetimeMs = 500;
+        InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+        CasClient adaptiveClient = CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setJsessionName(COOKIENAME)
+                .sessionTicketValid(TimeUnit.SECONDS, 5)
+                .adaptiveSessionTtl(TimeUnit.MILLISECONDS, 100, 10000)
+                .metricsListener(metrics)
+                .build());
+        AtomicInteger sessions = new AtomicInteger();
+        Map<String, Long> sessionsIssuedAt = new ConcurrentHashMap<>();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    String session = "S-" + sessions.incrementAndGet();
+                    sessionsIssuedAt.put(session, System.currentTimeMillis());
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=" + session + "; Path=/")
+                            .setResponseCode(200);
+                }
+                String cookie = request.getHeader("cookie");
+                String session = cookie == null ? "" : cookie.replaceAll(".*" + COOKIENAME + "=([^;]*).*", "$1");
+                Long issuedAt = sessionsIssuedAt.get(session);
+                boolean valid = issuedAt != null && System.currentTimeMillis() - issuedAt < sessionLifetimeMs;
+                return new MockResponse().setResponseCode(valid ? 200 : 401);
+            }
+        });
+        Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+        assertEquals(200, adaptiveClient.execute(request).get().getStatusCode());
+        assertEquals(-1, metrics.getSessionTtlMs());
+
+        Thread.sleep(2 * sessionLifetimeMs);
+        assertEquals(200, adaptiveClient.execute(request).get().getStatusCode());
+        assertEquals(2, sessions.get());
+        long learnedTtlMs = metrics.getSessionTtlMs();
+        assertTrue("learned " + learnedTtlMs, learnedTtlMs >= 0.9 * 2 * sessionLifetimeMs && learnedTtlMs < 5000);
+    }
+
+    @Test
+    public void shouldFailFastWhenServiceCircuitBreakerOpens() throws Exception {
+        InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+        String deadRoute = mockWebServer.url("/dead/").toString();
+        CasClient breakerClient = CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setJsessionName(COOKIENAME)
+                .serviceCircuitBreaker(50, 100, TimeUnit.SECONDS, 10, 30)
+                .serviceCircuitBreakerRoutes(deadRoute)
+                .metricsListener(metrics)
+                .build());
+        AtomicInteger deadRequests = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-1; Path=/")
+                            .setResponseCode(200);
+                } else if (request.getPath().startsWith("/dead/")) {
+                    deadRequests.incrementAndGet();
+                    return new MockResponse().setResponseCode(503);
+                }
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        Request dead = new RequestBuilder().setUrl(deadRoute + "api").build();
+        for (int i = 0; i < 6; i++) {
+            assertEquals(503, breakerClient.execute(dead).get().getStatusCode());
+        }
+        assertEquals(Map.of(deadRoute, "OPEN"), metrics.getCircuitBreakerStates());
+
+        try {
+            breakerClient.execute(dead).get();
+            fail("expected the open circuit breaker to fail the request");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+            assertEquals(deadRoute, ((CircuitBreakerOpenException) e.getCause()).getCircuitBreaker());
+        }
+        assertEquals(6, deadRequests.get());
+
+        // other routes of the host have breakers of their own
+        Request alive = new RequestBuilder().setUrl(mockWebServer.url("/alive").toString()).build();
+        assertEquals(200, breakerClient.execute(alive).get().getStatusCode());
+    }
+
+    @Test
+    public void shouldStreamResponseToFileAfterBufferedRetry() throws Exception {
+        CasClient client = buildClient(configBuilder().retryOnStatusCode(503, RetryPolicy.retry(1)));
+        byte[] export = new byte[512 * 1024];
+        new Random(1).nextBytes(export);
+        enqueueLogin("123456789");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503).setBody("busy"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setChunkedBody(new Buffer().write(export), 8192));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(404).setBody("no such export"));
+        Path file = Files.createTempDirectory("export").resolve("export");
+        Request request = new RequestBuilder().setUrl(this.mockWebServer.url("/export").toString()).build();
+
+        Response response = client.executeToFile(request, file).get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatusCode());
+        assertEquals(0, response.getResponseBodyAsBytes().length);
+        assertArrayEquals(export, Files.readAllBytes(file));
+        assertEquals(5, mockWebServer.getRequestCount());
+
+        // the error page is not written over the file
+        response = client.executeToFile(request, file).get(5, TimeUnit.SECONDS);
+        assertEquals(404, response.getStatusCode());
+        assertEquals("no such export", response.getResponseBody());
+        assertArrayEquals(export, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void shouldNotLeaveAPartialFileWhenTheStreamedResponseFails() throws Exception {
+        CasClient client = buildClient(configBuilder());
+        enqueueLogin("123456789");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody(new Buffer().write(new byte[64 * 1024]))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        Path directory = Files.createTempDirectory("export");
+        Path file = Files.writeString(directory.resolve("export"), "the previous export");
+        Request request = new RequestBuilder().setUrl(this.mockWebServer.url("/export").toString()).build();
+
+        try {
+            client.executeToFile(request, file).get(5, TimeUnit.SECONDS);
+            fail("expected the interrupted response to fail the request");
+        } catch (ExecutionException e) {
+            assertEquals("the previous export", Files.readString(file));
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(List.of(file), files.collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotRetryStreamedRequestAfterFirstBodyByte() throws Exception {
+        CasClient client = buildClient(configBuilder().setNumberOfRetries(2));
+        enqueueLogin("123456789");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody(new Buffer().write(new byte[64 * 1024]))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("not requested"));
+        AtomicInteger received = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AsyncHandler<Integer> handler = new AsyncHandler<>() {
+            @Override
+            public State onStatusReceived(HttpResponseStatus responseStatus) {
+                return State.CONTINUE;
+            }
+
+            @Override
+            public State onHeadersReceived(HttpHeaders headers) {
+                return State.CONTINUE;
+            }
+
+            @Override
+            public State onBodyPartReceived(HttpResponseBodyPart bodyPart) {
+                received.addAndGet(bodyPart.length());
+                return State.CONTINUE;
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                failure.set(t);
+            }
+
+            @Override
+            public Integer onCompleted() {
+                return received.get();
+            }
+        };
+        Request request = new RequestBuilder().setUrl(this.mockWebServer.url("/export").toString()).build();
+
+        try {
+            client.executeStreaming(request, handler).get(5, TimeUnit.SECONDS);
+            fail("expected the interrupted response to fail the request");
+        } catch (ExecutionException e) {
+            assertNotNull(failure.get());
+        }
+        assertTrue(received.get() > 0);
+        assertEquals(4, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void shouldStopProactiveRefreshWhenClosed() throws Exception {
+        AtomicInteger sessions = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-" + sessions.incrementAndGet() + "; Path=/")
+                            .setResponseCode(200);
+                }
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        CasConfig config = configBuilder()
+                .setJsessionName(COOKIENAME)
+                .sessionTicketValid(TimeUnit.MILLISECONDS, 300)
+                .proactiveRefresh(0.3)
+                .build();
+        AsyncHttpClient httpClient = asyncHttpClient(CasClientBuilder.httpClientConfig(config));
+        CasClient client = CasClientBuilder.buildFromConfigAndHttpClient(config, httpClient);
+        try {
+            Request request = new RequestBuilder().setUrl(mockWebServer.url("/test").toString()).build();
+            assertEquals(200, client.execute(request).get(5, TimeUnit.SECONDS).getStatusCode());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sessions.get() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(sessions.get() >= 3);
+
+            client.close();
+            // a refresh that had already started may still complete
+            Thread.sleep(100);
+            int refreshed = sessions.get();
+            Thread.sleep(500);
+            assertEquals(refreshed, sessions.get());
+            // the HTTP client was passed in, so it is left open for its owner
+            assertFalse(httpClient.isClosed());
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    @Test
+    public void shouldReleaseConnectionsOfTimedOutAndCancelledRequests() throws Exception {
+        int maxConnections = 4;
+        CasConfig config = configBuilder()
+                .setJsessionName(COOKIENAME)
+                // a request that could not get a connection is not covered up by a retry
+                .setNumberOfRetries(0)
+                // long enough for the login of the first request
+                .requestTimeout(TimeUnit.MILLISECONDS, 1000)
+                .build();
+        AsyncHttpClient httpClient = asyncHttpClient(CasClientBuilder.httpClientConfig(config).setMaxConnections(maxConnections));
+        CasClient client = CasClientBuilder.buildFromConfigAndHttpClient(config, httpClient);
+        CountDownLatch serverRecovered = new CountDownLatch(1);
+        AtomicInteger slowRequests = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if ("/cas/v1/tickets".equals(request.getPath())) {
+                    return new MockResponse()
+                            .addHeader("Location", mockWebServer.url("/") + "cas/v1/tickets/TGT-1")
+                            .setResponseCode(201);
+                } else if (request.getPath().startsWith("/cas/v1/tickets/TGT-")) {
+                    return new MockResponse().setBody(VALID_TICKET).setResponseCode(200);
+                } else if (request.getPath().startsWith("/cas/test-service")) {
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", COOKIENAME + "=S-1; Path=/")
+                            .setResponseCode(200);
+                } else if (request.getPath().startsWith("/slow")) {
+                    slowRequests.incrementAndGet();
+                    serverRecovered.await(30, TimeUnit.SECONDS);
+                }
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        Request slow = new RequestBuilder().setUrl(mockWebServer.url("/slow").toString()).build();
+        Request fast = new RequestBuilder().setUrl(mockWebServer.url("/fast").toString()).build();
+        try {
+            assertEquals(200, client.execute(fast).get(5, TimeUnit.SECONDS).getStatusCode());
+
+            // each wave takes every connection of the pool, which would all stay taken until the server answers
+            for (int wave = 0; wave < 3; wave++) {
+                List<CompletableFuture<Response>> flood = new ArrayList<>();
+                for (int i = 0; i < maxConnections; i++) {
+                    flood.add(client.execute(slow));
+                }
+                for (CompletableFuture<Response> request : flood) {
+                    try {
+                        request.get(5, TimeUnit.SECONDS);
+                        fail("expected the slow request to time out");
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof TimeoutException);
+                    }
+                }
+                awaitNoActiveConnections(httpClient);
+                assertEquals(200, client.execute(fast).get(5, TimeUnit.SECONDS).getStatusCode());
+            }
+
+            List<CompletableFuture<Response>> cancelled = new ArrayList<>();
+            for (int i = 0; i < maxConnections; i++) {
+                cancelled.add(client.execute(slow));
+            }
+            while (slowRequests.get() < 4 * maxConnections) {
+                Thread.sleep(10);
+            }
+            cancelled.forEach(request -> request.cancel(true));
+            awaitNoActiveConnections(httpClient);
+            assertEquals(200, client.execute(fast).get(5, TimeUnit.SECONDS).getStatusCode());
+            // none of the slow requests was retried
+            assertEquals(4 * maxConnections, slowRequests.get());
+        } finally {
+            serverRecovered.countDown();
+            httpClient.close();
+        }
+    }
+
+    /**
+     * An aborted request closes its connection, but the HTTP client gives the connection back to the pool only once
+     * the channel has closed, on the I/O thread.
+     */
+    private static void awaitNoActiveConnections(AsyncHttpClient httpClient) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (httpClient.getClientStats().getTotalActiveConnectionCount() > 0) {
+            if (System.nanoTime() > deadline) {
+                fail("connections still active: " + httpClient.getClientStats());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private CasClient clientWithSessionStore(SessionStore store) {
+        return CasClientBuilder.build(new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + "test-service",
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check")
+                .setJsessionName(COOKIENAME)
+                .sessionStore(store)
+                .build());
+    }
 }
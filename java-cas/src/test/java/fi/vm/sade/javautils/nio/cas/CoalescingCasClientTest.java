@@ -0,0 +1,89 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+public class CoalescingCasClientTest {
+
+    private static Request get(String url) {
+        return new RequestBuilder().setUrl(url).build();
+    }
+
+    @Test
+    public void shouldShareOneRequestBetweenConcurrentIdenticalGets() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+        CoalescingCasClient client = new CoalescingCasClient(delegate, metrics);
+
+        CompletableFuture<Response> first = client.execute(get("http://service/organisations/1"));
+        CompletableFuture<Response> second = client.execute(get("http://service/organisations/1"));
+        CompletableFuture<Response> other = client.execute(get("http://service/organisations/2"));
+        Assert.assertEquals(2, delegate.sent.size());
+
+        delegate.sent.get(0).complete(null);
+        Assert.assertTrue(first.isDone() && second.isDone());
+        Assert.assertFalse(other.isDone());
+
+        // the flight is over, so the next request is sent again
+        client.execute(get("http://service/organisations/1"));
+        Assert.assertEquals(3, delegate.sent.size());
+        Assert.assertEquals(4, client.getRequests());
+        Assert.assertEquals(1, client.getCoalesced());
+        Assert.assertEquals(0.25, client.getCoalescingRatio(), 0.001);
+        Assert.assertEquals(1, metrics.getCacheHits(CoalescingCasClient.CACHE_NAME));
+        Assert.assertEquals(3, metrics.getCacheMisses(CoalescingCasClient.CACHE_NAME));
+    }
+
+    @Test
+    public void shouldPassThroughOtherMethodsAndRequestsWithBody() {
+        StubCasClient delegate = new StubCasClient();
+        CoalescingCasClient client = new CoalescingCasClient(delegate);
+
+        client.execute(new RequestBuilder().setMethod("POST").setUrl("http://service/api").build());
+        client.execute(new RequestBuilder().setMethod("POST").setUrl("http://service/api").build());
+        client.execute(new RequestBuilder().setUrl("http://service/api").setBody("{}").build());
+        client.execute(new RequestBuilder().setUrl("http://service/api").setBody("{}").build());
+
+        Assert.assertEquals(4, delegate.sent.size());
+        Assert.assertEquals(0, client.getRequests());
+    }
+
+    @Test
+    public void shouldCancelTheRequestOnlyWhenEveryCallerHasCancelled() {
+        StubCasClient delegate = new StubCasClient();
+        CoalescingCasClient client = new CoalescingCasClient(delegate);
+
+        CompletableFuture<Response> first = client.execute(get("http://service/api"));
+        CompletableFuture<Response> second = client.execute(get("http://service/api"));
+        first.cancel(true);
+        Assert.assertFalse(delegate.sent.get(0).isCancelled());
+        Assert.assertFalse(second.isDone());
+
+        second.cancel(true);
+        Assert.assertTrue(delegate.sent.get(0).isCancelled());
+
+        // a cancelled flight is not joined
+        CompletableFuture<Response> third = client.execute(get("http://service/api"));
+        Assert.assertEquals(2, delegate.sent.size());
+        delegate.sent.get(1).complete(null);
+        Assert.assertTrue(third.isDone() && !third.isCompletedExceptionally());
+    }
+
+    @Test
+    public void shouldGiveFailureToEveryCaller() {
+        StubCasClient delegate = new StubCasClient();
+        CoalescingCasClient client = new CoalescingCasClient(delegate);
+
+        CompletableFuture<Response> first = client.execute(get("http://service/api"));
+        CompletableFuture<Response> second = client.execute(get("http://service/api"));
+        delegate.sent.get(0).completeExceptionally(new RuntimeException("connection refused"));
+
+        Assert.assertTrue(first.isCompletedExceptionally());
+        Assert.assertTrue(second.isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,148 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import fi.vm.sade.javautils.nio.cas.exceptions.ConcurrencyLimitExceededException;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimitedCasClientTest {
+
+    private static Request get(String url) {
+        return new RequestBuilder().setUrl(url).build();
+    }
+
+    @Test
+    public void shouldQueueRequestsOverTheLimitAndRejectWhenQueueIsFull() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        ConcurrencyLimitedCasClient client = new ConcurrencyLimitedCasClient(delegate, 2, 1, 10000);
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(client.execute(get("http://service/api/" + i)));
+        }
+        ConcurrencyLimit limit = client.getConcurrencyLimits().get("service:80");
+        Assert.assertEquals(2, delegate.pending().size());
+        Assert.assertEquals(2, limit.getInFlight());
+        Assert.assertEquals(1, limit.getQueueDepth());
+        try {
+            responses.get(3).get(1, TimeUnit.SECONDS);
+            Assert.fail("request over the queue size should have been rejected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+        }
+
+        delegate.completeNext();
+        Assert.assertTrue(responses.get(0).isDone());
+        // the queued request took the released slot
+        Assert.assertEquals(2, delegate.pending().size());
+        Assert.assertEquals(0, limit.getQueueDepth());
+        delegate.completeNext();
+        delegate.completeNext();
+        Assert.assertEquals(0, limit.getInFlight());
+        Assert.assertTrue(responses.get(2).isDone());
+        Assert.assertFalse(responses.get(2).isCompletedExceptionally());
+    }
+
+    @Test
+    public void shouldLimitEachHostSeparately() {
+        StubCasClient delegate = new StubCasClient();
+        ConcurrencyLimitedCasClient client = new ConcurrencyLimitedCasClient(delegate, 1, 0, 10000);
+
+        client.execute(get("http://service-a/api"));
+        client.execute(get("http://service-b/api"));
+        CompletableFuture<Response> rejected = client.execute(get("http://service-a:8080/api"));
+        CompletableFuture<Response> alsoRejected = client.executeAndRetryWithCleanSessionOnStatusCodes(get("http://service-b/api"), Set.of(401));
+
+        Assert.assertEquals(3, delegate.pending().size());
+        Assert.assertFalse(rejected.isCompletedExceptionally());
+        Assert.assertTrue(alsoRejected.isCompletedExceptionally());
+    }
+
+    @Test
+    public void shouldShrinkLimitOnFailuresAndGrowOnFastResponses() {
+        StubCasClient delegate = new StubCasClient();
+        ConcurrencyLimitedCasClient client = new ConcurrencyLimitedCasClient(delegate, 10, 100, 10000);
+
+        for (int i = 0; i < 10; i++) {
+            client.execute(get("http://service/api"));
+        }
+        ConcurrencyLimit limit = client.getConcurrencyLimits().get("service:80");
+        Assert.assertEquals(10, limit.getLimit());
+        for (int i = 0; i < 5; i++) {
+            delegate.failNext();
+        }
+        // 10 * 0.9^5 = 5.9
+        Assert.assertEquals(5, limit.getLimit());
+        Assert.assertEquals(5, limit.getInFlight());
+
+        for (int i = 0; i < 100; i++) {
+            client.execute(get("http://service/api"));
+            delegate.completeNext();
+        }
+        Assert.assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    public void shouldNotShrinkLimitOnCancelledRequests() {
+        StubCasClient delegate = new StubCasClient();
+        ConcurrencyLimitedCasClient client = new ConcurrencyLimitedCasClient(delegate, 10, 100, 10000);
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            responses.add(client.execute(get("http://service/api")));
+        }
+        ConcurrencyLimit limit = client.getConcurrencyLimits().get("service:80");
+        Assert.assertEquals(5, limit.getQueueDepth());
+        // the queued requests leave the queue, the ones in flight are cancelled in the delegate
+        for (CompletableFuture<Response> response : responses.subList(5, 15)) {
+            response.cancel(true);
+        }
+        Assert.assertEquals(10, limit.getLimit());
+        Assert.assertEquals(5, limit.getInFlight());
+        Assert.assertEquals(0, limit.getQueueDepth());
+        Assert.assertTrue(delegate.sent.stream().skip(5).allMatch(CompletableFuture::isCancelled));
+    }
+
+    @Test
+    public void shouldShrinkLimitOnSlowResponses() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        ConcurrencyLimitedCasClient client = new ConcurrencyLimitedCasClient(delegate, 10, 100, 10);
+
+        client.execute(get("http://service/api"));
+        Thread.sleep(50);
+        delegate.completeNext();
+        Assert.assertEquals(9, client.getConcurrencyLimits().get("service:80").getLimit());
+    }
+
+    @Test
+    public void shouldShrinkLimitOnServerErrors() {
+        StubCasClient delegate = new StubCasClient();
+        ConcurrencyLimitedCasClient client = new ConcurrencyLimitedCasClient(delegate, 10, 100, 10000);
+
+        client.execute(get("http://service/api"));
+        delegate.pending().get(0).complete(response(503));
+        client.execute(get("http://service/api"));
+        delegate.pending().get(0).complete(response(404));
+        Assert.assertEquals(9, client.getConcurrencyLimits().get("service:80").getLimit());
+    }
+
+    private static Response response(int statusCode) {
+        return (Response) Proxy.newProxyInstance(Response.class.getClassLoader(), new Class<?>[]{Response.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getStatusCode")) {
+                        return statusCode;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,125 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgingCasClientTest {
+
+    private static Request request(String method) {
+        return new RequestBuilder().setMethod(method).setUrl("http://service/api").build();
+    }
+
+    private static HedgingCasClient warmedUp(StubCasClient delegate, double maxHedgeRatio) {
+        return warmedUp(new HedgingCasClient(delegate, 90, maxHedgeRatio), delegate);
+    }
+
+    private static HedgingCasClient warmedUp(HedgingCasClient client, StubCasClient delegate) {
+        delegate.responder = request -> CompletableFuture.completedFuture(null);
+        for (int i = 0; i < HedgingCasClient.WINDOW_SIZE; i++) {
+            client.execute(request("GET"));
+        }
+        Assert.assertTrue(client.getHedgeDelayMs() >= 0);
+        delegate.sent.clear();
+        delegate.responder = request -> new CompletableFuture<>();
+        return client;
+    }
+
+    private static void awaitSent(StubCasClient delegate, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && delegate.sent.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, delegate.sent.size());
+    }
+
+    @Test
+    public void shouldNotHedgeBeforeLatenciesAreKnown() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        HedgingCasClient client = new HedgingCasClient(delegate, 90, 1);
+
+        client.execute(request("GET"));
+        Thread.sleep(100);
+        Assert.assertEquals(1, delegate.sent.size());
+        Assert.assertEquals(0, client.getHedgesSent());
+    }
+
+    @Test
+    public void shouldUseHedgeWhenItAnswersFirstAndCancelThePrimary() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        HedgingCasClient client = warmedUp(delegate, 1);
+
+        CompletableFuture<Response> response = client.execute(request("GET"));
+        awaitSent(delegate, 2);
+        delegate.sent.get(1).complete(null);
+
+        Assert.assertTrue(response.isDone());
+        Assert.assertFalse(response.isCompletedExceptionally());
+        Assert.assertTrue(delegate.sent.get(0).isCancelled());
+        Assert.assertEquals(1, client.getHedgesSent());
+        Assert.assertEquals(1, client.getHedgeWins());
+    }
+
+    @Test
+    public void shouldSendHedgeOnTheGivenExecutor() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        AtomicInteger executed = new AtomicInteger();
+        Executor executor = task -> {
+            executed.incrementAndGet();
+            new Thread(task).start();
+        };
+        HedgingCasClient client = warmedUp(new HedgingCasClient(delegate, 90, 1, executor), delegate);
+
+        client.execute(request("GET"));
+        awaitSent(delegate, 2);
+
+        Assert.assertEquals(1, executed.get());
+        Assert.assertEquals(1, client.getHedgesSent());
+    }
+
+    @Test
+    public void shouldUsePrimaryWhenHedgeFails() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        HedgingCasClient client = warmedUp(delegate, 1);
+
+        CompletableFuture<Response> response = client.execute(request("GET"));
+        awaitSent(delegate, 2);
+        delegate.sent.get(1).completeExceptionally(new RuntimeException("connection reset"));
+        Assert.assertFalse(response.isDone());
+        delegate.sent.get(0).complete(null);
+
+        Assert.assertFalse(response.isCompletedExceptionally());
+        Assert.assertEquals(0, client.getHedgeWins());
+    }
+
+    @Test
+    public void shouldNotHedgeOtherMethods() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        HedgingCasClient client = warmedUp(delegate, 1);
+
+        client.execute(request("POST"));
+        Thread.sleep(100);
+        Assert.assertEquals(1, delegate.sent.size());
+        Assert.assertEquals(0, client.getHedgesSent());
+    }
+
+    @Test
+    public void shouldCapHedgesToBurstAndRatio() throws Exception {
+        StubCasClient delegate = new StubCasClient();
+        HedgingCasClient client = warmedUp(delegate, 0);
+
+        int requests = HedgingCasClient.MAX_HEDGE_BURST + 5;
+        for (int i = 0; i < requests; i++) {
+            client.execute(request("GET"));
+        }
+        awaitSent(delegate, requests + HedgingCasClient.MAX_HEDGE_BURST);
+        Thread.sleep(100);
+        Assert.assertEquals(requests + HedgingCasClient.MAX_HEDGE_BURST, delegate.sent.size());
+        Assert.assertEquals(HedgingCasClient.MAX_HEDGE_BURST, client.getHedgesSent());
+    }
+}
@@ -0,0 +1,46 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldReturnPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(10_000_000, histogram.getMax());
+        Assert.assertEquals(5_000_500, histogram.getMean(), 0.001);
+        assertWithin(5_000_000, histogram.getValueAtPercentile(50));
+        assertWithin(9_900_000, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void shouldKeepSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 0; i < LatencyHistogram.SUB_BUCKETS; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(15, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void shouldCoverWholeRangeOfLong() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1);
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue(String.format("expected about %s but was %s", expected, actual),
+                actual >= expected && actual <= expected * 1.035);
+    }
+}
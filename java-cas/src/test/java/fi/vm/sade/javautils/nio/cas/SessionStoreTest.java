@@ -0,0 +1,97 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SessionStoreTest {
+
+    private static List<SessionStore> stores() throws Exception {
+        // an embedded H2 database
+        String url = "jdbc:h2:mem:" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        DataSource dataSource = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    if (!"getConnection".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return DriverManager.getConnection(url);
+                });
+        JdbcSessionStore jdbcStore = new JdbcSessionStore(dataSource);
+        jdbcStore.createTableIfMissing();
+        jdbcStore.createTableIfMissing();
+        Path file = Files.createTempDirectory("session-store").resolve("store");
+        return List.of(new InMemorySessionStore(), new FileSessionStore(file), jdbcStore);
+    }
+
+    @Test
+    public void testReplacesEntryOnlyWithItsCurrentVersion() throws Exception {
+        for (SessionStore store : stores()) {
+            String name = store.getClass().getSimpleName();
+            assertEquals(name, Optional.empty(), store.get("tgt"));
+
+            assertTrue(name, store.compareAndSet("tgt", 0, null, 500, 1000));
+            assertFalse(name, store.compareAndSet("tgt", 0, "TGT-1", 500, 2000));
+            assertEquals(name, Optional.of(new SessionStore.Entry(null, 500, 1000, 1)), store.get("tgt"));
+
+            assertTrue(name, store.compareAndSet("tgt", 1, "TGT-1", 500, 2000));
+            assertFalse(name, store.compareAndSet("tgt", 1, "TGT-2", 1500, 3000));
+            assertTrue(name, store.compareAndSet("session", 0, "S-1", 600, 4000));
+            assertEquals(name, Optional.of(new SessionStore.Entry("TGT-1", 500, 2000, 2)), store.get("tgt"));
+            assertEquals(name, Optional.of(new SessionStore.Entry("S-1", 600, 4000, 1)), store.get("session"));
+        }
+    }
+
+    @Test
+    public void testOneOfConcurrentUpdatesOfAVersionSucceeds() throws Exception {
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (SessionStore store : stores()) {
+                String name = store.getClass().getSimpleName();
+                for (long version = 0; version < 20; version++) {
+                    long expected = version;
+                    List<Callable<Boolean>> updates = new ArrayList<>();
+                    for (int i = 0; i < threads; i++) {
+                        String value = "TGT-" + version + "-" + i;
+                        updates.add(() -> store.compareAndSet("tgt", expected, value, 0, 1000));
+                    }
+                    int succeeded = 0;
+                    for (Future<Boolean> update : executor.invokeAll(updates)) {
+                        succeeded += update.get() ? 1 : 0;
+                    }
+                    assertEquals(name, 1, succeeded);
+                }
+                assertEquals(name, 20, store.get("tgt").orElseThrow().getVersion());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFileStoreKeepsEntriesWhenReopened() throws Exception {
+        Path file = Files.createTempDirectory("session-store").resolve("store");
+        try (FileSessionStore store = new FileSessionStore(file, 1024)) {
+            assertTrue(store.compareAndSet("tgt", 0, "TGT-1", 0, 1000));
+            assertTrue(store.compareAndSet("tgt", 1, "TGT-2", 1000, 2000));
+        }
+        try (FileSessionStore store = new FileSessionStore(file)) {
+            assertEquals(Optional.of(new SessionStore.Entry("TGT-2", 1000, 2000, 2)), store.get("tgt"));
+            assertEquals(1024, Files.size(file));
+        }
+    }
+}
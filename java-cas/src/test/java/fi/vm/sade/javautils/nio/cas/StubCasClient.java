@@ -0,0 +1,68 @@
+package fi.vm.sade.javautils.nio.cas;
+
+import org.asynchttpclient.Request;
+import org.asynchttpclient.Response;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The client wrapped by the decorators under test. Answers each request with the future of {@link #responder}, by
+ * default one that stays pending until the test completes it, and keeps the answers in {@link #sent} in the order of
+ * the requests. Service tickets cannot be validated.
+ */
+class StubCasClient implements CasClient {
+    final List<CompletableFuture<Response>> sent = new CopyOnWriteArrayList<>();
+    volatile Function<Request, CompletableFuture<Response>> responder;
+
+    StubCasClient() {
+        this(request -> new CompletableFuture<>());
+    }
+
+    StubCasClient(Function<Request, CompletableFuture<Response>> responder) {
+        this.responder = responder;
+    }
+
+    @Override
+    public CompletableFuture<Response> execute(Request request) {
+        CompletableFuture<Response> response = responder.apply(request);
+        sent.add(response);
+        return response;
+    }
+
+    @Override
+    public CompletableFuture<Response> executeAndRetryWithCleanSessionOnStatusCodes(Request request, Set<Integer> statusCodesToRetry) {
+        return execute(request);
+    }
+
+    @Override
+    public CompletableFuture<UserDetails> validateServiceTicketWithVirkailijaUserDetails(String service, String ticket) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<HashMap<String, String>> validateServiceTicketWithOppijaAttributes(String service, String ticket) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the requests not answered yet, oldest first
+     */
+    List<CompletableFuture<Response>> pending() {
+        return sent.stream().filter(response -> !response.isDone()).collect(Collectors.toList());
+    }
+
+    /** Completes the oldest pending request with an empty response. */
+    void completeNext() {
+        pending().get(0).complete(null);
+    }
+
+    void failNext() {
+        pending().get(0).completeExceptionally(new RuntimeException("connection refused"));
+    }
+}
@@ -0,0 +1,41 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveTtlTest {
+
+  @Test
+  public void testDropsBelowTheAgeOfARejectedSession() {
+    AdaptiveTtl ttl = new AdaptiveTtl(15000, 1000, 60000);
+    Assert.assertEquals(9000, ttl.rejected(10000));
+    Assert.assertEquals(10000, ttl.getObservedLifetimeMs());
+    Assert.assertEquals(1000, ttl.rejected(500));
+  }
+
+  @Test
+  public void testGrowsWhileNoSessionIsRejected() {
+    AdaptiveTtl ttl = new AdaptiveTtl(15000, 1000, 30000);
+    Assert.assertEquals(18750, ttl.survived(15000));
+    // replaced early by a refresh, which says nothing of the lifetime
+    Assert.assertEquals(18750, ttl.survived(1000));
+    Assert.assertEquals(23437, ttl.survived(18750));
+    Assert.assertEquals(29296, ttl.survived(23437));
+    Assert.assertEquals(30000, ttl.survived(29296));
+  }
+
+  @Test
+  public void testProbesForALongerLifetimeAfterSessionsSurviveBelowIt() {
+    AdaptiveTtl ttl = new AdaptiveTtl(15000, 1000, 60000);
+    Assert.assertEquals(9000, ttl.rejected(10000));
+    for (int i = 1; i < AdaptiveTtl.SURVIVALS_BEFORE_PROBE; i++) {
+      Assert.assertEquals(9000, ttl.survived(9000));
+    }
+    Assert.assertEquals(11250, ttl.survived(9000));
+
+    // the probe outlives the observed lifetime, so the lifetime has grown
+    Assert.assertEquals(14062, ttl.survived(11250));
+    Assert.assertEquals(-1, ttl.getObservedLifetimeMs());
+    Assert.assertEquals(17577, ttl.survived(14062));
+  }
+}
@@ -0,0 +1,126 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.BatchResult;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class BatchRunnerTest {
+
+  private static List<Request> requests(int n) {
+    return IntStream.range(0, n)
+        .mapToObj(i -> new RequestBuilder().setUrl("http://service/api/" + i).build())
+        .collect(Collectors.toList());
+  }
+
+  private static int indexOf(Request request) {
+    String url = request.getUrl();
+    return Integer.parseInt(url.substring(url.lastIndexOf('/') + 1));
+  }
+
+  @Test
+  public void testBoundsConcurrencyAndKeepsInputOrder() throws Exception {
+    Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    List<Integer> completionOrder = new CopyOnWriteArrayList<>();
+    CompletableFuture<List<BatchResult<String>>> batch = new BatchRunner<String>(requests(5), 2, request -> {
+      CompletableFuture<String> response = new CompletableFuture<>();
+      pending.put(indexOf(request), response);
+      return response;
+    }, result -> completionOrder.add(result.getIndex())).run();
+
+    Assert.assertEquals(Set.of(0, 1), pending.keySet());
+    pending.get(1).complete("one");
+    Assert.assertEquals(Set.of(0, 1, 2), pending.keySet());
+    pending.get(2).complete("two");
+    pending.get(0).complete("zero");
+    pending.get(4).complete("four");
+    Assert.assertFalse(batch.isDone());
+    pending.get(3).complete("three");
+
+    List<String> values = new ArrayList<>();
+    batch.get(1, TimeUnit.SECONDS).forEach(result -> values.add(result.getValue()));
+    Assert.assertEquals(List.of("zero", "one", "two", "three", "four"), values);
+    Assert.assertEquals(List.of(1, 2, 0, 4, 3), completionOrder);
+  }
+
+  @Test
+  public void testIsolatesFailures() throws Exception {
+    List<BatchResult<String>> results = new BatchRunner<String>(requests(3), 1, request -> {
+      int index = indexOf(request);
+      if (index == 1) {
+        throw new IllegalStateException("failed to send");
+      }
+      return index == 2
+          ? CompletableFuture.failedFuture(new RuntimeException("service down"))
+          : CompletableFuture.completedFuture("ok");
+    }, result -> { }).run().get(1, TimeUnit.SECONDS);
+
+    Assert.assertTrue(results.get(0).isSuccess());
+    Assert.assertEquals("failed to send", results.get(1).getFailure().getMessage());
+    Assert.assertEquals("service down", results.get(2).getFailure().getMessage());
+  }
+
+  @Test
+  public void testCancellingStopsTheBatch() {
+    List<CompletableFuture<String>> started = new CopyOnWriteArrayList<>();
+    CompletableFuture<List<BatchResult<String>>> batch = new BatchRunner<String>(requests(10), 3, request -> {
+      CompletableFuture<String> response = new CompletableFuture<>();
+      started.add(response);
+      return response;
+    }, result -> { }).run();
+
+    batch.cancel(true);
+    started.get(0).complete("late");
+
+    Assert.assertEquals(3, started.size());
+    Assert.assertTrue(started.get(1).isCancelled());
+    Assert.assertTrue(started.get(2).isCancelled());
+    try {
+      batch.join();
+      Assert.fail("batch should have been cancelled");
+    } catch (CancellationException expected) {
+    }
+  }
+
+  @Test
+  public void testCancelsRequestStartedWhileTheBatchIsCancelled() {
+    List<CompletableFuture<String>> started = new CopyOnWriteArrayList<>();
+    AtomicReference<CompletableFuture<List<BatchResult<String>>>> batch = new AtomicReference<>();
+    batch.set(new BatchRunner<String>(requests(2), 1, request -> {
+      if (indexOf(request) == 1) {
+        // times out after the batch was checked but before the request is in flight
+        batch.get().cancel(true);
+      }
+      CompletableFuture<String> response = new CompletableFuture<>();
+      started.add(response);
+      return response;
+    }, result -> { }).run());
+
+    started.get(0).complete("zero");
+
+    Assert.assertEquals(2, started.size());
+    Assert.assertTrue(started.get(1).isCancelled());
+  }
+
+  @Test
+  public void testCompletesEmptyBatchAndSynchronousRequestsWithoutRecursion() throws Exception {
+    Assert.assertTrue(new BatchRunner<String>(requests(0), 1, request -> null, result -> { }).run().get().isEmpty());
+    List<BatchResult<String>> results = new BatchRunner<String>(requests(100000), 4,
+        request -> CompletableFuture.completedFuture("ok"), result -> { }).run().get();
+    Assert.assertEquals(100000, results.size());
+  }
+}
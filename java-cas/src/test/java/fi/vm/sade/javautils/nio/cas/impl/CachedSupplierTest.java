@@ -1,11 +1,15 @@
 package fi.vm.sade.javautils.nio.cas.impl;
 
+import fi.vm.sade.javautils.nio.cas.CasMetricsListener;
+import fi.vm.sade.javautils.nio.cas.InMemoryCasMetrics;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 public class CachedSupplierTest {
@@ -115,21 +119,29 @@ public class CachedSupplierTest {
   }
 
   @Test
-  public void testSynchronized() {
+  public void testSupplierNeverCalledConcurrently() {
     final int NUMBER_OF_THREADS = 50;
     final int INVOCATIONS_PER_THREAD = 100;
 
-    // supplier contains a non atomic counter
+    // supplier contains a non atomic counter and detects overlapping calls
+    AtomicInteger active = new AtomicInteger();
+    AtomicBoolean overlapped = new AtomicBoolean(false);
     CachedSupplier<String> s = new CachedSupplier<>(100000, new Supplier<>() {
       int counter = 0;
 
       @Override
       public CompletableFuture<String> get() {
-        return CompletableFuture.failedFuture(new RuntimeException(counter++ + ""));
+        if (active.incrementAndGet() > 1) {
+          overlapped.set(true);
+        }
+        try {
+          return CompletableFuture.failedFuture(new RuntimeException(counter++ + ""));
+        } finally {
+          active.decrementAndGet();
+        }
       }
     });
 
-    // have multiple threads increment the counter
     Collection<CompletableFuture<Void>> futures = new ArrayList<>();
     for(int i = 0; i < NUMBER_OF_THREADS; i++) {
       CompletableFuture<Void> f = new CompletableFuture<>();
@@ -144,18 +156,150 @@ public class CachedSupplierTest {
       }).start();
     }
 
-    // increments match total number of invocations
+    // failures are not cached, so callers that did not share an in-flight failure started their own fetch
     CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    Assert.assertFalse(overlapped.get());
     try {
       s.get().get();
       Assert.fail();
     } catch (ExecutionException e) {
-      Assert.assertEquals(NUMBER_OF_THREADS*INVOCATIONS_PER_THREAD + "", e.getCause().getMessage());
+      int calls = Integer.parseInt(e.getCause().getMessage());
+      Assert.assertTrue(calls > 0 && calls <= NUMBER_OF_THREADS*INVOCATIONS_PER_THREAD);
     } catch (InterruptedException e) {
       Assert.fail();
     }
   }
 
+  @Test
+  public void testServesStaleValueWhileRefreshingInBackground() throws Exception {
+    Queue<CompletableFuture<String>> responses = new LinkedList<>();
+    CompletableFuture<String> refresh = new CompletableFuture<>();
+    responses.add(CompletableFuture.completedFuture("test"));
+    responses.add(refresh);
+    AtomicInteger calls = new AtomicInteger();
+    CachedSupplier<String> s = new CachedSupplier<>(1000, 900, () -> {
+      calls.incrementAndGet();
+      return responses.remove();
+    });
+
+    Assert.assertEquals("test", s.get().get());
+    Thread.sleep(150);
+
+    // inside the refresh-ahead window the old value is served and exactly one refresh is started
+    Assert.assertEquals("test", s.get().get());
+    Assert.assertEquals("test", s.get().get());
+    Assert.assertEquals(2, calls.get());
+
+    refresh.complete("test2");
+    Assert.assertEquals("test2", s.get().get());
+  }
+
+  @Test
+  public void testValueExpiresWithinItsMaxTtl() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CachedSupplier<String> s = new CachedSupplier<>(() -> 100000, () -> 0,
+        value -> value.equals("stored") ? 100 : Long.MAX_VALUE,
+        () -> CompletableFuture.completedFuture(calls.incrementAndGet() == 1 ? "stored" : "fetched"), null, CasMetricsListener.NOOP);
+
+    Assert.assertEquals("stored", s.get().get());
+    Assert.assertEquals("stored", s.get().get());
+    Thread.sleep(150);
+    Assert.assertEquals("fetched", s.get().get());
+    Thread.sleep(150);
+    Assert.assertEquals("fetched", s.get().get());
+    Assert.assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testFailedBackgroundRefreshKeepsStaleValue() throws Exception {
+    Queue<CompletableFuture<String>> responses = new LinkedList<>();
+    responses.add(CompletableFuture.completedFuture("test"));
+    responses.add(CompletableFuture.failedFuture(new RuntimeException("refresh failed")));
+    responses.add(CompletableFuture.completedFuture("test2"));
+    CachedSupplier<String> s = new CachedSupplier<>(1000, 900, responses::remove);
+
+    Assert.assertEquals("test", s.get().get());
+    Thread.sleep(150);
+    Assert.assertEquals("test", s.get().get());
+    Assert.assertEquals("test", s.get().get());
+  }
+
+  @Test
+  public void testClearDiscardsBackgroundRefresh() throws Exception {
+    Queue<CompletableFuture<String>> responses = new LinkedList<>();
+    CompletableFuture<String> refresh = new CompletableFuture<>();
+    responses.add(CompletableFuture.completedFuture("test"));
+    responses.add(refresh);
+    responses.add(CompletableFuture.completedFuture("test3"));
+    CachedSupplier<String> s = new CachedSupplier<>(1000, 900, responses::remove);
+
+    Assert.assertEquals("test", s.get().get());
+    Thread.sleep(150);
+    Assert.assertEquals("test", s.get().get());
+    s.clear();
+    Assert.assertEquals("test3", s.get().get());
+    refresh.complete("test2");
+    Assert.assertEquals("test3", s.get().get());
+  }
+
+  @Test
+  public void testClearDoesNotWaitForFetchInFlight() throws Exception {
+    List<CompletableFuture<String>> calls = new ArrayList<>();
+    CachedSupplier<String> s = new CachedSupplier<>(100000, () -> {
+      CompletableFuture<String> call = new CompletableFuture<>();
+      calls.add(call);
+      return call;
+    });
+
+    CompletableFuture<String> first = s.get();
+    s.clear();
+    CompletableFuture<String> second = s.get();
+    // the supplier is called again while its first call is still running
+    Assert.assertEquals(2, calls.size());
+    Assert.assertFalse(calls.get(0).isDone());
+
+    calls.get(0).complete("before clear");
+    calls.get(1).complete("after clear");
+    Assert.assertEquals("before clear", first.get());
+    Assert.assertEquals("after clear", second.get());
+    Assert.assertEquals("after clear", s.get().get());
+    Assert.assertEquals(2, calls.size());
+  }
+
+  @Test
+  public void testRefreshSwapsValueAtomically() throws Exception {
+    Queue<CompletableFuture<String>> responses = new LinkedList<>();
+    CompletableFuture<String> refresh = new CompletableFuture<>();
+    responses.add(CompletableFuture.completedFuture("test"));
+    responses.add(refresh);
+    CachedSupplier<String> s = new CachedSupplier<>(100000, responses::remove);
+
+    // nothing is fetched before the value has been asked for
+    s.refresh().get();
+    Assert.assertEquals(2, responses.size());
+
+    Assert.assertEquals("test", s.get().get());
+    CompletableFuture<Void> refreshed = s.refresh();
+    Assert.assertEquals("test", s.get().get());
+    refresh.complete("test2");
+    refreshed.get();
+    Assert.assertEquals("test2", s.get().get());
+  }
+
+  @Test
+  public void testInvalidateOnlyDropsCurrentValue() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CachedSupplier<String> s = new CachedSupplier<>(100000, () -> CompletableFuture.completedFuture("test" + calls.incrementAndGet()));
+
+    Assert.assertEquals("test1", s.get().get());
+    Assert.assertTrue(s.invalidate("test1"));
+    Assert.assertEquals("test2", s.get().get());
+    // a late failure with the old value must not drop its replacement
+    Assert.assertFalse(s.invalidate("test1"));
+    Assert.assertEquals("test2", s.get().get());
+    Assert.assertEquals(2, calls.get());
+  }
+
   @Test
   public void testInFlightSharedAcrossCallers() throws Exception {
     final CompletableFuture<String> gate = new CompletableFuture<>();
@@ -176,4 +320,18 @@ public class CachedSupplierTest {
     Assert.assertEquals("done", f1.get());
     Assert.assertEquals("done", f2.get());
   }
+
+  @Test
+  public void testReportsHitsAndMisses() throws Exception {
+    InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+    CachedSupplier<String> s = new CachedSupplier<>(100000, 0, () -> CompletableFuture.completedFuture("test"), "test", metrics);
+
+    s.get().get();
+    s.get().get();
+    s.get().get();
+    s.clear();
+    s.get().get();
+    Assert.assertEquals(2, metrics.getCacheHits("test"));
+    Assert.assertEquals(2, metrics.getCacheMisses("test"));
+  }
 }
@@ -0,0 +1,177 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.CasClient;
+import fi.vm.sade.javautils.nio.cas.CasClientBuilder;
+import fi.vm.sade.javautils.nio.cas.CasConfig;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CasSessionFetcherTest {
+    private static final String COOKIENAME = "JSESSIONID";
+    private static final String VALID_TICKET = "it-ankan-tiketti";
+
+    private MockWebServer mockWebServer;
+    private AsyncHttpClient asyncHttpClient;
+
+    @Before
+    public void init() {
+        this.mockWebServer = new MockWebServer();
+        this.asyncHttpClient = asyncHttpClient();
+    }
+
+    @After
+    public void shutDown() throws IOException {
+        TicketGrantingTicketRegistry.clear();
+        this.asyncHttpClient.close();
+        this.mockWebServer.shutdown();
+    }
+
+    private CasConfig.CasConfigBuilder configBuilder() {
+        return configBuilder("test-service");
+    }
+
+    private CasConfig.CasConfigBuilder configBuilder(String service) {
+        return new CasConfig.CasConfigBuilder("it-ankka",
+                "neverstopthemadness",
+                mockWebServer.url("/cas").toString(),
+                mockWebServer.url("/cas/") + service,
+                "CSRF",
+                "Caller-Id",
+                "/j_spring_cas_security_check").setJsessionName(COOKIENAME);
+    }
+
+    private void enqueueTgt() {
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Location", mockWebServer.url("/") + "cas/tickets")
+                .setResponseCode(201));
+    }
+
+    private void enqueueSession(String session) {
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(VALID_TICKET)
+                .setResponseCode(200));
+        mockWebServer.enqueue(new MockResponse()
+                .addHeader("Set-Cookie: " + String.format(COOKIENAME + "=%s; Path=/test-service/", session))
+                .setResponseCode(200));
+    }
+
+    @Test
+    public void shouldRefreshSessionProactively() throws Exception {
+        CasConfig config = configBuilder()
+                .sessionTicketValid(TimeUnit.MILLISECONDS, 1000)
+                .proactiveRefresh(0.3)
+                .build();
+        enqueueTgt();
+        enqueueSession("123456789");
+        enqueueSession("987654321");
+        CasSessionFetcher fetcher = new CasSessionFetcher(config, asyncHttpClient,
+                config.getSessionTicketValidMs(), config.getTicketGrantingTicketValidMs());
+        try {
+            assertEquals("123456789", fetcher.fetchSessionToken().get());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!"987654321".equals(fetcher.fetchSessionToken().get()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("987654321", fetcher.fetchSessionToken().get());
+            assertEquals(5, mockWebServer.getRequestCount());
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    @Test
+    public void shouldKeepServingSessionWhenProactiveRefreshFails() throws Exception {
+        CasConfig config = configBuilder()
+                .sessionTicketValid(TimeUnit.MILLISECONDS, 1000)
+                .proactiveRefresh(0.3)
+                .build();
+        enqueueTgt();
+        enqueueSession("123456789");
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        CasSessionFetcher fetcher = new CasSessionFetcher(config, asyncHttpClient,
+                config.getSessionTicketValidMs(), config.getTicketGrantingTicketValidMs());
+        try {
+            assertEquals("123456789", fetcher.fetchSessionToken().get());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mockWebServer.getRequestCount() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, mockWebServer.getRequestCount());
+            assertEquals("123456789", fetcher.fetchSessionToken().get());
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    @Test
+    public void shouldShareTgtBetweenFetchersWithSameCredentials() throws Exception {
+        CasConfig config1 = configBuilder("test-service").shareTicketGrantingTicket().build();
+        CasConfig config2 = configBuilder("other-service").shareTicketGrantingTicket().build();
+        enqueueTgt();
+        enqueueSession("123456789");
+        enqueueSession("987654321");
+        CasSessionFetcher fetcher1 = new CasSessionFetcher(config1, asyncHttpClient,
+                config1.getSessionTicketValidMs(), config1.getTicketGrantingTicketValidMs());
+        CasSessionFetcher fetcher2 = new CasSessionFetcher(config2, asyncHttpClient,
+                config2.getSessionTicketValidMs(), config2.getTicketGrantingTicketValidMs());
+
+        assertEquals("123456789", fetcher1.fetchSessionToken().get());
+        assertEquals("987654321", fetcher2.fetchSessionToken().get());
+
+        assertEquals("/cas/v1/tickets", mockWebServer.takeRequest().getPath());
+        for (int i = 0; i < 4; i++) {
+            assertNotEquals("/cas/v1/tickets", mockWebServer.takeRequest().getPath());
+        }
+    }
+
+    @Test
+    public void shouldLogInWithAnotherClientOfSharedTgtWhenFirstIsClosed() throws Exception {
+        CasClient first = CasClientBuilder.build(configBuilder("test-service").shareTicketGrantingTicket().build());
+        CasClient second = CasClientBuilder.build(configBuilder("other-service").shareTicketGrantingTicket().build());
+        try {
+            // closes the HTTP client the shared TGT would have been fetched with
+            first.close();
+            enqueueTgt();
+            enqueueSession("987654321");
+            mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+
+            Request request = new RequestBuilder().setUrl(mockWebServer.url("/other-service/api").toString()).build();
+            assertEquals(200, second.execute(request).get(5, TimeUnit.SECONDS).getStatusCode());
+            assertEquals("/cas/v1/tickets", mockWebServer.takeRequest().getPath());
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void shouldInvalidateSharedTgtForAllFetchers() throws Exception {
+        CasConfig config1 = configBuilder("test-service").shareTicketGrantingTicket().build();
+        CasConfig config2 = configBuilder("other-service").shareTicketGrantingTicket().build();
+        enqueueTgt();
+        enqueueSession("123456789");
+        enqueueTgt();
+        enqueueSession("987654321");
+        CasSessionFetcher fetcher1 = new CasSessionFetcher(config1, asyncHttpClient,
+                config1.getSessionTicketValidMs(), config1.getTicketGrantingTicketValidMs());
+        CasSessionFetcher fetcher2 = new CasSessionFetcher(config2, asyncHttpClient,
+                config2.getSessionTicketValidMs(), config2.getTicketGrantingTicketValidMs());
+
+        assertEquals("123456789", fetcher1.fetchSessionToken().get());
+        fetcher1.clearTgtStore();
+        assertEquals("987654321", fetcher2.fetchSessionToken().get());
+        assertEquals(6, mockWebServer.getRequestCount());
+    }
+}
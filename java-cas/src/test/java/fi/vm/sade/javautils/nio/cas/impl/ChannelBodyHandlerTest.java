@@ -0,0 +1,124 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.netty.EagerResponseBodyPart;
+import org.asynchttpclient.uri.Uri;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ChannelBodyHandlerTest {
+
+  @Test
+  public void testPausesReadingWhileTheWriterFallsBehind() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    List<String> writers = new CopyOnWriteArrayList<>();
+    WritableByteChannel slow = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        writers.add(Thread.currentThread().getName());
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+          body.write(src.get());
+        }
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    EmbeddedChannel connection = new EmbeddedChannel();
+    ChannelBodyHandler handler = ChannelBodyHandler.toChannel(slow);
+    handler.onConnectionPooled(connection);
+    handler.onStatusReceived(ok());
+
+    byte[] parts = new byte[ChannelBodyHandler.MAX_QUEUED_PARTS];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = (byte) i;
+      Assert.assertTrue(connection.config().isAutoRead());
+      handler.onBodyPartReceived(new EagerResponseBodyPart(Unpooled.wrappedBuffer(new byte[]{parts[i]}), false));
+    }
+    Assert.assertFalse(connection.config().isAutoRead());
+
+    blocked.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!connection.config().isAutoRead() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(connection.config().isAutoRead());
+    CompletableFuture<Response> written = handler.onCompleted();
+    Assert.assertEquals(200, written.get(5, TimeUnit.SECONDS).getStatusCode());
+    Assert.assertArrayEquals(parts, body.toByteArray());
+    Assert.assertTrue(writers.stream().allMatch(name -> name.startsWith("async-cas-client-channel-writer-")));
+  }
+
+  private static HttpResponseStatus ok() {
+    return new HttpResponseStatus(Uri.create("http://service/export")) {
+      @Override
+      public int getStatusCode() {
+        return 200;
+      }
+
+      @Override
+      public String getStatusText() {
+        return "OK";
+      }
+
+      @Override
+      public String getProtocolName() {
+        return "HTTP";
+      }
+
+      @Override
+      public int getProtocolMajorVersion() {
+        return 1;
+      }
+
+      @Override
+      public int getProtocolMinorVersion() {
+        return 1;
+      }
+
+      @Override
+      public String getProtocolText() {
+        return "HTTP/1.1";
+      }
+
+      @Override
+      public SocketAddress getRemoteAddress() {
+        return null;
+      }
+
+      @Override
+      public SocketAddress getLocalAddress() {
+        return null;
+      }
+    };
+  }
+}
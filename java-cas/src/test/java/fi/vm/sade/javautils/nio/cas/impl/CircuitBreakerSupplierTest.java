@@ -1,5 +1,6 @@
 package fi.vm.sade.javautils.nio.cas.impl;
 
+import fi.vm.sade.javautils.nio.cas.InMemoryCasMetrics;
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import org.junit.Assert;
@@ -144,4 +145,21 @@ public class CircuitBreakerSupplierTest {
     }
     Assert.fail();
   }
+
+  @Test
+  public void testReportsStateChanges() throws Exception {
+    InMemoryCasMetrics metrics = new InMemoryCasMetrics();
+    CircuitBreakerSupplier<String> s = new CircuitBreakerSupplier<>("state-test", circuitBreakerConfig,
+        () -> CompletableFuture.failedFuture(new RuntimeException("failure")), metrics);
+
+    Assert.assertNull(metrics.getCircuitBreakerStates().get("state-test"));
+    for(int i=0;i<MINIMUM_NUMBER_OF_CALLS;i++) {
+      try { s.get().get(); } catch (Exception e) {}
+    }
+    Assert.assertEquals("OPEN", metrics.getCircuitBreakerStates().get("state-test"));
+
+    Thread.sleep(WAIT_IN_OPEN_STATE);
+    try { s.get().get(); } catch (Exception e) {}
+    Assert.assertEquals("HALF_OPEN", metrics.getCircuitBreakerStates().get("state-test"));
+  }
 }
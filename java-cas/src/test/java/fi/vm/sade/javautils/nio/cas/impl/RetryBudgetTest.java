@@ -0,0 +1,55 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryBudgetTest {
+
+  @Test
+  public void testAllowsBurstThenRatioOfFirstAttempts() {
+    RetryBudget budget = new RetryBudget(0.1, 3);
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertTrue(budget.tryRetry());
+    }
+    Assert.assertFalse(budget.tryRetry());
+
+    int retries = 0;
+    for (int i = 0; i < 100; i++) {
+      budget.recordFirstAttempt();
+      if (budget.tryRetry()) {
+        retries++;
+      }
+    }
+    // 100 * 0.1, give or take floating point rounding of the last token
+    Assert.assertTrue("retries " + retries, retries >= 9 && retries <= 10);
+  }
+
+  @Test
+  public void testTokensNeverExceedBurst() {
+    RetryBudget budget = new RetryBudget(0.5, 2);
+
+    for (int i = 0; i < 100; i++) {
+      budget.recordFirstAttempt();
+    }
+    Assert.assertTrue(budget.tryRetry());
+    Assert.assertTrue(budget.tryRetry());
+    Assert.assertFalse(budget.tryRetry());
+  }
+
+  @Test
+  public void testBackoffCapGrowsExponentiallyUpToMax() {
+    RetryBackoff backoff = new RetryBackoff(100, 1000);
+
+    Assert.assertEquals(100, backoff.capMs(0));
+    Assert.assertEquals(200, backoff.capMs(1));
+    Assert.assertEquals(800, backoff.capMs(3));
+    Assert.assertEquals(1000, backoff.capMs(4));
+    Assert.assertEquals(1000, backoff.capMs(100));
+    for (int i = 0; i < 1000; i++) {
+      long delay = backoff.delayMs(2);
+      Assert.assertTrue("delay " + delay, delay >= 0 && delay <= 400);
+    }
+    Assert.assertEquals(0, new RetryBackoff(0, 0).delayMs(5));
+  }
+}
@@ -0,0 +1,69 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class ServiceTicketPoolTest {
+
+  private static Supplier<CompletableFuture<String>> countingTickets(AtomicInteger counter) {
+    return () -> CompletableFuture.completedFuture("ST-" + counter.incrementAndGet());
+  }
+
+  @Test
+  public void testFetchesOnDemandAndRefills() throws Exception {
+    AtomicInteger counter = new AtomicInteger();
+    ServiceTicketPool pool = new ServiceTicketPool(10, 10000, countingTickets(counter));
+
+    Assert.assertEquals("ST-1", pool.take().get());
+    Assert.assertEquals(1, pool.size());
+    Assert.assertEquals("ST-2", pool.take().get());
+    // two tickets were taken during this ticket lifetime, so two are kept ready
+    Assert.assertEquals(2, pool.size());
+    Assert.assertEquals(4, counter.get());
+  }
+
+  @Test
+  public void testNeverExceedsMaxSize() throws Exception {
+    AtomicInteger counter = new AtomicInteger();
+    ServiceTicketPool pool = new ServiceTicketPool(3, 10000, countingTickets(counter));
+
+    for (int i = 0; i < 20; i++) {
+      pool.take().get();
+      Assert.assertTrue(pool.size() <= 3);
+    }
+    Assert.assertEquals(3, pool.size());
+    Assert.assertEquals(23, counter.get());
+  }
+
+  @Test
+  public void testDropsExpiredTickets() throws Exception {
+    AtomicInteger counter = new AtomicInteger();
+    ServiceTicketPool pool = new ServiceTicketPool(10, 50, countingTickets(counter));
+
+    Assert.assertEquals("ST-1", pool.take().get());
+    Thread.sleep(100);
+    Assert.assertEquals("ST-3", pool.take().get());
+  }
+
+  @Test
+  public void testClearDropsTicketsBeingFetched() throws Exception {
+    Queue<CompletableFuture<String>> responses = new LinkedList<>();
+    CompletableFuture<String> refill = new CompletableFuture<>();
+    responses.add(CompletableFuture.completedFuture("ST-1"));
+    responses.add(refill);
+    responses.add(CompletableFuture.completedFuture("ST-3"));
+    ServiceTicketPool pool = new ServiceTicketPool(10, 10000, responses::remove);
+
+    Assert.assertEquals("ST-1", pool.take().get());
+    pool.clear();
+    refill.complete("ST-2");
+    Assert.assertEquals(0, pool.size());
+    Assert.assertEquals("ST-3", pool.take().get());
+  }
+}
@@ -0,0 +1,47 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import fi.vm.sade.javautils.nio.cas.InMemorySessionStore;
+import fi.vm.sade.javautils.nio.cas.SessionStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StoredTokenSupplierTest {
+
+  @Test
+  public void testAgeOfStoredTokenDoesNotDependOnCurrentTtl() throws Exception {
+    SessionStore store = new InMemorySessionStore();
+    long now = System.currentTimeMillis();
+    // stored by a client keeping sessions for a minute, read by one that has since learned a TTL of a second
+    store.compareAndSet("session", 0, "S-1", now - 5000, now + 55000);
+    List<Long> ages = new CopyOnWriteArrayList<>();
+    StoredTokenSupplier<String> supplier = new StoredTokenSupplier<>(store, "session", () -> 1000, 1000,
+        () -> CompletableFuture.completedFuture("S-2"), token -> token, (token, ageMs) -> {
+          ages.add(ageMs);
+          return token;
+        });
+
+    Assert.assertEquals("S-1", supplier.get().get(1, TimeUnit.SECONDS));
+    Assert.assertTrue("age " + ages.get(0), ages.get(0) >= 5000 && ages.get(0) < 6000);
+  }
+
+  @Test
+  public void testTokenLoggedInBeforeClearIsNotUsed() throws Exception {
+    SessionStore store = new InMemorySessionStore();
+    AtomicInteger logins = new AtomicInteger();
+    StoredTokenSupplier<String> supplier = new StoredTokenSupplier<>(store, "session", () -> 1000, 1000,
+        () -> CompletableFuture.completedFuture("S-" + logins.incrementAndGet()), token -> token, (token, ageMs) -> token);
+    long now = System.currentTimeMillis();
+    supplier.clear();
+    // stored by a replica logging in before the clear, with a longer TTL than this client's
+    store.compareAndSet("session", 0, "S-old", now - 1, now + 60000);
+
+    Assert.assertEquals("S-1", supplier.get().get(1, TimeUnit.SECONDS));
+    Assert.assertEquals(1, logins.get());
+  }
+}
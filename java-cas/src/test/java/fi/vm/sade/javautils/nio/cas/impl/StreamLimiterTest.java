@@ -0,0 +1,85 @@
+package fi.vm.sade.javautils.nio.cas.impl;
+
+import org.asynchttpclient.uri.Uri;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class StreamLimiterTest {
+
+  @Test
+  public void testQueuesRequestsOverTheLimitPerHost() {
+    StreamLimiter limiter = new StreamLimiter(2);
+    List<CompletableFuture<String>> sent = new CopyOnWriteArrayList<>();
+    Uri service = Uri.create("https://service:443/api");
+    Uri other = Uri.create("https://other:443/api");
+
+    List<CompletableFuture<String>> results = List.of(
+        limiter.execute(service, () -> send(sent)),
+        limiter.execute(service, () -> send(sent)),
+        limiter.execute(service, () -> send(sent)),
+        limiter.execute(other, () -> send(sent)));
+    Assert.assertEquals(3, sent.size());
+    Assert.assertEquals(2, limiter.getInFlight("https://service:443"));
+
+    sent.get(0).complete("first");
+    Assert.assertEquals("first", results.get(0).join());
+    Assert.assertEquals(4, sent.size());
+    Assert.assertEquals(2, limiter.getInFlight("https://service:443"));
+
+    sent.get(1).completeExceptionally(new RuntimeException("reset"));
+    sent.get(3).complete("third");
+    Assert.assertTrue(results.get(1).isCompletedExceptionally());
+    Assert.assertEquals("third", results.get(2).join());
+    Assert.assertEquals(0, limiter.getInFlight("https://service:443"));
+  }
+
+  @Test
+  public void testCancelledRequestsLeaveTheQueueOrAreCancelledInFlight() {
+    StreamLimiter limiter = new StreamLimiter(1);
+    List<CompletableFuture<String>> sent = new CopyOnWriteArrayList<>();
+    Uri service = Uri.create("https://service:443/api");
+
+    CompletableFuture<String> first = limiter.execute(service, () -> send(sent));
+    CompletableFuture<String> queued = limiter.execute(service, () -> send(sent));
+    CompletableFuture<String> last = limiter.execute(service, () -> send(sent));
+    queued.cancel(true);
+    first.cancel(true);
+
+    Assert.assertTrue(sent.get(0).isCancelled());
+    // the stream went past the cancelled request
+    Assert.assertEquals(2, sent.size());
+    Assert.assertEquals(1, limiter.getInFlight("https://service:443"));
+    sent.get(1).complete("last");
+    Assert.assertEquals("last", last.join());
+    Assert.assertEquals(0, limiter.getInFlight("https://service:443"));
+  }
+
+  @Test
+  public void testStartsQueuedRequestsFailingSynchronouslyWithoutRecursion() {
+    StreamLimiter limiter = new StreamLimiter(1);
+    List<CompletableFuture<String>> sent = new CopyOnWriteArrayList<>();
+    Uri service = Uri.create("https://service:443/api");
+
+    CompletableFuture<String> first = limiter.execute(service, () -> send(sent));
+    List<CompletableFuture<String>> queued = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      queued.add(limiter.execute(service, () -> CompletableFuture.failedFuture(new IllegalStateException("closed"))));
+    }
+    sent.get(0).complete("first");
+
+    Assert.assertEquals("first", first.join());
+    Assert.assertTrue(queued.stream().allMatch(CompletableFuture::isCompletedExceptionally));
+    Assert.assertEquals(0, limiter.getInFlight("https://service:443"));
+  }
+
+  private static CompletableFuture<String> send(List<CompletableFuture<String>> sent) {
+    CompletableFuture<String> response = new CompletableFuture<>();
+    sent.add(response);
+    return response;
+  }
+}